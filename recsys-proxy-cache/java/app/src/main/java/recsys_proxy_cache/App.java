@@ -20,9 +20,11 @@
  */
 package recsys_proxy_cache;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import java.io.IOException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,13 +48,24 @@ public class App {
 
     private void start() throws IOException {
         log.info("server starting up");
+        // warm the cache before accepting any traffic
+        ScoreCache.loadSnapshot();
         int port = 50051;
+        var service = new GrpcService();
         server = ServerBuilder
                 .forPort(port)
-                .addService(new GrpcService())
+                .executor(ExecutionMode.newConfiguredExecutor("grpc-server"))
+                .addService(service)
                 .build()
                 .start();
         log.info("Server started, listening on " + port);
+        Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                        .setNameFormat("proxy-stats")
+                        .setDaemon(true)
+                        .build()
+                )
+                .scheduleAtFixedRate(service::logStats, 1, 1, TimeUnit.MINUTES);
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             log.warn("starting shutdown process");
             try {
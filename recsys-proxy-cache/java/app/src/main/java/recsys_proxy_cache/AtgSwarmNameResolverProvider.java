@@ -0,0 +1,126 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import com.jsoniter.JsonIterator;
+import io.grpc.NameResolver;
+import io.grpc.NameResolverProvider;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Makes RecsysProxy.AtgSwarmLookasideLoadBalancer available to channels under the
+ * atgswarm scheme.
+ *
+ * A target such as atgswarm://lookaside-load-balancer:80/servers is resolved by fetching
+ * http://lookaside-load-balancer:80/servers, which lists the recsys fleet in the same shape
+ * as lookaside-load-balancer/response.json:
+ *
+ *   {"valid_servers": [{"name": "...", "addr": "172.20.128.1", "port": 8500}, ...]}
+ *
+ * Every server listed becomes an address of the channel, so together with a balancing
+ * policy other than pick_first one proxy spreads its load over the whole fleet. The list
+ * is fetched again every ATGSWARM_REFRESH_SECONDS, and whenever grpc asks for it after a
+ * connection failure.
+ */
+class AtgSwarmNameResolverProvider extends NameResolverProvider {
+    private static final Logger log = LoggerFactory.getLogger(AtgSwarmNameResolverProvider.class);
+
+    static final String SCHEME = "atgswarm";
+    private static final Duration HTTP_TIMEOUT = Duration.ofSeconds(2);
+
+    private final Duration refreshTime;
+    private final Executor executor;
+
+    AtgSwarmNameResolverProvider(Duration refreshTime, Executor executor) {
+        this.refreshTime = refreshTime;
+        this.executor = executor;
+    }
+
+    static AtgSwarmNameResolverProvider getEnvProvider(Executor executor) {
+        var refreshSeconds = Optional.ofNullable(System.getenv("ATGSWARM_REFRESH_SECONDS")).orElse("30");
+        log.warn("using ATGSWARM_REFRESH_SECONDS={}", refreshSeconds);
+        return new AtgSwarmNameResolverProvider(Duration.ofSeconds(Long.parseLong(refreshSeconds)), executor);
+    }
+
+    @Override
+    public NameResolver newNameResolver(URI targetUri, NameResolver.Args args) {
+        if (!SCHEME.equals(targetUri.getScheme())) {
+            return null;
+        }
+        return new RecsysProxy.AtgSwarmLookasideLoadBalancer(
+                executor,
+                toDiscoveryUri(targetUri),
+                AtgSwarmNameResolverProvider::parseResponse,
+                refreshTime,
+                HTTP_TIMEOUT
+        );
+    }
+
+    @Override
+    public String getDefaultScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    protected boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    protected int priority() {
+        return 5;
+    }
+
+    static URI toDiscoveryUri(URI targetUri) {
+        try {
+            return new URI("http", targetUri.getAuthority(), targetUri.getPath(), targetUri.getQuery(), null);
+        } catch (URISyntaxException exception) {
+            throw new IllegalArgumentException("invalid " + SCHEME + " target=" + targetUri, exception);
+        }
+    }
+
+    /**
+     * @return addr:port of every server in the discovery response
+     */
+    static Set<String> parseResponse(HttpResponse<String> response) {
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("discovery request failed with status=" + response.statusCode());
+        }
+        return parseValidServers(response.body());
+    }
+
+    static Set<String> parseValidServers(String body) {
+        var targets = new HashSet<String>();
+        for (var server : JsonIterator.deserialize(body).get("valid_servers").asList()) {
+            targets.add(server.toString("addr") + ":" + server.toInt("port"));
+        }
+        return targets;
+    }
+}
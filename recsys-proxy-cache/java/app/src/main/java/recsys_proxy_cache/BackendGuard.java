@@ -0,0 +1,279 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Status;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adaptive limit on calls in flight to a scoring backend, with a circuit breaker behind
+ * it. Calls that do not get past both are failed fast instead of being queued.
+ *
+ * The limit follows AIMD. A call answered within the target latency raises it by 1/limit,
+ * a slow or failed call cuts it by a tenth, and calls already in flight at the last cut do
+ * not cut it again. Calls over the limit fail with RESOURCE_EXHAUSTED.
+ *
+ * The breaker opens after a run of consecutive failures and fails every call with
+ * UNAVAILABLE for a while. Then a single probe call is let through, and its outcome either
+ * closes the breaker or opens it again.
+ *
+ * Cancelled calls, errors the request is to blame for and timeouts of calls whose deadline
+ * the caller cut short are not failures and only give back their slot. A probe ending that
+ * way leaves the breaker open but lets the next call probe instead.
+ */
+final class BackendGuard {
+    private static final Logger log = LoggerFactory.getLogger(BackendGuard.class);
+    private static final double DECREASE_FACTOR = 0.9;
+
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * Sized through RECSYS_LIMIT_* and RECSYS_BREAKER_*, or disabled altogether with
+     * RECSYS_BACKEND_GUARD=false
+     */
+    static Optional<BackendGuard> getEnvGuard(int deadlineMillis) {
+        var enabled = Optional.ofNullable(System.getenv("RECSYS_BACKEND_GUARD")).orElse("true");
+        log.warn("using RECSYS_BACKEND_GUARD={}", enabled);
+        if (!Boolean.parseBoolean(enabled)) {
+            return Optional.empty();
+        }
+
+        var initialLimit = env("RECSYS_LIMIT_INITIAL", "100");
+        var maxLimit = env("RECSYS_LIMIT_MAX", "1000");
+        // half the deadline leaves room to tell a slow backend from a timed out one
+        var targetLatency = env("RECSYS_LIMIT_TARGET_LATENCY_MILLIS", String.valueOf(Math.max(1, deadlineMillis / 2)));
+        var failures = env("RECSYS_BREAKER_FAILURES", "20");
+        var openMillis = env("RECSYS_BREAKER_OPEN_MILLIS", "5000");
+        return Optional.of(new BackendGuard(
+                Integer.parseInt(initialLimit),
+                Integer.parseInt(maxLimit),
+                Long.parseLong(targetLatency),
+                Integer.parseInt(failures),
+                Long.parseLong(openMillis),
+                System::nanoTime
+        ));
+    }
+
+    private static String env(String name, String defaultValue) {
+        var value = Optional.ofNullable(System.getenv(name)).orElse(defaultValue);
+        log.warn("using {}={}", name, value);
+        return value;
+    }
+
+    private final int maxLimit;
+    private final long targetLatencyNanos;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final LongSupplier nanoClock;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder shortCircuitedCount = new LongAdder();
+
+    // guarded by this
+    private double limit;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openUntilNanos;
+    private long lastDecreaseNanos;
+
+    BackendGuard(
+            int initialLimit,
+            int maxLimit,
+            long targetLatencyMillis,
+            int failureThreshold,
+            long openMillis,
+            LongSupplier nanoClock
+    ) {
+        if (initialLimit < 1 || maxLimit < initialLimit) {
+            throw new IllegalArgumentException("invalid limits initial=" + initialLimit + " max=" + maxLimit);
+        }
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("breaker failure threshold must be positive, found " + failureThreshold);
+        }
+        this.limit = initialLimit;
+        this.maxLimit = maxLimit;
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.nanoClock = nanoClock;
+        this.lastDecreaseNanos = nanoClock.getAsLong() - 1;
+    }
+
+    /**
+     * @return the outcome of call, or a failed future without calling it at all when the
+     *         breaker is open or the limit is reached
+     */
+    <T> ListenableFuture<T> call(Supplier<ListenableFuture<T>> call) {
+        return call(call, false);
+    }
+
+    /**
+     * @param callerBound true when the call's deadline is shorter than RECSYS_PROXY_TIMEOUT
+     *        because the caller had less time left, so timing out is not held against the
+     *        backend
+     */
+    <T> ListenableFuture<T> call(Supplier<ListenableFuture<T>> call, boolean callerBound) {
+        if (!allowThroughBreaker()) {
+            shortCircuitedCount.increment();
+            return Futures.immediateFailedFuture(Status.UNAVAILABLE
+                    .withDescription("circuit breaker open, TF Serving is failing")
+                    .asRuntimeException());
+        }
+        if (inFlight.incrementAndGet() > limit()) {
+            inFlight.decrementAndGet();
+            rejectedCount.increment();
+            synchronized (this) {
+                // a probe that never went out proves nothing, let the next call try
+                if (state == State.HALF_OPEN) {
+                    openUntilNanos = nanoClock.getAsLong();
+                    state = State.OPEN;
+                }
+            }
+            return Futures.immediateFailedFuture(Status.RESOURCE_EXHAUSTED
+                    .withDescription("too many calls in flight to TF Serving, limit=" + limit())
+                    .asRuntimeException());
+        }
+
+        var startedAt = nanoClock.getAsLong();
+        ListenableFuture<T> sent;
+        try {
+            sent = call.get();
+        } catch (RuntimeException exception) {
+            sent = Futures.immediateFailedFuture(exception);
+        }
+        Futures.addCallback(sent, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                inFlight.decrementAndGet();
+                onSucceeded(startedAt, nanoClock.getAsLong() - startedAt);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                inFlight.decrementAndGet();
+                // a cancelled future carries no status of its own
+                var code = throwable instanceof CancellationException
+                        ? Status.Code.CANCELLED
+                        : Status.fromThrowable(throwable).getCode();
+                onFailed(startedAt, code, callerBound);
+            }
+        }, MoreExecutors.directExecutor());
+        return sent;
+    }
+
+    synchronized int limit() {
+        return (int) limit;
+    }
+
+    synchronized boolean isOpen() {
+        return state != State.CLOSED;
+    }
+
+    int inFlight() {
+        return inFlight.get();
+    }
+
+    long rejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    long shortCircuitedCount() {
+        return shortCircuitedCount.sum();
+    }
+
+    private synchronized boolean allowThroughBreaker() {
+        return switch (state) {
+            case CLOSED -> true;
+            case HALF_OPEN -> false;
+            case OPEN -> {
+                if (nanoClock.getAsLong() - openUntilNanos < 0) {
+                    yield false;
+                }
+                state = State.HALF_OPEN;
+                yield true;
+            }
+        };
+    }
+
+    private synchronized void onSucceeded(long startedAt, long latencyNanos) {
+        if (state == State.HALF_OPEN) {
+            log.warn("TF Serving probe call succeeded, closing circuit breaker");
+            state = State.CLOSED;
+        }
+        consecutiveFailures = 0;
+        if (latencyNanos <= targetLatencyNanos) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        } else {
+            decrease(startedAt);
+        }
+    }
+
+    private synchronized void onFailed(long startedAt, Status.Code code, boolean callerBound) {
+        if (!isBackendFailure(code, callerBound)) {
+            // a probe that proves nothing must not leave the breaker half open for good
+            if (state == State.HALF_OPEN) {
+                openUntilNanos = nanoClock.getAsLong();
+                state = State.OPEN;
+            }
+            return;
+        }
+
+        decrease(startedAt);
+        consecutiveFailures += 1;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            log.warn(
+                    "opening circuit breaker on TF Serving after {} consecutive failures, last status={}",
+                    consecutiveFailures, code
+            );
+            state = State.OPEN;
+            openUntilNanos = nanoClock.getAsLong() + openNanos;
+        }
+    }
+
+    private static boolean isBackendFailure(Status.Code code, boolean callerBound) {
+        return switch (code) {
+            case CANCELLED, INVALID_ARGUMENT, NOT_FOUND, FAILED_PRECONDITION, OUT_OF_RANGE, UNIMPLEMENTED -> false;
+            case DEADLINE_EXCEEDED -> !callerBound;
+            default -> true;
+        };
+    }
+
+    private void decrease(long startedAt) {
+        if (startedAt - lastDecreaseNanos <= 0) {
+            return;
+        }
+        limit = Math.max(1, limit * DECREASE_FACTOR);
+        lastDecreaseNanos = nanoClock.getAsLong();
+    }
+}
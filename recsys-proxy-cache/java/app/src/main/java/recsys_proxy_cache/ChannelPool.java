@@ -0,0 +1,181 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ClientInterceptors;
+import io.grpc.ConnectivityState;
+import io.grpc.ForwardingClientCall.SimpleForwardingClientCall;
+import io.grpc.ForwardingClientCallListener.SimpleForwardingClientCallListener;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A fixed number of channels to TF Serving, handed out least busy first.
+ *
+ * Every channel has HTTP/2 connections of its own, so calls are not all limited by one
+ * connection's concurrent streams and flow control window. Calls go to the healthy
+ * channel with the fewest calls in flight, ties taken in turn. A channel is healthy unless
+ * it is in TRANSIENT_FAILURE, and when none is the least busy of all is used. Channels
+ * found shut down are replaced.
+ *
+ * Every channel is created in the constructor, so there is no lazy init to race.
+ */
+class ChannelPool {
+    private static final Logger log = LoggerFactory.getLogger(ChannelPool.class);
+
+    private final Supplier<ManagedChannel> newChannel;
+    private final List<Pooled> channels = new ArrayList<>();
+    private final AtomicInteger nextIndex = new AtomicInteger();
+
+    /**
+     * @param newChannel builds one channel of the pool, called size times up front and
+     *                   again whenever a channel has to be replaced
+     */
+    ChannelPool(int size, Supplier<ManagedChannel> newChannel) {
+        if (size < 1) {
+            throw new IllegalArgumentException("channel pool size must be positive, found " + size);
+        }
+        this.newChannel = newChannel;
+        for (int i = 0; i < size; i++) {
+            channels.add(new Pooled(connect()));
+        }
+    }
+
+    int size() {
+        return channels.size();
+    }
+
+    /**
+     * @return the least busy healthy channel, counting the calls made through it
+     */
+    Channel next() {
+        var start = Math.floorMod(nextIndex.getAndIncrement(), channels.size());
+        Pooled best = null;
+        var bestHealthy = false;
+        for (int i = 0; i < channels.size(); i++) {
+            var pooled = channels.get((start + i) % channels.size());
+            var healthy = pooled.isHealthy();
+            if (best == null
+                    || (healthy && !bestHealthy)
+                    || (healthy == bestHealthy && pooled.inFlight.get() < best.inFlight.get())) {
+                best = pooled;
+                bestHealthy = healthy;
+            }
+        }
+        return best.intercepted();
+    }
+
+    /**
+     * @return the number of calls in flight on each channel, in pool order
+     */
+    List<Integer> inFlight() {
+        return channels.stream().map(pooled -> pooled.inFlight.get()).toList();
+    }
+
+    void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        for (var pooled : channels) {
+            pooled.channel.shutdown();
+        }
+        for (var pooled : channels) {
+            pooled.channel.awaitTermination(timeout, unit);
+        }
+    }
+
+    private ManagedChannel connect() {
+        var channel = newChannel.get();
+        // start connecting now rather than on the first call
+        log.info("channel pool connecting channel state={}", channel.getState(true));
+        return channel;
+    }
+
+    /**
+     * A channel of the pool along with its calls in flight
+     */
+    private final class Pooled implements ClientInterceptor {
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile ManagedChannel channel;
+        private volatile Channel intercepted;
+
+        Pooled(ManagedChannel channel) {
+            use(channel);
+        }
+
+        private void use(ManagedChannel channel) {
+            this.channel = channel;
+            this.intercepted = ClientInterceptors.intercept(channel, this);
+        }
+
+        boolean isHealthy() {
+            return channel.getState(false) != ConnectivityState.TRANSIENT_FAILURE;
+        }
+
+        Channel intercepted() {
+            if (channel.isShutdown()) {
+                synchronized (this) {
+                    if (channel.isShutdown()) {
+                        log.warn("replacing shut down channel in channel pool");
+                        use(connect());
+                    }
+                }
+            }
+            return intercepted;
+        }
+
+        @Override
+        public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
+                MethodDescriptor<ReqT, RespT> method,
+                CallOptions callOptions,
+                Channel next
+        ) {
+            return new SimpleForwardingClientCall<>(next.newCall(method, callOptions)) {
+                @Override
+                public void start(Listener<RespT> responseListener, Metadata headers) {
+                    inFlight.incrementAndGet();
+                    try {
+                        super.start(new SimpleForwardingClientCallListener<>(responseListener) {
+                            @Override
+                            public void onClose(Status status, Metadata trailers) {
+                                inFlight.decrementAndGet();
+                                super.onClose(status, trailers);
+                            }
+                        }, headers);
+                    } catch (RuntimeException exception) {
+                        inFlight.decrementAndGet();
+                        throw exception;
+                    }
+                }
+            };
+        }
+    }
+}
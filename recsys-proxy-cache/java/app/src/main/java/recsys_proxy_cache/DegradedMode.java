@@ -0,0 +1,166 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.grpc.Status;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Opt-in partial results for when TF Serving cannot score the misses of a request in time.
+ *
+ * A single backend timeout used to fail the whole GetScores call, even when nearly every
+ * item was a cache hit. With a DEGRADED_BUDGET_MILLIS set, GrpcService waits that long for
+ * the misses and otherwise answers with what it has: the cached scores, and for each
+ * missing item its last known score regardless of TTL or else a fallback. The fallback is
+ * the model's entry in DEGRADED_MODEL_DEFAULTS, given as model=score pairs separated by
+ * commas, or DEGRADED_DEFAULT_SCORE for every other model.
+ *
+ * Backend failures that mean TF Serving is slow, down or shedding load are answered the
+ * same way. The positions of every item answered from a fallback are listed in the
+ * response's degraded_indexes. Scores that arrive after the response has gone out are
+ * still cached.
+ */
+final class DegradedMode {
+    private static final Logger log = LoggerFactory.getLogger(DegradedMode.class);
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("degraded-mode-timer").setDaemon(true).build()
+    );
+
+    /*
+     * A budget running out fails the future on the timer thread, so whatever reacts to it
+     * would run there too: building the degraded response, reading last known scores and
+     * writing to the caller. Doing that for every degraded request on one thread makes the
+     * timer the bottleneck exactly when TF Serving is struggling, so it hops here first.
+     */
+    private static final ExecutorService FALLBACKS = ExecutionMode.newConfiguredExecutor("degraded-mode");
+
+    static Optional<DegradedMode> getEnvDegradedMode() {
+        var budget = System.getenv("DEGRADED_BUDGET_MILLIS");
+        log.warn("using DEGRADED_BUDGET_MILLIS={}", budget);
+        if (budget == null || budget.isBlank()) {
+            return Optional.empty();
+        }
+
+        var defaultScore = Optional.ofNullable(System.getenv("DEGRADED_DEFAULT_SCORE")).orElse("0.0");
+        log.warn("using DEGRADED_DEFAULT_SCORE={}", defaultScore);
+        var modelDefaults = Optional.ofNullable(System.getenv("DEGRADED_MODEL_DEFAULTS")).orElse("");
+        log.warn("using DEGRADED_MODEL_DEFAULTS={}", modelDefaults);
+
+        return Optional.of(new DegradedMode(
+                Long.parseLong(budget),
+                Double.parseDouble(defaultScore),
+                parseModelDefaults(modelDefaults)
+        ));
+    }
+
+    static Map<String, Double> parseModelDefaults(String modelDefaults) {
+        var defaults = new HashMap<String, Double>();
+        for (var pair : modelDefaults.split(",")) {
+            if (pair.isBlank()) {
+                continue;
+            }
+            var parts = pair.split("=", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("expected model=score in DEGRADED_MODEL_DEFAULTS, found " + pair);
+            }
+            defaults.put(parts[0].trim(), Double.parseDouble(parts[1].trim()));
+        }
+        return Map.copyOf(defaults);
+    }
+
+    private final long budgetMillis;
+    private final double defaultScore;
+    private final Map<String, Double> modelDefaults;
+    private final LongAdder degradedResponses = new LongAdder();
+    private final LongAdder degradedItems = new LongAdder();
+
+    DegradedMode(long budgetMillis, double defaultScore, Map<String, Double> modelDefaults) {
+        this.budgetMillis = budgetMillis;
+        this.defaultScore = defaultScore;
+        this.modelDefaults = modelDefaults;
+    }
+
+    /**
+     * @return scored, failed with a TimeoutException if it is not done within the budget.
+     *         scored itself is left running so late scores can still be cached.
+     */
+    <T> ListenableFuture<T> withinBudget(ListenableFuture<T> scored) {
+        return Futures.withTimeout(
+                Futures.nonCancellationPropagating(scored),
+                budgetMillis,
+                TimeUnit.MILLISECONDS,
+                TIMER
+        );
+    }
+
+    /**
+     * @return true when throwable says TF Serving is too slow or unavailable, rather than
+     *         anything being wrong with the request
+     */
+    boolean isDegradable(Throwable throwable) {
+        if (throwable instanceof TimeoutException) {
+            return true;
+        }
+        return switch (Status.fromThrowable(throwable).getCode()) {
+            case DEADLINE_EXCEEDED, UNAVAILABLE, RESOURCE_EXHAUSTED -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * @return where degraded responses are built and sent, never the budget's timer thread
+     */
+    Executor fallbackExecutor() {
+        return FALLBACKS;
+    }
+
+    double fallbackFor(String modelName) {
+        return modelDefaults.getOrDefault(modelName, defaultScore);
+    }
+
+    void recordDegraded(int items) {
+        degradedResponses.increment();
+        degradedItems.add(items);
+    }
+
+    long degradedResponses() {
+        return degradedResponses.sum();
+    }
+
+    long degradedItems() {
+        return degradedItems.sum();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * How the gRPC server and the TF Serving channel and RPC executors run their work, picked
+ * once at startup through EXECUTION_MODE.
+ *
+ * cached is what we always did: unbounded cached pools, which spawn a platform thread for
+ * every concurrent call and so can grow without limit under a latency spike from TF
+ * Serving. bounded caps each pool at EXECUTION_POOL_THREADS platform threads and queues
+ * the rest. virtual runs every task on its own virtual thread, which is cheap enough that
+ * a spike parks tasks instead of piling up platform threads.
+ *
+ * Virtual threads need a JDK 21 runtime, which is what the release image runs. The tree
+ * still builds for 17, so the executor is looked up reflectively, and on an older runtime
+ * virtual falls back to bounded with a warning rather than refusing to start. Each mode
+ * is selected purely by environment, so they can be benchmarked side by side against the
+ * same image.
+ */
+enum ExecutionMode {
+    CACHED,
+    BOUNDED,
+    VIRTUAL;
+
+    private static final Logger log = LoggerFactory.getLogger(ExecutionMode.class);
+
+    /*
+     * holder idiom, so the environment is read and logged once however many pools ask
+     */
+    private static final class Configured {
+        private static final ExecutionMode MODE = fromName(
+                Optional.ofNullable(System.getenv("EXECUTION_MODE")).orElse("cached")
+        );
+        private static final int POOL_THREADS = Integer.parseInt(
+                Optional
+                        .ofNullable(System.getenv("EXECUTION_POOL_THREADS"))
+                        .orElse(String.valueOf(2 * Runtime.getRuntime().availableProcessors()))
+        );
+
+        static {
+            log.warn("using EXECUTION_MODE={}", MODE);
+            log.warn("using EXECUTION_POOL_THREADS={}", POOL_THREADS);
+        }
+    }
+
+    /**
+     * @return the mode configured through EXECUTION_MODE
+     */
+    static ExecutionMode current() {
+        return Configured.MODE;
+    }
+
+    /**
+     * @return an executor for the configured mode, with threads named after name
+     */
+    static ExecutorService newConfiguredExecutor(String name) {
+        return current().newExecutor(name, Configured.POOL_THREADS);
+    }
+
+    static ExecutionMode fromName(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException exception) {
+            throw new IllegalArgumentException("unknown EXECUTION_MODE=" + name, exception);
+        }
+    }
+
+    /**
+     * @param threads size of the pool in bounded mode, ignored otherwise
+     */
+    ExecutorService newExecutor(String name, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("executor threads must be positive, found " + threads);
+        }
+        return switch (this) {
+            case CACHED -> Executors.newCachedThreadPool(platformThreads(name));
+            case BOUNDED -> Executors.newFixedThreadPool(threads, platformThreads(name));
+            case VIRTUAL -> newVirtualThreadPerTaskExecutor(name).orElseGet(() -> {
+                log.warn(
+                        "virtual threads need java 21, running {} with {} bounded threads on java {}",
+                        name, threads, Runtime.version().feature()
+                );
+                return BOUNDED.newExecutor(name, threads);
+            });
+        };
+    }
+
+    /*
+     * daemon threads, like grpc's own default executor, so a pool never holds the jvm open
+     */
+    private static ThreadFactory platformThreads(String name) {
+        return new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build();
+    }
+
+    /*
+     * Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory())
+     * spelled out through reflection so this compiles against java 17
+     */
+    private static Optional<ExecutorService> newVirtualThreadPerTaskExecutor(String name) {
+        try {
+            var builderClass = Class.forName("java.lang.Thread$Builder");
+            var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            var factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return Optional.of((ExecutorService) Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory));
+        } catch (ReflectiveOperationException exception) {
+            return Optional.empty();
+        }
+    }
+}
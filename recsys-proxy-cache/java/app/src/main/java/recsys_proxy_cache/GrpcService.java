@@ -22,12 +22,17 @@ package recsys_proxy_cache;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Deadline;
 import io.grpc.Status;
 import io.grpc.StatusException;
+import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeoutException;
 import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import recsys_proxy_cache.cache.ScoreCache;
@@ -35,8 +40,10 @@ import recsys_proxy_cache.protos.RecsysProxyCacheGrpc;
 import recsys_proxy_cache.protos.ScoreRequest;
 import recsys_proxy_cache.protos.ScoreResponse;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 
 class GrpcService extends RecsysProxyCacheGrpc.RecsysProxyCacheImplBase {
@@ -44,39 +51,127 @@ class GrpcService extends RecsysProxyCacheGrpc.RecsysProxyCacheImplBase {
 
     private final Supplier<ScoreCache.Builder> scoreCacheBuilder;
     private final Supplier<RecsysProxy.Builder> recsysProxyBuilder;
+    private final ToLongFunction<String> modelVersions;
+    private final InFlightScores inFlightScores = new InFlightScores();
+    private final Optional<ScoreBatcher> scoreBatcher = ScoreBatcher.getEnvBatcher();
+    private final Optional<DegradedMode> degradedMode;
 
     public GrpcService() {
         this(
                 ScoreCache.Builder::newBuilder,
-                RecsysProxy.Builder::newBuilder
+                RecsysProxy.Builder::newBuilder,
+                ModelVersions::current
         );
     }
 
     GrpcService(
         Supplier<ScoreCache.Builder> scoreCacheBuilder,
-        Supplier<RecsysProxy.Builder> recsysProxyBuilder) {
+        Supplier<RecsysProxy.Builder> recsysProxyBuilder,
+        ToLongFunction<String> modelVersions) {
+        this(scoreCacheBuilder, recsysProxyBuilder, modelVersions, DegradedMode.getEnvDegradedMode());
+    }
+
+    GrpcService(
+        Supplier<ScoreCache.Builder> scoreCacheBuilder,
+        Supplier<RecsysProxy.Builder> recsysProxyBuilder,
+        ToLongFunction<String> modelVersions,
+        Optional<DegradedMode> degradedMode) {
         this.recsysProxyBuilder = recsysProxyBuilder;
         this.scoreCacheBuilder = scoreCacheBuilder;
+        this.modelVersions = modelVersions;
+        this.degradedMode = degradedMode;
     }
 
+    /*
+     * Nothing on this path blocks. The cache lookup runs on the server thread, misses are
+     * sent to TF Serving through the future stub and the response is completed from its
+     * callback, so server threads are never parked on the backend and their count stays
+     * flat however slow TF Serving gets.
+     *
+     * TF Serving only gets as long as our caller is still waiting, and when the caller
+     * cancels or its deadline passes the future is cancelled, which cancels the request to
+     * TF Serving along with it.
+     */
     @Override
     public void getScores(ScoreRequest request, StreamObserver<ScoreResponse> responseObserver) {
+        var callContext = io.grpc.Context.current();
         try {
-            getScoresInner(request, responseObserver);
-        } catch (StatusException exception) {
-            log.error("grpc status exception occurred", exception);
-            responseObserver.onError(exception);
+            var future = getScoresAsync(request, callContext.getDeadline());
+            callContext.addListener(cancelled -> future.cancel(true), MoreExecutors.directExecutor());
+            Futures.addCallback(future, new FutureCallback<>() {
+                @Override
+                public void onSuccess(Scored scored) {
+                    responseObserver.onNext(scored.response());
+                    responseObserver.onCompleted();
+                    scored.newScores().ifPresent(scored.scoreCache()::setScores);
+                }
+
+                @Override
+                public void onFailure(Throwable throwable) {
+                    // nobody is left to tell
+                    if (!callContext.isCancelled()) {
+                        onScoringError(throwable, responseObserver);
+                    }
+                }
+            }, MoreExecutors.directExecutor());
         } catch (Exception exception) {
-            log.error("unexpected exception thrown during getScores method", exception);
-            responseObserver.onError(Status
-                    .INTERNAL
-                    .withCause(exception)
-                    .withDescription("unknown exception occurred!")
-                    .asException()
-            );
+            onScoringError(exception, responseObserver);
         }
     }
-    private void getScoresInner(ScoreRequest request, StreamObserver<ScoreResponse> responseObserver) throws StatusException, ExecutionException, InterruptedException, TimeoutException {
+
+    /**
+     * Logs what the serving path has been doing, called every minute by App alongside
+     * ScoreCache's own stats
+     */
+    void logStats() {
+        var tensorStats = PredictRequests.stats();
+        log.info(
+                "proxy stats contextTensorHitRate={} contextTensorEvictions={} coalesced={} "
+                        + "batchesSent={} callsBatched={} degradedResponses={} degradedItems={}",
+                tensorStats.hitRate(),
+                tensorStats.evictionCount(),
+                inFlightScores.coalescedCount(),
+                scoreBatcher.map(ScoreBatcher::batchesSent).orElse(0L),
+                scoreBatcher.map(ScoreBatcher::callsBatched).orElse(0L),
+                degradedMode.map(DegradedMode::degradedResponses).orElse(0L),
+                degradedMode.map(DegradedMode::degradedItems).orElse(0L)
+        );
+        RecsysProxy.logStats();
+    }
+
+    private static void onScoringError(Throwable throwable, StreamObserver<ScoreResponse> responseObserver) {
+        if (throwable instanceof StatusException || throwable instanceof StatusRuntimeException) {
+            /*
+             * calls shed by RecsysProxy's BackendGuard are expected under overload, and a
+             * stack trace for each would only add to the load
+             */
+            var code = Status.fromThrowable(throwable).getCode();
+            if (code == Status.Code.RESOURCE_EXHAUSTED || code == Status.Code.UNAVAILABLE) {
+                log.warn("failing getScores fast, status={}", Status.fromThrowable(throwable));
+            } else {
+                log.error("grpc status exception occurred", throwable);
+            }
+            responseObserver.onError(throwable);
+            return;
+        }
+        log.error("unexpected exception thrown during getScores method", throwable);
+        responseObserver.onError(Status
+                .INTERNAL
+                .withCause(throwable)
+                .withDescription("unknown exception occurred!")
+                .asException()
+        );
+    }
+
+    /**
+     * @param newScores scores fetched by this call, to be cached once it has responded
+     */
+    private record Scored(ScoreResponse response, ScoreCache scoreCache, Optional<Map<Long, Double>> newScores) {}
+
+    /**
+     * @param callerDeadline deadline of the inbound call, null when the caller set none
+     */
+    private ListenableFuture<Scored> getScoresAsync(ScoreRequest request, Deadline callerDeadline) throws StatusException {
         if (request.getItemsCount() <= 0) {
            throw Status
                    .INVALID_ARGUMENT
@@ -84,28 +179,116 @@ class GrpcService extends RecsysProxyCacheGrpc.RecsysProxyCacheImplBase {
                    .asException();
         }
         var items = Sets.newHashSet(request.getItemsList());
-        var scoreCache = scoreCacheBuilder.get()
+        var recsysProxy = recsysProxyBuilder.get()
                 .withModelName(request.getModelName())
                 .withContext(request.getContext())
+                .withCallerDeadline(callerDeadline)
                 .build();
 
-        var recsysProxy = recsysProxyBuilder.get()
+        var scoreCache = scoreCacheBuilder.get()
                 .withModelName(request.getModelName())
+                .withModelVersion(modelVersions.applyAsLong(request.getModelName()))
                 .withContext(request.getContext())
+                .withRescorer(recsysProxy::score)
                 .build();
 
         var itemsToScores = scoreCache.getScores(items);
         items.removeAll(itemsToScores.keySet());
 
-        var newScores = Optional.<Map<Long, Double>>empty();
-        if (items.size() > 0) {
-            newScores = Optional.of(recsysProxy.score(items));
-            itemsToScores.putAll(newScores.get());
+        if (items.isEmpty()) {
+            return Futures.immediateFuture(new Scored(
+                    toResponse(request, itemsToScores, Set.of()),
+                    scoreCache,
+                    Optional.empty()
+            ));
+        }
+
+        // items another call is already scoring are waited on rather than sent again
+        var fingerprint = scoreCache.fingerprint();
+        InFlightScores.Scorer scorer = scoreBatcher.isPresent()
+                ? missing -> scoreBatcher.get().score(fingerprint, missing, callerDeadline, recsysProxy::scoreAsync)
+                : recsysProxy::scoreAsync;
+        var backend = inFlightScores.score(fingerprint, items, scorer);
+        var scored = Futures.transformAsync(backend, result -> {
+            // a copy, a degraded response may be reading the cached scores meanwhile
+            var allScores = new HashMap<>(itemsToScores);
+            allScores.putAll(result.scores());
+            return Futures.immediateFuture(new Scored(
+                    toResponse(request, allScores, Set.of()),
+                    scoreCache,
+                    Optional.of(result.scored())
+            ));
+        }, MoreExecutors.directExecutor());
+        if (degradedMode.isEmpty()) {
+            return scored;
+        }
+
+        var mode = degradedMode.get();
+        var answered = Futures.catchingAsync(mode.withinBudget(scored), Throwable.class, throwable -> {
+            if (!mode.isDegradable(throwable)) {
+                return Futures.immediateFailedFuture(throwable);
+            }
+            // scores TF Serving still comes back with are cached all the same
+            Futures.addCallback(backend, new FutureCallback<>() {
+                @Override
+                public void onSuccess(InFlightScores.Result result) {
+                    scoreCache.setScores(result.scored());
+                }
+
+                @Override
+                public void onFailure(Throwable ignored) {}
+            }, MoreExecutors.directExecutor());
+            return Futures.immediateFuture(degraded(request, scoreCache, itemsToScores, items, mode));
+        }, mode.fallbackExecutor());
+        // the budget keeps scored from being cancelled with the response, so pass it on
+        answered.addListener(() -> {
+            if (answered.isCancelled()) {
+                scored.cancel(true);
+            }
+        }, MoreExecutors.directExecutor());
+        return answered;
+    }
+
+    /*
+     * answers the items TF Serving did not score in time from their last known score,
+     * however old, and otherwise from the model's fallback score
+     */
+    private static Scored degraded(
+            ScoreRequest request,
+            ScoreCache scoreCache,
+            Map<Long, Double> cachedScores,
+            Set<Long> missing,
+            DegradedMode mode
+    ) throws StatusException {
+        var allScores = new HashMap<>(cachedScores);
+        var lastKnown = scoreCache.getLastKnownScores(missing);
+        var fallback = mode.fallbackFor(request.getModelName());
+        for (var item : missing) {
+            allScores.put(item, lastKnown.getOrDefault(item, fallback));
         }
+        mode.recordDegraded(missing.size());
+        log.warn(
+                "serving degraded scores for model={} missing={} lastKnown={}",
+                request.getModelName(), missing.size(), lastKnown.size()
+        );
+        return new Scored(toResponse(request, allScores, missing), scoreCache, Optional.empty());
+    }
 
+    /**
+     * @param degradedItems items whose score is a fallback, marked in degraded_indexes
+     */
+    private static ScoreResponse toResponse(
+            ScoreRequest request,
+            Map<Long, Double> itemsToScores,
+            Set<Long> degradedItems
+    ) throws StatusException {
         var missingItems = 0;
-        var scoresList = Lists.<Double>newArrayListWithExpectedSize(items.size());
+        var scoresList = Lists.<Double>newArrayListWithExpectedSize(request.getItemsCount());
+        var degradedIndexes = Lists.<Integer>newArrayListWithExpectedSize(degradedItems.size());
         for (var item : request.getItemsList()) {
+            if (degradedItems.contains(item)) {
+                degradedIndexes.add(scoresList.size());
+            }
             if (!itemsToScores.containsKey(item)) {
                 log.warn("unexpected missing score for item=%s".formatted(item));
                 missingItems += 1;
@@ -132,13 +315,10 @@ class GrpcService extends RecsysProxyCacheGrpc.RecsysProxyCacheImplBase {
             throw Status.INTERNAL.withDescription(msg).asException();
         }
 
-        var scoreResponse = ScoreResponse
+        return ScoreResponse
                 .newBuilder()
                 .addAllScores(scoresList)
+                .addAllDegradedIndexes(degradedIndexes)
                 .build();
-        responseObserver.onNext(scoreResponse);
-        responseObserver.onCompleted();
-
-        newScores.ifPresent(scoreCache::setScores);
     }
 }
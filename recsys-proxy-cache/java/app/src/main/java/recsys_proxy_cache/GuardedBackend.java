@@ -0,0 +1,127 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Deadline;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import recsys_proxy_cache.protos.Context;
+
+/**
+ * Calls another ScoringBackend in chunks of at most maxItemsPerCall items, every call
+ * through the backend's BackendGuard and Hedger when they are enabled. RecsysProxy puts
+ * one in front of whichever backend serves a model.
+ *
+ * Chunks go out concurrently and are merged back into a single map once they are all in.
+ * Any failed chunk fails the lot, like a failed single call would, and cancels the chunks
+ * still running.
+ */
+final class GuardedBackend implements ScoringBackend {
+    private final ScoringBackend backend;
+    private final int maxItemsPerCall;
+    private final Optional<Hedger> hedger;
+    private final Optional<BackendGuard> guard;
+    private final int deadlineMillis;
+
+    /**
+     * @param maxItemsPerCall the most items sent in one call, 0 for no limit
+     * @param deadlineMillis RECSYS_PROXY_TIMEOUT, the deadline calls get when the caller
+     *        does not cut it short
+     */
+    GuardedBackend(
+            ScoringBackend backend,
+            int maxItemsPerCall,
+            Optional<Hedger> hedger,
+            Optional<BackendGuard> guard,
+            int deadlineMillis
+    ) {
+        this.backend = backend;
+        this.maxItemsPerCall = maxItemsPerCall;
+        this.hedger = hedger;
+        this.guard = guard;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    @Override
+    public ListenableFuture<Map<Long, Double>> score(
+            String modelName,
+            Context context,
+            Collection<Long> items,
+            Deadline deadline
+    ) {
+        // RecsysProxy set the deadline just now, anything over a millisecond short was the caller's doing
+        var callerBound = deadline.timeRemaining(TimeUnit.MILLISECONDS) < deadlineMillis - 1;
+        if (maxItemsPerCall <= 0 || items.size() <= maxItemsPerCall) {
+            return call(modelName, context, items, deadline, callerBound);
+        }
+
+        var chunks = new ArrayList<ListenableFuture<Map<Long, Double>>>();
+        for (var chunk : Lists.partition(List.copyOf(items), maxItemsPerCall)) {
+            chunks.add(call(modelName, context, chunk, deadline, callerBound));
+        }
+        ListenableFuture<Map<Long, Double>> merged = Futures.whenAllSucceed(chunks).call(() -> {
+            var scores = Maps.<Long, Double>newHashMapWithExpectedSize(items.size());
+            for (var chunk : chunks) {
+                scores.putAll(Futures.getDone(chunk));
+            }
+            return scores;
+        }, MoreExecutors.directExecutor());
+        Futures.addCallback(merged, new FutureCallback<Map<Long, Double>>() {
+            @Override
+            public void onSuccess(Map<Long, Double> scores) {}
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                chunks.forEach(chunk -> chunk.cancel(true));
+            }
+        }, MoreExecutors.directExecutor());
+        return merged;
+    }
+
+    /*
+     * every attempt goes through the guard, which fails it fast while the backend is
+     * overloaded or down. With hedging on, a slow call is raced against a copy.
+     */
+    private ListenableFuture<Map<Long, Double>> call(
+            String modelName,
+            Context context,
+            Collection<Long> items,
+            Deadline deadline,
+            boolean callerBound
+    ) {
+        Supplier<ListenableFuture<Map<Long, Double>>> send = () -> backend.score(modelName, context, items, deadline);
+        Supplier<ListenableFuture<Map<Long, Double>>> guarded = guard.isPresent()
+                ? () -> guard.get().call(send, callerBound)
+                : send;
+        return hedger.map(h -> h.call(guarded)).orElseGet(guarded);
+    }
+}
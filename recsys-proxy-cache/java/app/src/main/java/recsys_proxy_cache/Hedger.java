@@ -0,0 +1,253 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends a second copy of a slow call and takes whichever answer arrives first.
+ *
+ * Our GetScores p99 is set by the odd slow TF Serving replica rather than by the median
+ * call. When a call has not completed after the hedge delay a duplicate goes out, which the
+ * channel's balancer sends to another replica, and the first success wins while the
+ * other call is cancelled. A call only fails once every attempt it made has failed.
+ *
+ * The delay is either fixed or a percentile of recently observed call latencies, so with
+ * p95 roughly one call in twenty is hedged. Hedges are also paid for out of a budget
+ * refilled by every call, so that a slow backend does not see its traffic doubled: they
+ * never exceed budgetPercent of calls, give or take a small burst.
+ */
+final class Hedger {
+    private static final Logger log = LoggerFactory.getLogger(Hedger.class);
+
+    /*
+     * one timer for every hedger, it only ever hands the hedge off to the channel
+     */
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("hedge-timer").setDaemon(true).build()
+    );
+
+    // latencies kept for the percentile, and how many calls pass between recomputing it
+    private static final int SAMPLES = 1024;
+    private static final int RECOMPUTE_EVERY = 128;
+
+    /*
+     * the budget is kept in hundredths of a hedge, each call adds budgetPercent of them
+     * and each hedge takes 100. At most MAX_BURST hedges can be saved up.
+     */
+    private static final long HEDGE_COST = 100;
+    private static final long MAX_BURST = 10;
+
+    /**
+     * RECSYS_HEDGE_DELAY is either a number of milliseconds or a percentile such as p95.
+     * Hedging is off when it is unset.
+     *
+     * @return the hedger configured through the environment, if any
+     */
+    static Optional<Hedger> getEnvHedger() {
+        var delay = System.getenv("RECSYS_HEDGE_DELAY");
+        log.warn("using RECSYS_HEDGE_DELAY={}", delay);
+        if (delay == null || delay.isBlank()) {
+            return Optional.empty();
+        }
+
+        var budgetPercent = Optional.ofNullable(System.getenv("RECSYS_HEDGE_BUDGET_PERCENT")).orElse("5");
+        log.warn("using RECSYS_HEDGE_BUDGET_PERCENT={}", budgetPercent);
+
+        delay = delay.trim().toLowerCase();
+        if (delay.startsWith("p")) {
+            return Optional.of(new Hedger(0, Double.parseDouble(delay.substring(1)), Integer.parseInt(budgetPercent)));
+        }
+        return Optional.of(new Hedger(Long.parseLong(delay), 0, Integer.parseInt(budgetPercent)));
+    }
+
+    private final long fixedDelayMillis;
+    private final double percentile;
+    private final int budgetPercent;
+    private final long[] latencies = new long[SAMPLES];
+    private final AtomicLong samples = new AtomicLong();
+    private final AtomicLong budget;
+    private final LongAdder hedgedCount = new LongAdder();
+    private final LongAdder hedgeWonCount = new LongAdder();
+
+    // no hedging until enough latencies are seen to know what slow is
+    private volatile long observedDelayMillis = Long.MAX_VALUE;
+
+    /**
+     * @param fixedDelayMillis wait before hedging, or 0 to use percentile instead
+     * @param percentile percentile of observed latencies to wait, between 0 and 100
+     * @param budgetPercent the most calls, in percent, that may be hedged
+     */
+    Hedger(long fixedDelayMillis, double percentile, int budgetPercent) {
+        if (fixedDelayMillis <= 0 && (percentile <= 0 || percentile >= 100)) {
+            throw new IllegalArgumentException("hedge percentile must be between 0 and 100, found " + percentile);
+        }
+        if (budgetPercent < 0 || budgetPercent > 100) {
+            throw new IllegalArgumentException("hedge budget must be between 0 and 100 percent, found " + budgetPercent);
+        }
+        this.fixedDelayMillis = fixedDelayMillis;
+        this.percentile = percentile;
+        this.budgetPercent = budgetPercent;
+        this.budget = new AtomicLong(budgetPercent > 0 ? HEDGE_COST : 0);
+    }
+
+    /**
+     * @param attempt starts one attempt of the call, invoked a second time for the hedge
+     * @return the result of whichever attempt succeeds first. Cancelling it cancels
+     *         every attempt.
+     */
+    <T> ListenableFuture<T> call(Supplier<ListenableFuture<T>> attempt) {
+        budget.getAndUpdate(tokens -> Math.min(MAX_BURST * HEDGE_COST, tokens + budgetPercent));
+        var hedged = new Hedged<T>(attempt, System.nanoTime());
+        hedged.start();
+
+        var delay = delayMillis();
+        if (delay != Long.MAX_VALUE) {
+            var timer = TIMER.schedule(hedged::hedge, delay, TimeUnit.MILLISECONDS);
+            hedged.result.addListener(() -> timer.cancel(false), MoreExecutors.directExecutor());
+        }
+        return hedged.result;
+    }
+
+    long hedgedCount() {
+        return hedgedCount.sum();
+    }
+
+    long hedgeWonCount() {
+        return hedgeWonCount.sum();
+    }
+
+    long delayMillis() {
+        return fixedDelayMillis > 0 ? fixedDelayMillis : observedDelayMillis;
+    }
+
+    private boolean tryTakeBudget() {
+        return budget.getAndUpdate(tokens -> tokens >= HEDGE_COST ? tokens - HEDGE_COST : tokens) >= HEDGE_COST;
+    }
+
+    /*
+     * latencies go into a ring and the percentile is recomputed from it every so often, so
+     * the delay follows the backend without sorting on every call
+     */
+    private void recordLatency(long millis) {
+        if (fixedDelayMillis > 0) {
+            return;
+        }
+        var sample = samples.getAndIncrement();
+        latencies[(int) (sample % SAMPLES)] = millis;
+        if ((sample + 1) % RECOMPUTE_EVERY == 0 && sample + 1 >= SAMPLES / 4) {
+            var sorted = Arrays.copyOf(latencies, (int) Math.min(SAMPLES, sample + 1));
+            Arrays.sort(sorted);
+            var index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            observedDelayMillis = Math.max(1, sorted[Math.max(0, index)]);
+        }
+    }
+
+    /**
+     * The attempts of a single call and the future they race to complete
+     */
+    private final class Hedged<T> {
+        private final SettableFuture<T> result = SettableFuture.create();
+        private final List<ListenableFuture<T>> attempts = new CopyOnWriteArrayList<>();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicBoolean won = new AtomicBoolean();
+        private final Supplier<ListenableFuture<T>> attempt;
+        private final long startedAtNanos;
+
+        Hedged(Supplier<ListenableFuture<T>> attempt, long startedAtNanos) {
+            this.attempt = attempt;
+            this.startedAtNanos = startedAtNanos;
+            result.addListener(() -> {
+                // the losing attempt, or every attempt when the caller gave up
+                for (var started : attempts) {
+                    started.cancel(true);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+
+        void start() {
+            send(false);
+        }
+
+        void hedge() {
+            if (result.isDone() || !tryTakeBudget()) {
+                return;
+            }
+            hedgedCount.increment();
+            send(true);
+        }
+
+        private void send(boolean isHedge) {
+            pending.incrementAndGet();
+            ListenableFuture<T> sent;
+            try {
+                sent = attempt.get();
+            } catch (RuntimeException exception) {
+                sent = Futures.immediateFailedFuture(exception);
+            }
+            attempts.add(sent);
+            if (result.isDone()) {
+                sent.cancel(true);
+            }
+
+            Futures.addCallback(sent, new FutureCallback<T>() {
+                @Override
+                public void onSuccess(T value) {
+                    // claimed before completing, so the stats are in by the time callers look
+                    if (won.compareAndSet(false, true)) {
+                        recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAtNanos));
+                        if (isHedge) {
+                            hedgeWonCount.increment();
+                        }
+                        result.set(value);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable throwable) {
+                    // a hedge may still be on its way, only the last attempt decides
+                    if (pending.decrementAndGet() == 0) {
+                        result.setException(throwable);
+                    }
+                }
+            }, MoreExecutors.directExecutor());
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import recsys_proxy_cache.cache.ScoreKey;
+
+/**
+ * Registry of items currently being scored, keyed by context fingerprint and item.
+ *
+ * The first request to miss on an item owns it until its scores come back. Requests
+ * missing on an owned item attach to the pending score and only send the backend the
+ * items nobody is scoring yet.
+ *
+ * Nothing here blocks. Owners send their request before anything is waited on, so
+ * requests attached to each other's items never deadlock, and attached scores complete
+ * when the owner's request does. A caller cancelling its call cancels its request unless
+ * another request has attached to any of its items, which relies on RecsysProxy starting
+ * backend calls outside the caller's grpc Context.
+ */
+class InFlightScores {
+    @FunctionalInterface
+    interface Scorer {
+        ListenableFuture<Map<Long, Double>> score(Collection<Long> items);
+    }
+
+    /**
+     * @param scores the score of every item that has one
+     * @param scored only the scores this request fetched itself, which are the ones it
+     *        should cache. Scores of attached items are cached by their owner.
+     */
+    record Result(Map<Long, Double> scores, Map<Long, Double> scored) {}
+
+    /**
+     * @param attachers requests attached to any item of the owning request, shared by all
+     *        of its items
+     */
+    private record Pending(SettableFuture<Double> score, AtomicInteger attachers) {}
+
+    private final ConcurrentHashMap<ScoreKey, Pending> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+
+    ListenableFuture<Result> score(long context, Collection<Long> items, Scorer scorer) {
+        var owned = Maps.<Long, Pending>newHashMapWithExpectedSize(items.size());
+        var attachedItems = new ArrayList<Long>();
+        var attached = new ArrayList<ListenableFuture<Double>>();
+        var attachers = new AtomicInteger();
+        for (var item : items) {
+            var mine = new Pending(SettableFuture.create(), attachers);
+            /*
+             * attaching happens inside compute, so once an owner has removed its items it
+             * knows nobody else can still attach to them
+             */
+            var pending = inFlight.compute(new ScoreKey(context, item), (key, current) -> {
+                if (current == null) {
+                    return mine;
+                }
+                current.attachers().incrementAndGet();
+                return current;
+            });
+            if (pending == mine) {
+                owned.put(item, mine);
+            } else {
+                attachedItems.add(item);
+                // so that a caller cancelling its own call can never cancel the owner's
+                attached.add(Futures.nonCancellationPropagating(pending.score()));
+            }
+        }
+        coalesced.add(attached.size());
+
+        var scored = owned.isEmpty()
+                ? Futures.immediateFuture(Map.<Long, Double>of())
+                : scoreOwned(context, owned, attachers, scorer);
+
+        var all = new ArrayList<ListenableFuture<?>>(attached);
+        all.add(scored);
+        return Futures.whenAllSucceed(all).call(() -> {
+            var ownScores = Futures.getDone(scored);
+            var scores = Maps.<Long, Double>newHashMapWithExpectedSize(items.size());
+            scores.putAll(ownScores);
+            for (int i = 0; i < attached.size(); i++) {
+                var score = Futures.getDone(attached.get(i));
+                // the owner got no score for it either, which GrpcService reports as missing
+                if (score != null) {
+                    scores.put(attachedItems.get(i), score);
+                }
+            }
+            return new Result(scores, ownScores);
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * @return the number of items that were attached to another request's scoring
+     */
+    long coalescedCount() {
+        return coalesced.sum();
+    }
+
+    private ListenableFuture<Map<Long, Double>> scoreOwned(
+            long context,
+            Map<Long, Pending> owned,
+            AtomicInteger attachers,
+            Scorer scorer
+    ) {
+        ListenableFuture<Map<Long, Double>> sent;
+        try {
+            sent = scorer.score(List.copyOf(owned.keySet()));
+        } catch (RuntimeException exception) {
+            sent = Futures.immediateFailedFuture(exception);
+        }
+        var scored = sent;
+
+        scored.addListener(() -> {
+            try {
+                var scores = Futures.getDone(scored);
+                for (var entry : owned.entrySet()) {
+                    entry.getValue().score().set(scores.get(entry.getKey()));
+                }
+            } catch (Exception exception) {
+                var cause = exception.getCause() == null ? exception : exception.getCause();
+                for (var pending : owned.values()) {
+                    pending.score().setException(cause);
+                }
+            } finally {
+                release(context, owned);
+            }
+        }, MoreExecutors.directExecutor());
+
+        var forOwner = Futures.nonCancellationPropagating(scored);
+        forOwner.addListener(() -> {
+            if (forOwner.isCancelled()) {
+                release(context, owned);
+                if (attachers.get() == 0) {
+                    scored.cancel(true);
+                }
+            }
+        }, MoreExecutors.directExecutor());
+        return forOwner;
+    }
+
+    private void release(long context, Map<Long, Pending> owned) {
+        for (var entry : owned.entrySet()) {
+            inFlight.remove(new ScoreKey(context, entry.getKey()), entry.getValue());
+        }
+    }
+}
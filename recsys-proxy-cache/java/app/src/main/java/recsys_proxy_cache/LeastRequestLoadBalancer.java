@@ -0,0 +1,232 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import io.grpc.ClientStreamTracer;
+import io.grpc.ConnectivityState;
+import io.grpc.ConnectivityStateInfo;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.LoadBalancerProvider;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends every call to whichever of two randomly picked ready backends has fewer calls
+ * outstanding from this proxy.
+ *
+ * pick_first put the whole proxy on a single TF Serving replica, and round robin keeps
+ * handing a slow replica its full share. Outstanding calls pile up on a slow replica, so
+ * comparing two random choices by that count routes around it, without the herding onto a
+ * single "best" backend that always picking the global minimum causes.
+ *
+ * Counts are kept per backend by a stream tracer, so they include hedges and every chunk
+ * of a split request.
+ */
+class LeastRequestLoadBalancer extends LoadBalancer {
+    static final String POLICY_NAME = "least_request";
+
+    private final Helper helper;
+    private final Map<EquivalentAddressGroup, Backend> backends = new HashMap<>();
+    private Status lastError = Status.UNAVAILABLE.withDescription("no backend has been resolved");
+    private ConnectivityState currentState;
+
+    LeastRequestLoadBalancer(Helper helper) {
+        this.helper = helper;
+    }
+
+    @Override
+    public void handleResolvedAddresses(ResolvedAddresses resolvedAddresses) {
+        var resolved = new HashSet<EquivalentAddressGroup>();
+        for (var address : resolvedAddresses.getAddresses()) {
+            // attributes differ between resolutions, only the socket addresses identify a backend
+            var stripped = new EquivalentAddressGroup(address.getAddresses());
+            resolved.add(stripped);
+            if (!backends.containsKey(stripped)) {
+                var backend = new Backend(helper.createSubchannel(CreateSubchannelArgs
+                        .newBuilder()
+                        .setAddresses(stripped)
+                        .build()
+                ));
+                backends.put(stripped, backend);
+                backend.subchannel.start(stateInfo -> processStateChange(backend, stateInfo));
+                backend.subchannel.requestConnection();
+            }
+        }
+
+        var removed = backends.entrySet().iterator();
+        while (removed.hasNext()) {
+            var entry = removed.next();
+            if (!resolved.contains(entry.getKey())) {
+                entry.getValue().subchannel.shutdown();
+                removed.remove();
+            }
+        }
+        updateBalancingState();
+    }
+
+    @Override
+    public void handleNameResolutionError(Status error) {
+        lastError = error;
+        if (currentState != ConnectivityState.READY) {
+            updateState(ConnectivityState.TRANSIENT_FAILURE, new Picker(List.of(), error));
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        for (var backend : backends.values()) {
+            backend.subchannel.shutdown();
+        }
+        backends.clear();
+    }
+
+    private void processStateChange(Backend backend, ConnectivityStateInfo stateInfo) {
+        // removed backends are no longer in backends, so what they report is moot
+        if (stateInfo.getState() == ConnectivityState.SHUTDOWN) {
+            return;
+        }
+        if (stateInfo.getState() == ConnectivityState.IDLE) {
+            backend.subchannel.requestConnection();
+        }
+        if (stateInfo.getState() == ConnectivityState.TRANSIENT_FAILURE) {
+            lastError = stateInfo.getStatus();
+        }
+        backend.state = stateInfo.getState();
+        updateBalancingState();
+    }
+
+    private void updateBalancingState() {
+        var ready = new ArrayList<Backend>();
+        var connecting = false;
+        for (var backend : backends.values()) {
+            if (backend.state == ConnectivityState.READY) {
+                ready.add(backend);
+            } else if (backend.state == ConnectivityState.CONNECTING || backend.state == ConnectivityState.IDLE) {
+                connecting = true;
+            }
+        }
+
+        if (!ready.isEmpty()) {
+            updateState(ConnectivityState.READY, new Picker(ready, Status.OK));
+        } else if (connecting) {
+            updateState(ConnectivityState.CONNECTING, new Picker(List.of(), Status.OK));
+        } else {
+            updateState(ConnectivityState.TRANSIENT_FAILURE, new Picker(List.of(), lastError));
+        }
+    }
+
+    private void updateState(ConnectivityState state, Picker picker) {
+        currentState = state;
+        helper.updateBalancingState(state, picker);
+    }
+
+    /**
+     * A subchannel and the number of calls outstanding on it
+     */
+    static final class Backend {
+        final Subchannel subchannel;
+        final AtomicInteger outstanding = new AtomicInteger();
+        private ConnectivityState state = ConnectivityState.IDLE;
+
+        private final ClientStreamTracer.Factory tracerFactory = new ClientStreamTracer.Factory() {
+            @Override
+            public ClientStreamTracer newClientStreamTracer(ClientStreamTracer.StreamInfo info, Metadata headers) {
+                outstanding.incrementAndGet();
+                return new ClientStreamTracer() {
+                    @Override
+                    public void streamClosed(Status status) {
+                        outstanding.decrementAndGet();
+                    }
+                };
+            }
+        };
+
+        Backend(Subchannel subchannel) {
+            this.subchannel = subchannel;
+        }
+    }
+
+    /**
+     * Power of two choices over the ready backends. With none ready calls either wait,
+     * or fail with the last error when there is one.
+     */
+    static final class Picker extends SubchannelPicker {
+        private final List<Backend> ready;
+        private final Status error;
+
+        Picker(List<Backend> ready, Status error) {
+            this.ready = ready;
+            this.error = error;
+        }
+
+        @Override
+        public PickResult pickSubchannel(PickSubchannelArgs args) {
+            if (ready.isEmpty()) {
+                return error.isOk() ? PickResult.withNoResult() : PickResult.withError(error);
+            }
+            var picked = pick();
+            return PickResult.withSubchannel(picked.subchannel, picked.tracerFactory);
+        }
+
+        Backend pick() {
+            if (ready.size() == 1) {
+                return ready.get(0);
+            }
+            var random = ThreadLocalRandom.current();
+            var first = random.nextInt(ready.size());
+            // a second index distinct from the first
+            var second = (first + 1 + random.nextInt(ready.size() - 1)) % ready.size();
+            var a = ready.get(first);
+            var b = ready.get(second);
+            return b.outstanding.get() < a.outstanding.get() ? b : a;
+        }
+    }
+
+    static final class Provider extends LoadBalancerProvider {
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public int getPriority() {
+            return 5;
+        }
+
+        @Override
+        public String getPolicyName() {
+            return POLICY_NAME;
+        }
+
+        @Override
+        public LoadBalancer newLoadBalancer(Helper helper) {
+            return new LeastRequestLoadBalancer(helper);
+        }
+    }
+}
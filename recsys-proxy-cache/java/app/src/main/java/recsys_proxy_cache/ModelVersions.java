@@ -0,0 +1,176 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.grpc.StatusRuntimeException;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tensorflow.serving.GetModelStatus.GetModelStatusRequest;
+import tensorflow.serving.GetModelStatus.ModelVersionStatus;
+import tensorflow.serving.Model.ModelSpec;
+import tensorflow.serving.ModelServiceGrpc;
+import tensorflow.serving.ModelServiceGrpc.ModelServiceBlockingStub;
+
+/**
+ * Tracks which version of each model TF Serving is currently serving.
+ *
+ * Cached scores used to be keyed by model name and context alone, so after TF Serving
+ * loaded a new version we kept serving the old version's scores until they went idle,
+ * which for hot keys was never. The serving version is now folded into the context
+ * fingerprint, so a version bump moves a model onto a fresh key space in one step and its
+ * old entries simply age out of the cache.
+ *
+ * Versions are looked up through ModelService.GetModelStatus the first time a model is
+ * requested, and then polled in the background every MODEL_VERSION_POLL_INTERVAL seconds.
+ * The newest AVAILABLE version wins, since that is the one TF Serving routes unpinned
+ * requests to. When the status cannot be fetched the last known version is kept.
+ *
+ * The first lookup happens on the poller thread too. Fetching it inline blocked the
+ * request thread for up to a second inside computeIfAbsent, and every other request for
+ * the model behind it, so until the first answer arrives a model reports UNKNOWN_VERSION
+ * and its scores are cached under that key space.
+ */
+class ModelVersions {
+    private static final Logger log = LoggerFactory.getLogger(ModelVersions.class);
+    private static final long STATUS_DEADLINE_MILLIS = 1000;
+
+    /**
+     * used before a model's version could ever be fetched, and for models TF Serving does
+     * not serve at all
+     */
+    static final long UNKNOWN_VERSION = 0L;
+
+    /*
+     * holder idiom, so that nothing polls TF Serving until the first real request
+     */
+    private static final class Shared {
+        private static final ModelVersions INSTANCE = start();
+
+        private static ModelVersions start() {
+            var interval = System.getenv("MODEL_VERSION_POLL_INTERVAL");
+            if (interval == null) {
+                interval = "10";
+            }
+            log.warn("using MODEL_VERSION_POLL_INTERVAL={}", interval);
+
+            var poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("model-version-poller")
+                    .setDaemon(true)
+                    .build()
+            );
+            var versions = new ModelVersions(
+                    () -> ModelServiceGrpc.newBlockingStub(RecsysProxy.getChannel()),
+                    poller
+            );
+            var seconds = Long.parseLong(interval);
+            poller.scheduleWithFixedDelay(versions::refresh, seconds, seconds, TimeUnit.SECONDS);
+            return versions;
+        }
+    }
+
+    /**
+     * @return the version of modelName currently served by TF Serving
+     */
+    static long current(String modelName) {
+        // random and stand in models never reach TF Serving, see ScoringBackends
+        if (!ScoringBackends.fromEnv().isTfServing(modelName)) {
+            return UNKNOWN_VERSION;
+        }
+        return Shared.INSTANCE.get(modelName);
+    }
+
+    private final Supplier<ModelServiceBlockingStub> stub;
+    private final Executor fetcher;
+    private final ConcurrentHashMap<String, Long> versions = new ConcurrentHashMap<>();
+
+    /**
+     * @param fetcher runs the first lookup of each model, never the calling thread
+     *                outside of tests
+     */
+    ModelVersions(Supplier<ModelServiceBlockingStub> stub, Executor fetcher) {
+        this.stub = stub;
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * @return the last known version of modelName, UNKNOWN_VERSION until the first lookup
+     * has answered
+     */
+    long get(String modelName) {
+        var version = versions.get(modelName);
+        if (version != null) {
+            return version;
+        }
+        if (versions.putIfAbsent(modelName, UNKNOWN_VERSION) == null) {
+            fetcher.execute(() -> refresh(modelName));
+        }
+        return versions.getOrDefault(modelName, UNKNOWN_VERSION);
+    }
+
+    /**
+     * Re-fetches the version of every model seen so far
+     */
+    void refresh() {
+        for (var modelName : versions.keySet()) {
+            refresh(modelName);
+        }
+    }
+
+    private void refresh(String modelName) {
+        fetch(modelName).ifPresent(version -> {
+            var previous = versions.put(modelName, version);
+            if (previous != null && previous != UNKNOWN_VERSION && !previous.equals(version)) {
+                log.warn(
+                        "model={} now serving version={}, previously version={}. cached scores for the old version will age out",
+                        modelName, version, previous
+                );
+            }
+        });
+    }
+
+    private Optional<Long> fetch(String modelName) {
+        try {
+            var response = stub.get()
+                    .withDeadlineAfter(STATUS_DEADLINE_MILLIS, TimeUnit.MILLISECONDS)
+                    .getModelStatus(GetModelStatusRequest
+                            .newBuilder()
+                            .setModelSpec(ModelSpec.newBuilder().setName(modelName))
+                            .build()
+                    );
+            return response
+                    .getModelVersionStatusList()
+                    .stream()
+                    .filter(status -> status.getState() == ModelVersionStatus.State.AVAILABLE)
+                    .map(ModelVersionStatus::getVersion)
+                    .max(Long::compare);
+        } catch (StatusRuntimeException exception) {
+            log.warn("failed to fetch model status for model={} status={}", modelName, exception.getStatus());
+            return Optional.empty();
+        }
+    }
+}
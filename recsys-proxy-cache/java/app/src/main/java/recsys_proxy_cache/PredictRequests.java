@@ -0,0 +1,143 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.google.protobuf.UnsafeByteOperations;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tensorflow.framework.DataType;
+import org.tensorflow.framework.TensorProto;
+import org.tensorflow.framework.TensorShapeProto;
+import org.tensorflow.framework.TensorShapeProto.Dim;
+import recsys_proxy_cache.protos.Context;
+import recsys_proxy_cache.protos.Values;
+import tensorflow.serving.Model;
+import tensorflow.serving.Predict.PredictRequest;
+
+/**
+ * Builds the PredictRequests sent to TF Serving.
+ *
+ * Each context field's string tensor is memoized, keyed by the field name and its values,
+ * so a request only assembles already built tensors and adds its item ids. The cache is
+ * size bounded and hit rates are logged by GrpcService.logStats. Item ids go in
+ * tensor_content, little endian, written straight from a long[].
+ */
+final class PredictRequests {
+    private static final Logger log = LoggerFactory.getLogger(PredictRequests.class);
+
+    // item id is hardcoded here and expected to be present in all models
+    static final String ITEM_ID_INPUT = "item_id";
+
+    private static final Cache<Key, TensorProto> tensors = Caffeine
+            .newBuilder()
+            .maximumSize(getEnvMaximumSize())
+            .recordStats()
+            .build();
+
+    private record Key(String field, Values values) {}
+
+    private PredictRequests() {}
+
+    private static long getEnvMaximumSize() {
+        var maximumSize = Optional.ofNullable(System.getenv("CONTEXT_TENSOR_CACHE_SIZE")).orElse("10000");
+        log.warn("using CONTEXT_TENSOR_CACHE_SIZE={}", maximumSize);
+        return Long.parseLong(maximumSize);
+    }
+
+    static PredictRequest predictRequest(String modelName, Context context, long[] items) {
+        var request = PredictRequest
+                .newBuilder()
+                .setModelSpec(Model.ModelSpec.newBuilder().setName(modelName));
+
+        // process and add context
+        for (var entry : context.getFieldsMap().entrySet()) {
+            request.putInputs(
+                    entry.getKey(),
+                    tensors.get(new Key(entry.getKey(), entry.getValue()), key -> contextTensor(key.values()))
+            );
+        }
+        return request
+                .putInputs(ITEM_ID_INPUT, itemTensor(items))
+                .build();
+    }
+
+    /**
+     * @return cumulative hit and miss counts of the memoized context tensors
+     */
+    static CacheStats stats() {
+        return tensors.stats();
+    }
+
+    static TensorProto itemTensor(long[] items) {
+        var content = ByteBuffer.allocate(items.length * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        content.asLongBuffer().put(items);
+        return TensorProto
+                .newBuilder()
+                .setDtype(DataType.DT_INT64)
+                .setTensorShape(TensorShapeProto
+                        .newBuilder()
+                        .addDim(Dim.newBuilder().setSize(1))
+                        .addDim(Dim.newBuilder().setSize(items.length))
+                )
+                // the buffer is never touched again, so it can back the ByteString as is
+                .setTensorContent(UnsafeByteOperations.unsafeWrap(content))
+                .build();
+    }
+
+    /**
+     * @return the item ids of a request built here
+     */
+    static long[] itemIds(PredictRequest request) {
+        var content = request
+                .getInputsOrThrow(ITEM_ID_INPUT)
+                .getTensorContent()
+                .asReadOnlyByteBuffer()
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .asLongBuffer();
+        var items = new long[content.remaining()];
+        content.get(items);
+        return items;
+    }
+
+    private static TensorProto contextTensor(Values values) {
+        return TensorProto
+                .newBuilder()
+                .setDtype(DataType.DT_STRING)
+                .setTensorShape(TensorShapeProto
+                        .newBuilder()
+                        .addDim(Dim
+                                .newBuilder()
+                                .setSize(values.getValuesCount())
+                        )
+                )
+                .addAllStringVal(values
+                        .getValuesList()
+                        .asByteStringList()
+                )
+                .build();
+    }
+}
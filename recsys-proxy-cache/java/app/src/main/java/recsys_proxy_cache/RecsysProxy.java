@@ -20,45 +20,39 @@
  */
 package recsys_proxy_cache;
 
-import com.google.common.collect.Maps;
-import com.google.common.collect.Streams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import io.grpc.Channel;
+import io.grpc.Deadline;
 import io.grpc.EquivalentAddressGroup;
-import io.grpc.ManagedChannel;
+import io.grpc.LoadBalancerRegistry;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.NameResolver;
+import io.grpc.NameResolverRegistry;
 import io.grpc.Status;
 import io.grpc.StatusException;
 import io.grpc.StatusRuntimeException;
-import java.util.AbstractMap;
-import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Optional;
 import java.util.Set;
 import java.util.UnknownFormatConversionException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.tensorflow.framework.DataType;
-import org.tensorflow.framework.TensorProto;
-import org.tensorflow.framework.TensorShapeProto;
-import org.tensorflow.framework.TensorShapeProto.Dim;
 import recsys_proxy_cache.protos.Context;
-import tensorflow.serving.Model;
-import tensorflow.serving.Predict;
-import tensorflow.serving.Predict.PredictRequest;
 import tensorflow.serving.PredictionServiceGrpc;
 
 import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.random.RandomGenerator;
 
 import java.net.InetSocketAddress;
 import java.net.URI;
@@ -71,15 +65,64 @@ import tensorflow.serving.PredictionServiceGrpc.PredictionServiceFutureStub;
 
 public class RecsysProxy {
     private static final Logger log = LoggerFactory.getLogger(RecsysProxy.class.getName());
-    private static final RandomGenerator random = RandomGenerator.getDefault();
-    private static final ExecutorService CHANNEL_THREADPOOL = Executors.newCachedThreadPool();
-    private static final ExecutorService RPC_THREADPOOL = Executors.newCachedThreadPool();
+    // cached, bounded or virtual depending on EXECUTION_MODE, see ExecutionMode
+    private static final ExecutorService CHANNEL_THREADPOOL = ExecutionMode.newConfiguredExecutor("tfserving-channel");
+    private static final ExecutorService RPC_THREADPOOL = ExecutionMode.newConfiguredExecutor("tfserving-rpc");
     private static final ScheduledExecutorService REFRESH_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
     private static final String TARGET = RecsysProxy.getEnvTarget();
-    private static final int DEADLINE = RecsysProxy.getEnvDeadline();
+    static final int DEADLINE = RecsysProxy.getEnvDeadline();
+    private static final int DEADLINE_MARGIN = RecsysProxy.getEnvDeadlineMargin();
+    private static final int MAX_ITEMS_PER_CALL = RecsysProxy.getEnvMaxItemsPerCall();
 
-    private static ManagedChannel CHANNEL;
-    private static PredictionServiceGrpc.PredictionServiceFutureStub TFSERVING_STUB;
+    /*
+     * a hedger and guard per backend, see ScoringBackends, so that stand in or random
+     * scores never move TF Serving's hedge delay or call limit
+     */
+    private static final Map<String, Optional<Hedger>> HEDGERS = new ConcurrentHashMap<>();
+    private static final Map<String, Optional<BackendGuard>> GUARDS = new ConcurrentHashMap<>();
+
+    private static final String LOAD_BALANCING_POLICY = RecsysProxy.getEnvLoadBalancingPolicy();
+
+    /*
+     * atgswarm://host:port/path targets are resolved through the lookaside load balancer,
+     * anything else through grpc's own resolvers, e.g. DNS
+     */
+    static {
+        NameResolverRegistry.getDefaultRegistry().register(AtgSwarmNameResolverProvider.getEnvProvider(CHANNEL_THREADPOOL));
+        LoadBalancerRegistry.getDefaultRegistry().register(new LeastRequestLoadBalancer.Provider());
+    }
+
+    private static final int CHANNEL_POOL_SIZE = RecsysProxy.getEnvChannelPoolSize();
+    private static ChannelPool CHANNEL_POOL;
+
+    /*
+     * time kept back from the caller's deadline, for the response to make it back to them
+     */
+    private static int getEnvDeadlineMargin() {
+        var margin = Optional.ofNullable(System.getenv("RECSYS_DEADLINE_MARGIN_MILLIS")).orElse("5");
+        log.warn("using RECSYS_DEADLINE_MARGIN_MILLIS={}", margin);
+        return Integer.parseInt(margin);
+    }
+
+    /**
+     * RECSYS_PROXY_TIMEOUT used to be every backend call's deadline whatever the caller had
+     * left, so we kept computing answers for callers that had given up and timed out early
+     * on callers with time to spare. Backend calls now get the caller's deadline less
+     * RECSYS_DEADLINE_MARGIN_MILLIS, with RECSYS_PROXY_TIMEOUT only as the upper bound.
+     *
+     * @param callerDeadline deadline of the inbound call, null when the caller set none
+     */
+    static Deadline backendDeadline(Deadline callerDeadline) {
+        return backendDeadline(callerDeadline, DEADLINE);
+    }
+
+    private static Deadline backendDeadline(Deadline callerDeadline, int deadlineMillis) {
+        var maximum = Deadline.after(deadlineMillis, TimeUnit.MILLISECONDS);
+        if (callerDeadline == null) {
+            return maximum;
+        }
+        return callerDeadline.offset(-DEADLINE_MARGIN, TimeUnit.MILLISECONDS).minimum(maximum);
+    }
 
     private static int getEnvDeadline() {
         var recsysProxyTimeout = System.getenv("RECSYS_PROXY_TIMEOUT");
@@ -91,15 +134,76 @@ public class RecsysProxy {
         return Integer.parseInt(recsysProxyTimeout);
     }
 
+    /*
+     * 0 sends every miss of a request in a single PredictRequest, as we always did
+     */
+    private static int getEnvMaxItemsPerCall() {
+        var maxItems = Optional.ofNullable(System.getenv("RECSYS_MAX_ITEMS_PER_CALL")).orElse("0");
+        log.warn("using RECSYS_MAX_ITEMS_PER_CALL={}", maxItems);
+        return Integer.parseInt(maxItems);
+    }
+
+    /*
+     * least_request by default, see LeastRequestLoadBalancer. round_robin and pick_first
+     * remain available for comparison.
+     */
+    private static String getEnvLoadBalancingPolicy() {
+        var policy = Optional
+                .ofNullable(System.getenv("RECSYS_LOAD_BALANCING_POLICY"))
+                .orElse(LeastRequestLoadBalancer.POLICY_NAME);
+        log.warn("using RECSYS_LOAD_BALANCING_POLICY={}", policy);
+        return policy;
+    }
+
+    /*
+     * one channel per core by default, so that connections to TF Serving scale with the
+     * work this proxy can do
+     */
+    private static int getEnvChannelPoolSize() {
+        var poolSize = Optional
+                .ofNullable(System.getenv("RECSYS_CHANNEL_POOL_SIZE"))
+                .orElse(String.valueOf(Runtime.getRuntime().availableProcessors()));
+        log.warn("using RECSYS_CHANNEL_POOL_SIZE={}", poolSize);
+        return Integer.parseInt(poolSize);
+    }
+
     private static String getEnvTarget() {
        var target = System.getenv("RECSYS_TARGET");
        log.warn("using RECSYS_TARGET={}", target);
        return target;
     }
 
-    private static PredictionServiceGrpc.PredictionServiceFutureStub getPredictionStub() {
-        if (TFSERVING_STUB != null && !CHANNEL.isShutdown() && !CHANNEL.isTerminated()) {
-            return TFSERVING_STUB;
+    /**
+     * Logs what the hedger and guard of every backend in use have been doing, see
+     * GrpcService.logStats
+     */
+    static void logStats() {
+        HEDGERS.forEach((backend, hedger) -> {
+            var guard = GUARDS.getOrDefault(backend, Optional.empty());
+            log.info(
+                    "backend stats backend={} hedged={} hedgeWon={} inFlight={} breakerOpen={} rejected={} shortCircuited={}",
+                    backend,
+                    hedger.map(Hedger::hedgedCount).orElse(0L),
+                    hedger.map(Hedger::hedgeWonCount).orElse(0L),
+                    guard.map(BackendGuard::inFlight).orElse(0),
+                    guard.map(BackendGuard::isOpen).orElse(false),
+                    guard.map(BackendGuard::rejectedCount).orElse(0L),
+                    guard.map(BackendGuard::shortCircuitedCount).orElse(0L)
+            );
+        });
+    }
+
+    /**
+     * @return a channel to RECSYS_TARGET out of the pool shared by everything talking to
+     *         TF Serving
+     */
+    static Channel getChannel() {
+        return getChannelPool().next();
+    }
+
+    private static synchronized ChannelPool getChannelPool() {
+        if (CHANNEL_POOL != null) {
+            return CHANNEL_POOL;
         }
 
         if (TARGET == null || TARGET.length() <= 0) {
@@ -109,98 +213,108 @@ public class RecsysProxy {
                     .asRuntimeException();
         }
 
-        log.warn("setting up new channel for target={}", TARGET);
-        CHANNEL = ManagedChannelBuilder
+        log.warn("setting up pool of {} channels for target={}", CHANNEL_POOL_SIZE, TARGET);
+        CHANNEL_POOL = new ChannelPool(CHANNEL_POOL_SIZE, () -> ManagedChannelBuilder
                 .forTarget(TARGET)
                 .usePlaintext()
                 .executor(CHANNEL_THREADPOOL)
+                // spread calls, chunks and hedges over every resolved replica
+                .defaultLoadBalancingPolicy(LOAD_BALANCING_POLICY)
                 .enableFullStreamDecompression()
-                .build();
+                .build()
+        );
+        return CHANNEL_POOL;
+    }
 
-        var state = CHANNEL.getState(true);
-        log.info("channel state={}", state);
-        TFSERVING_STUB = PredictionServiceGrpc
-                .newFutureStub(CHANNEL)
+    /*
+     * stubs are cheap, each request gets one on whichever channel is least busy right now
+     */
+    private static PredictionServiceGrpc.PredictionServiceFutureStub getPredictionStub() {
+        return PredictionServiceGrpc
+                .newFutureStub(getChannel())
                 .withExecutor(RPC_THREADPOOL)
                 .withCompression("gzip")
                 .withWaitForReady();
-        return TFSERVING_STUB;
     }
 
     private final String modelName;
     private final Context mlModelContext;
-    private final PredictionServiceFutureStub predictStub;
-
-    private RecsysProxy(String modelName, Context mlModelContext, PredictionServiceFutureStub predictStub) {
+    private final ScoringBackend backend;
+    private final Deadline callerDeadline;
+    private final int deadlineMillis;
+
+    private RecsysProxy(
+            String modelName,
+            Context mlModelContext,
+            ScoringBackend backend,
+            Deadline callerDeadline,
+            int deadlineMillis
+    ) {
         this.modelName = modelName;
         this.mlModelContext = mlModelContext;
-        this.predictStub = predictStub;
+        this.backend = backend;
+        this.callerDeadline = callerDeadline;
+        this.deadlineMillis = deadlineMillis;
     }
 
+    /**
+     * Blocks until the scores are back, for callers off the request path. GrpcService goes
+     * through scoreAsync so that no server thread is parked on TF Serving. Refreshes run
+     * long after the request that built this proxy, so they get RECSYS_PROXY_TIMEOUT
+     * rather than its caller's deadline.
+     */
     public Map<Long, Double> score(Collection<Long> items) throws StatusException, ExecutionException, InterruptedException, TimeoutException {
-        return switch (modelName.toLowerCase()) {
-            case "random" -> getRandomScores(items);
-            default -> getTfServingScores(items);
-        };
+        return awaitScores(backend.score(modelName, mlModelContext, items, backendDeadline(null, deadlineMillis)));
     }
 
-    private Map<Long, Double> getTfServingScores(Collection<Long> items) throws StatusException {
-        var tfServingModelSpec = Model.ModelSpec
-                .newBuilder()
-                .setName(modelName)
-                .build();
-
-        var predictRequestBuilder = PredictRequest.newBuilder()
-                .setModelSpec(tfServingModelSpec)
-                .putInputs(
-                        // item id is hardcoded here and expected to be present in all models
-                        "item_id",
-                        TensorProto
-                                .newBuilder()
-                                .setDtype(DataType.DT_INT64)
-                                .setTensorShape(TensorShapeProto
-                                        .newBuilder()
-                                        .addDim(Dim.newBuilder().setSize(1))
-                                        .addDim(Dim.newBuilder().setSize(items.size()))
-                                )
-                                .addAllInt64Val(items)
-                                .build()
-                );
+    /**
+     * @return a future completed with the scores on the grpc callback thread, within the
+     *         caller's deadline. Failures carry the status the model's backend failed with,
+     *         and cancelling it cancels the calls to the backend.
+     */
+    public ListenableFuture<Map<Long, Double>> scoreAsync(Collection<Long> items) {
+        return scoreAsync(items, callerDeadline);
+    }
 
-        // process and add context
-        for (var entry : mlModelContext.getFieldsMap().entrySet()) {
-            predictRequestBuilder.putInputs(
-                    entry.getKey(),
-                    TensorProto
-                            .newBuilder()
-                            .setDtype(DataType.DT_STRING)
-                            .setTensorShape(TensorShapeProto
-                                    .newBuilder()
-                                    .addDim(Dim
-                                            .newBuilder()
-                                            .setSize(entry.getValue().getValuesCount())
-                                    )
-                            )
-                            .addAllStringVal(entry
-                                    .getValue()
-                                    .getValuesList()
-                                    .asByteStringList()
-                            )
-                            .build()
-            );
+    /**
+     * @param callerDeadline deadline to score within instead of the one this proxy was
+     *        built with, as for batches scored on behalf of several calls
+     * @return as scoreAsync, failed with DEADLINE_EXCEEDED without calling the backend at
+     *         all when the caller has no more than RECSYS_DEADLINE_MARGIN_MILLIS left
+     */
+    public ListenableFuture<Map<Long, Double>> scoreAsync(Collection<Long> items, Deadline callerDeadline) {
+        var deadline = backendDeadline(callerDeadline, deadlineMillis);
+        if (deadline.isExpired()) {
+            return Futures.immediateFailedFuture(Status.DEADLINE_EXCEEDED
+                    .withDescription("caller's deadline leaves no time to call the backend")
+                    .asRuntimeException());
         }
 
-        var fut = predictStub
-                .withDeadlineAfter(DEADLINE, TimeUnit.MILLISECONDS)
-                .predict(predictRequestBuilder.build());
-        Predict.PredictResponse response;
+        /*
+         * Calls started on a server thread inherit the inbound call's grpc Context, which
+         * grpc cancels as soon as that call is answered or cancelled, and the backend call
+         * with it. Scores still wanted after that, cached late behind a degraded response
+         * or waited on by requests attached to ours, would never arrive. Backend calls are
+         * started in a fork instead, with the deadline given explicitly and cancellation
+         * passed on only through the returned future.
+         */
+        var detached = io.grpc.Context.current().fork();
+        var previous = detached.attach();
         try {
-            response = fut.get(DEADLINE, TimeUnit.MILLISECONDS);
+            return backend.score(modelName, mlModelContext, items, deadline);
+        } finally {
+            detached.detach(previous);
+        }
+    }
+
+    private Map<Long, Double> awaitScores(ListenableFuture<Map<Long, Double>> fut) throws StatusException {
+        try {
+            return fut.get(deadlineMillis, TimeUnit.MILLISECONDS);
         } catch (TimeoutException exception) {
             log.error("deadline exceeded in recsysproxy request!", exception);
             throw Status.DEADLINE_EXCEEDED
                     .withCause(exception)
-                    .withDescription("deadline exceeded by " + DEADLINE + " ms")
+                    .withDescription("deadline exceeded by " + deadlineMillis + " ms")
                     .asException();
         } catch (InterruptedException exception) {
             log.error("recsysproxy request interrupted unexpectedly!", exception);
@@ -215,26 +329,6 @@ public class RecsysProxy {
                     .withDescription("excution of grpc future failed for unknown reason!")
                     .asException();
         }
-
-        var scores = response.getOutputsMap().get("scores") .getDoubleValList();
-        var itemsToScores = Streams.zip(
-                items.stream(),
-                scores.stream(),
-                SimpleImmutableEntry::new)
-                .collect(Collectors.toMap(
-                        AbstractMap.SimpleImmutableEntry::getKey,
-                        AbstractMap.SimpleImmutableEntry::getValue
-                ));
-
-        return itemsToScores;
-    }
-
-    private Map<Long, Double> getRandomScores(Collection<Long> items) {
-        var randomScores = Maps.<Long, Double>newHashMapWithExpectedSize(items.size());
-        for(var item: items) {
-            randomScores.put(item, random.nextDouble());
-        }
-        return randomScores;
     }
 
     /**
@@ -259,6 +353,13 @@ public class RecsysProxy {
         private String modelName;
         private recsys_proxy_cache.protos.Context modelContext;
         private PredictionServiceFutureStub stub;
+        private int maxItemsPerCall = MAX_ITEMS_PER_CALL;
+        // the backend's own unless given
+        private Optional<Hedger> hedger;
+        private Optional<BackendGuard> guard;
+        private Deadline callerDeadline;
+        private int deadlineMillis = DEADLINE;
+        private ScoringBackends backends;
         private Builder() {}
 
         public Builder withModelName(String modelName) {
@@ -276,14 +377,74 @@ public class RecsysProxy {
             return this;
         }
 
+        /**
+         * @param maxItemsPerCall the most items sent in one call to the backend, 0 for no limit
+         */
+        public Builder withMaxItemsPerCall(int maxItemsPerCall) {
+            this.maxItemsPerCall = maxItemsPerCall;
+            return this;
+        }
+
+        Builder withHedger(Hedger hedger) {
+            this.hedger = Optional.of(hedger);
+            return this;
+        }
+
+        Builder withGuard(Optional<BackendGuard> guard) {
+            this.guard = guard;
+            return this;
+        }
+
+        /**
+         * @param callerDeadline deadline of the inbound call scores are fetched for, if any
+         */
+        public Builder withCallerDeadline(Deadline callerDeadline) {
+            this.callerDeadline = callerDeadline;
+            return this;
+        }
+
+        /**
+         * @param deadlineMillis the longest any backend call may take, RECSYS_PROXY_TIMEOUT
+         *        unless given
+         */
+        Builder withDeadlineMillis(int deadlineMillis) {
+            this.deadlineMillis = deadlineMillis;
+            return this;
+        }
+
+        Builder withBackends(ScoringBackends backends) {
+            this.backends = backends;
+            return this;
+        }
+
+        /*
+         * TF Serving's backend is built around this proxy's stub, so only models it
+         * actually serves ever open channels to it. Whichever backend serves the model is
+         * called through a GuardedBackend.
+         */
         public RecsysProxy build() {
-            if (stub == null) {
-                stub = getPredictionStub();
+            if (backends == null) {
+                backends = ScoringBackends.fromEnv();
+            }
+            var backend = backends.forModel(modelName).orElseGet(() -> {
+                if (stub == null) {
+                    stub = getPredictionStub();
+                }
+                return new TfServingBackend(stub);
+            });
+            var backendName = backends.backendFor(modelName);
+            if (hedger == null) {
+                hedger = HEDGERS.computeIfAbsent(backendName, name -> Hedger.getEnvHedger());
+            }
+            if (guard == null) {
+                guard = GUARDS.computeIfAbsent(backendName, name -> BackendGuard.getEnvGuard(DEADLINE));
             }
             return new RecsysProxy(
                     modelName,
                     modelContext,
-                    stub
+                    new GuardedBackend(backend, maxItemsPerCall, hedger, guard, deadlineMillis),
+                    callerDeadline,
+                    deadlineMillis
             );
         }
     }
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges the misses of concurrent calls for the same model and context into one
+ * PredictRequest.
+ *
+ * Misses are queued per context fingerprint, which covers the model and its version. A
+ * queue is sent once it holds RECSYS_BATCH_MAX_SIZE items or its first call has waited
+ * RECSYS_BATCH_MAX_WAIT_MICROS, and the scores are fanned back out to every waiting call.
+ * Calls with a full batch of misses on their own skip the queue. Calls never block, they
+ * get a future completed when their batch is.
+ *
+ * A batch belongs to none of its calls. It is sent with the latest deadline among them and
+ * outside every caller's grpc Context, so no single caller can cut it short or cancel it.
+ *
+ * Batching is off unless RECSYS_BATCH_MAX_WAIT_MICROS is set above 0.
+ */
+class ScoreBatcher {
+    private static final Logger log = LoggerFactory.getLogger(ScoreBatcher.class);
+
+    static Optional<ScoreBatcher> getEnvBatcher() {
+        var maxWaitMicros = Optional
+                .ofNullable(System.getenv("RECSYS_BATCH_MAX_WAIT_MICROS"))
+                .orElse("0");
+        log.warn("using RECSYS_BATCH_MAX_WAIT_MICROS={}", maxWaitMicros);
+        if (Long.parseLong(maxWaitMicros) <= 0) {
+            return Optional.empty();
+        }
+
+        var maxSize = Optional
+                .ofNullable(System.getenv("RECSYS_BATCH_MAX_SIZE"))
+                .orElse("1024");
+        log.warn("using RECSYS_BATCH_MAX_SIZE={}", maxSize);
+
+        return Optional.of(new ScoreBatcher(Integer.parseInt(maxSize), Long.parseLong(maxWaitMicros)));
+    }
+
+    @FunctionalInterface
+    interface Scorer {
+        /**
+         * @param callerDeadline deadline to score within, null for no deadline
+         */
+        ListenableFuture<Map<Long, Double>> score(Collection<Long> items, Deadline callerDeadline);
+    }
+
+    /*
+     * calls waiting on one queue and the latest of their deadlines. Only touched inside
+     * ConcurrentHashMap.compute until the batch is taken off the map.
+     */
+    private static final class Batch {
+        private final Scorer scorer;
+        private final LinkedHashSet<Long> items = new LinkedHashSet<>();
+        private final List<SettableFuture<Map<Long, Double>>> waiters = new ArrayList<>();
+        private Deadline latestDeadline;
+        private boolean anyWithoutDeadline;
+
+        Batch(Scorer scorer) {
+            this.scorer = scorer;
+        }
+
+        void addDeadline(Deadline deadline) {
+            if (deadline == null) {
+                anyWithoutDeadline = true;
+            } else if (latestDeadline == null || latestDeadline.isBefore(deadline)) {
+                latestDeadline = deadline;
+            }
+        }
+
+        Deadline deadline() {
+            return anyWithoutDeadline ? null : latestDeadline;
+        }
+    }
+
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final ConcurrentHashMap<Long, Batch> batches = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    private final LongAdder batchesSent = new LongAdder();
+    private final LongAdder callsBatched = new LongAdder();
+
+    ScoreBatcher(int maxBatchSize, long maxWaitMicros) {
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("score-batcher-timer")
+                .setDaemon(true)
+                .build()
+        );
+    }
+
+    /**
+     * @param callerDeadline deadline of the call the items are scored for, null for none
+     */
+    ListenableFuture<Map<Long, Double>> score(
+            long context,
+            Collection<Long> items,
+            Deadline callerDeadline,
+            Scorer scorer
+    ) {
+        if (items.size() >= maxBatchSize) {
+            return scorer.score(items, callerDeadline);
+        }
+
+        var waiter = SettableFuture.<Map<Long, Double>>create();
+        var full = new Batch[1];
+        batches.compute(context, (key, batch) -> {
+            if (batch == null) {
+                batch = new Batch(scorer);
+                var opened = batch;
+                timer.schedule(() -> {
+                    if (batches.remove(key, opened)) {
+                        send(opened);
+                    }
+                }, maxWaitNanos, TimeUnit.NANOSECONDS);
+            }
+            batch.items.addAll(items);
+            batch.waiters.add(waiter);
+            batch.addDeadline(callerDeadline);
+            if (batch.items.size() >= maxBatchSize) {
+                full[0] = batch;
+                return null;
+            }
+            return batch;
+        });
+        callsBatched.increment();
+        if (full[0] != null) {
+            send(full[0]);
+        }
+
+        return Futures.transform(waiter, scores -> {
+            var own = Maps.<Long, Double>newHashMapWithExpectedSize(items.size());
+            for (var item : items) {
+                var score = scores.get(item);
+                if (score != null) {
+                    own.put(item, score);
+                }
+            }
+            return own;
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * @return the number of PredictRequests sent for batched calls
+     */
+    long batchesSent() {
+        return batchesSent.sum();
+    }
+
+    /**
+     * @return the number of calls that went through a batch
+     */
+    long callsBatched() {
+        return callsBatched.sum();
+    }
+
+    private void send(Batch batch) {
+        batchesSent.increment();
+        ListenableFuture<Map<Long, Double>> sent;
+        var previous = Context.ROOT.attach();
+        try {
+            sent = batch.scorer.score(List.copyOf(batch.items), batch.deadline());
+        } catch (RuntimeException exception) {
+            sent = Futures.immediateFailedFuture(exception);
+        } finally {
+            Context.ROOT.detach(previous);
+        }
+        for (var waiter : batch.waiters) {
+            // a waiter giving up must not cancel the request for everyone else
+            waiter.setFuture(Futures.nonCancellationPropagating(sent));
+        }
+    }
+}
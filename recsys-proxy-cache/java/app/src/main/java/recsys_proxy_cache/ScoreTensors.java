@@ -0,0 +1,112 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import io.grpc.Status;
+import java.nio.ByteOrder;
+import org.tensorflow.framework.DataType;
+import org.tensorflow.framework.TensorProto;
+import tensorflow.serving.Predict.PredictResponse;
+
+/**
+ * Reads the scores output of a PredictResponse into a double[] aligned with the items of
+ * the request.
+ *
+ * double_val, float_val and packed little endian tensor_content are all read a primitive
+ * at a time, without boxing. A score count that does not match the number of items fails
+ * the call rather than guessing which items were left out.
+ */
+final class ScoreTensors {
+    static final String SCORES_OUTPUT = "scores";
+
+    private ScoreTensors() {}
+
+    /**
+     * @param expected the number of items the request was sent with
+     */
+    static double[] decode(PredictResponse response, int expected) {
+        var tensor = response.getOutputsMap().get(SCORES_OUTPUT);
+        if (tensor == null) {
+            throw Status.INTERNAL
+                    .withDescription("TF Serving response has no " + SCORES_OUTPUT + " output")
+                    .asRuntimeException();
+        }
+        return decode(tensor, expected);
+    }
+
+    static double[] decode(TensorProto tensor, int expected) {
+        var scores = isFloat(tensor) ? decodeFloats(tensor) : decodeDoubles(tensor);
+        if (scores.length != expected) {
+            throw Status.INTERNAL
+                    .withDescription("TF Serving returned " + scores.length + " scores for " + expected + " items")
+                    .asRuntimeException();
+        }
+        return scores;
+    }
+
+    /*
+     * outputs built by hand, in tests or by older servers, may leave the dtype unset
+     */
+    private static boolean isFloat(TensorProto tensor) {
+        return tensor.getDtype() == DataType.DT_FLOAT
+                || (tensor.getDtype() == DataType.DT_INVALID && tensor.getFloatValCount() > 0);
+    }
+
+    private static double[] decodeDoubles(TensorProto tensor) {
+        if (!tensor.getTensorContent().isEmpty()) {
+            var content = tensor
+                    .getTensorContent()
+                    .asReadOnlyByteBuffer()
+                    .order(ByteOrder.LITTLE_ENDIAN)
+                    .asDoubleBuffer();
+            var scores = new double[content.remaining()];
+            content.get(scores);
+            return scores;
+        }
+
+        var scores = new double[tensor.getDoubleValCount()];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = tensor.getDoubleVal(i);
+        }
+        return scores;
+    }
+
+    private static double[] decodeFloats(TensorProto tensor) {
+        if (!tensor.getTensorContent().isEmpty()) {
+            var content = tensor
+                    .getTensorContent()
+                    .asReadOnlyByteBuffer()
+                    .order(ByteOrder.LITTLE_ENDIAN)
+                    .asFloatBuffer();
+            var scores = new double[content.remaining()];
+            for (int i = 0; i < scores.length; i++) {
+                scores[i] = content.get(i);
+            }
+            return scores;
+        }
+
+        var scores = new double[tensor.getFloatValCount()];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = tensor.getFloatVal(i);
+        }
+        return scores;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import io.grpc.Deadline;
+import java.util.Collection;
+import java.util.Map;
+import recsys_proxy_cache.protos.Context;
+
+/**
+ * Where a model's scores come from. RecsysProxy picks one per model name through
+ * ScoringBackends, so the proxy in front of it works the same whichever answers.
+ */
+@FunctionalInterface
+interface ScoringBackend {
+    /**
+     * @return a future completed with a score for every item, or failed with the status
+     *         the backend failed with. Cancelling it should stop any work still running
+     *         for it.
+     */
+    ListenableFuture<Map<Long, Double>> score(String modelName, Context context, Collection<Long> items, Deadline deadline);
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import io.grpc.Deadline;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.random.RandomGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import recsys_proxy_cache.protos.Context;
+
+/**
+ * Registry of the scoring backends serving each model.
+ *
+ * Which backend served a model used to be a switch in RecsysProxy, random or TF Serving,
+ * so load testing the proxy meant running TF Serving next to it. Models are now mapped to
+ * a backend by RECSYS_SCORING_BACKENDS, a list of model=backend pairs, for example
+ *
+ *   RECSYS_SCORING_BACKENDS=random=random,homepage_ranker=standin
+ *
+ * where the backend is one of tfserving, random or standin, see StandInModel. Giving the
+ * model as * maps every model not listed by name, and anything unmapped goes to TF
+ * Serving.
+ *
+ * RecsysProxy calls every backend through a GuardedBackend, with a hedger and guard for
+ * each backend, so the chunking, hedging and call limits TF Serving gets apply to the
+ * others too.
+ */
+final class ScoringBackends {
+    private static final Logger log = LoggerFactory.getLogger(ScoringBackends.class);
+    private static final RandomGenerator random = RandomGenerator.getDefault();
+
+    static final String TFSERVING = "tfserving";
+    static final String RANDOM = "random";
+    static final String STANDIN = "standin";
+    private static final String ANY_MODEL = "*";
+
+    private static final class Shared {
+        private static final ScoringBackends INSTANCE = new ScoringBackends(parse(getEnvBackends()));
+    }
+
+    /*
+     * holder idiom, so that the stand in model and its timer are only set up once a model
+     * actually maps to it
+     */
+    private static final class StandIn {
+        private static final StandInModel MODEL = StandInModel.getEnvModel();
+    }
+
+    private static String getEnvBackends() {
+        var backends = Optional.ofNullable(System.getenv("RECSYS_SCORING_BACKENDS")).orElse("random=random");
+        log.warn("using RECSYS_SCORING_BACKENDS={}", backends);
+        return backends;
+    }
+
+    /**
+     * @return the backends configured through RECSYS_SCORING_BACKENDS
+     */
+    static ScoringBackends fromEnv() {
+        return Shared.INSTANCE;
+    }
+
+    private final Map<String, String> backendByModel;
+
+    ScoringBackends(Map<String, String> backendByModel) {
+        this.backendByModel = Map.copyOf(backendByModel);
+    }
+
+    static Map<String, String> parse(String backends) {
+        var backendByModel = new HashMap<String, String>();
+        for (var pair : backends.split(",")) {
+            if (pair.isBlank()) {
+                continue;
+            }
+            var parts = pair.split("=", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("expected model=backend in RECSYS_SCORING_BACKENDS, found " + pair);
+            }
+            var backend = parts[1].strip().toLowerCase();
+            if (!backend.equals(TFSERVING) && !backend.equals(RANDOM) && !backend.equals(STANDIN)) {
+                throw new IllegalArgumentException("unknown scoring backend=" + backend);
+            }
+            backendByModel.put(parts[0].strip().toLowerCase(), backend);
+        }
+        return backendByModel;
+    }
+
+    /**
+     * @return the name of the backend serving modelName
+     */
+    String backendFor(String modelName) {
+        var backend = backendByModel.get(modelName.toLowerCase());
+        if (backend != null) {
+            return backend;
+        }
+        return backendByModel.getOrDefault(ANY_MODEL, TFSERVING);
+    }
+
+    boolean isTfServing(String modelName) {
+        return backendFor(modelName).equals(TFSERVING);
+    }
+
+    /**
+     * @return the backend serving modelName, or empty for TF Serving, whose backend is
+     *         built per proxy around its stub
+     */
+    Optional<ScoringBackend> forModel(String modelName) {
+        return switch (backendFor(modelName)) {
+            case RANDOM -> Optional.of(ScoringBackends::randomScores);
+            case STANDIN -> Optional.of(StandIn.MODEL);
+            default -> Optional.empty();
+        };
+    }
+
+    private static ListenableFuture<Map<Long, Double>> randomScores(
+            String modelName,
+            Context context,
+            Collection<Long> items,
+            Deadline deadline
+    ) {
+        var randomScores = Maps.<Long, Double>newHashMapWithExpectedSize(items.size());
+        for (var item : items) {
+            randomScores.put(item, random.nextDouble());
+        }
+        return Futures.immediateFuture(randomScores);
+    }
+}
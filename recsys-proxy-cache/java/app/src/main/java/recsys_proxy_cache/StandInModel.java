@@ -0,0 +1,190 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.grpc.Deadline;
+import io.grpc.Status;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import recsys_proxy_cache.protos.Context;
+
+/**
+ * In process copy of the model recsys/build_model.py exports, for load testing the proxy
+ * without TF Serving.
+ *
+ * Scores are pi * (item id + total characters of the country, language, site and session
+ * values), exactly what the exported model returns, so responses can be checked the same
+ * way. Each call answers after STANDIN_LATENCY_MILLIS plus up to
+ * STANDIN_LATENCY_JITTER_MILLIS at random, and fails with UNAVAILABLE for
+ * STANDIN_ERROR_PERCENT of calls, so the proxy's deadlines, guard, hedging and degraded
+ * mode all see something like a real backend.
+ *
+ * Nothing blocks while waiting. A single timer thread only keeps time, answers are
+ * completed on a pool like TF Serving responses are, since completing a future runs every
+ * callback waiting on it and one thread doing that for all calls would be the bottleneck
+ * under load.
+ */
+final class StandInModel implements ScoringBackend {
+    private static final Logger log = LoggerFactory.getLogger(StandInModel.class);
+
+    // the inputs of the exported model, any other context field is ignored
+    private static final List<String> CONTEXT_FIELDS = List.of("country", "language", "site", "session");
+
+    static StandInModel getEnvModel() {
+        var latency = Optional.ofNullable(System.getenv("STANDIN_LATENCY_MILLIS")).orElse("0");
+        log.warn("using STANDIN_LATENCY_MILLIS={}", latency);
+        var jitter = Optional.ofNullable(System.getenv("STANDIN_LATENCY_JITTER_MILLIS")).orElse("0");
+        log.warn("using STANDIN_LATENCY_JITTER_MILLIS={}", jitter);
+        var errorPercent = Optional.ofNullable(System.getenv("STANDIN_ERROR_PERCENT")).orElse("0");
+        log.warn("using STANDIN_ERROR_PERCENT={}", errorPercent);
+
+        var timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("standin-model-timer")
+                .setDaemon(true)
+                .build()
+        );
+        return new StandInModel(
+                Long.parseLong(latency),
+                Long.parseLong(jitter),
+                Double.parseDouble(errorPercent),
+                timer,
+                ExecutionMode.newConfiguredExecutor("standin-model")
+        );
+    }
+
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final double errorPercent;
+    private final ScheduledExecutorService timer;
+    private final Executor answers;
+
+    StandInModel(
+            long latencyMillis,
+            long jitterMillis,
+            double errorPercent,
+            ScheduledExecutorService timer,
+            Executor answers
+    ) {
+        if (latencyMillis < 0 || jitterMillis < 0) {
+            throw new IllegalArgumentException("stand in latency must not be negative");
+        }
+        if (errorPercent < 0 || errorPercent > 100) {
+            throw new IllegalArgumentException("STANDIN_ERROR_PERCENT must be between 0 and 100, found " + errorPercent);
+        }
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.errorPercent = errorPercent;
+        this.timer = timer;
+        this.answers = answers;
+    }
+
+    @Override
+    public ListenableFuture<Map<Long, Double>> score(
+            String modelName,
+            Context context,
+            Collection<Long> items,
+            Deadline deadline
+    ) {
+        var random = ThreadLocalRandom.current();
+        var fails = random.nextDouble(100) < errorPercent;
+        var delayMillis = latencyMillis + (jitterMillis > 0 ? random.nextLong(jitterMillis + 1) : 0);
+        var remainingMillis = deadline.timeRemaining(TimeUnit.MILLISECONDS);
+
+        if (delayMillis == 0) {
+            return fails
+                    ? Futures.immediateFailedFuture(injectedFailure())
+                    : Futures.immediateFuture(scores(context, items));
+        }
+
+        var result = SettableFuture.<Map<Long, Double>>create();
+        Runnable answer;
+        if (delayMillis >= remainingMillis) {
+            answer = () -> result.setException(Status
+                    .DEADLINE_EXCEEDED
+                    .withDescription("stand in model took longer than the deadline")
+                    .asException()
+            );
+            delayMillis = Math.max(0, remainingMillis);
+        } else if (fails) {
+            answer = () -> result.setException(injectedFailure());
+        } else {
+            answer = () -> result.set(scores(context, items));
+        }
+        var scheduled = timer.schedule(() -> answers.execute(answer), delayMillis, TimeUnit.MILLISECONDS);
+        result.addListener(() -> {
+            if (result.isCancelled()) {
+                scheduled.cancel(false);
+            }
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+
+    private static Exception injectedFailure() {
+        return Status.UNAVAILABLE.withDescription("injected stand in model failure").asException();
+    }
+
+    static Map<Long, Double> scores(Context context, Collection<Long> items) {
+        var characters = contextCharacters(context);
+        var scores = Maps.<Long, Double>newHashMapWithExpectedSize(items.size());
+        for (var item : items) {
+            scores.put(item, score(item, characters));
+        }
+        return scores;
+    }
+
+    static double score(long item, long contextCharacters) {
+        return Math.PI * (double) (item + contextCharacters);
+    }
+
+    /*
+     * tf.strings.length counts bytes rather than characters unless told otherwise, so
+     * this does too
+     */
+    static long contextCharacters(Context context) {
+        var characters = 0L;
+        for (var field : CONTEXT_FIELDS) {
+            var values = context.getFieldsMap().get(field);
+            if (values == null) {
+                continue;
+            }
+            for (var value : values.getValuesList()) {
+                characters += value.getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+        return characters;
+    }
+}
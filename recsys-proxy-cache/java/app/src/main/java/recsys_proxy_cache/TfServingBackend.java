@@ -0,0 +1,77 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Deadline;
+import java.util.Collection;
+import java.util.Map;
+import recsys_proxy_cache.protos.Context;
+import tensorflow.serving.Predict;
+import tensorflow.serving.PredictionServiceGrpc.PredictionServiceFutureStub;
+
+/**
+ * Scores items through TF Serving's PredictionService, over the channels RecsysProxy
+ * sets up. Every call is a single PredictRequest, GuardedBackend splits and guards them.
+ */
+final class TfServingBackend implements ScoringBackend {
+    private final PredictionServiceFutureStub predictStub;
+
+    TfServingBackend(PredictionServiceFutureStub predictStub) {
+        this.predictStub = predictStub;
+    }
+
+    /*
+     * nothing blocks on this future. Scores are picked out on whichever thread completes
+     * it, which is cheap enough for the grpc callback thread.
+     */
+    @Override
+    public ListenableFuture<Map<Long, Double>> score(
+            String modelName,
+            Context context,
+            Collection<Long> items,
+            Deadline deadline
+    ) {
+        var itemIds = Longs.toArray(items);
+        var predictRequest = PredictRequests.predictRequest(modelName, context, itemIds);
+        var fut = predictStub
+                .withDeadline(deadline)
+                .predict(predictRequest);
+        return Futures.transform(fut, response -> toScores(itemIds, response), MoreExecutors.directExecutor());
+    }
+
+    /*
+     * scores are decoded into a primitive array first, see ScoreTensors, and only boxed
+     * into the map the rest of the proxy works with
+     */
+    private static Map<Long, Double> toScores(long[] items, Predict.PredictResponse response) {
+        var scores = ScoreTensors.decode(response, items.length);
+        var itemsToScores = Maps.<Long, Double>newHashMapWithExpectedSize(items.length);
+        for (int i = 0; i < items.length; i++) {
+            itemsToScores.put(items[i], scores[i]);
+        }
+        return itemsToScores;
+    }
+}
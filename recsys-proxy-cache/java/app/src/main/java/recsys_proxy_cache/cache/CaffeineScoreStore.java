@@ -0,0 +1,153 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Scheduler;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The original on heap store, kept around so we can fall back to it and compare
+ * against the off heap store on real traffic.
+ */
+public class CaffeineScoreStore implements ScoreStore {
+    /*
+     * Shared cache by all threads, backed by concurrent hashmap. See the javadocs for more.
+     *
+     * The maximumBytes of the cache is a point of interest in the keys. We want to keep the
+     * cache large enough to catch enough cases of repeat scoring, but small enough to
+     * keep memory sufficiently low. The larger the cache the more likely collisions
+     * are. So choosing our hash algorithm is critical too.
+     *
+     * There are a lot of considerations here
+     */
+    private final Cache<ScoreKey, Scored> internalCache;
+    private final long expireAfterAccessMillis;
+
+    /*
+     * caffeine only tracks write times when entries expire after write, so the score
+     * carries its own
+     */
+    private record Scored(double score, long writtenAtMillis) {}
+
+    /*
+     * Heap taken by a single entry on a 64 bit JVM with compressed oops: caffeine's node
+     * with its access order and weight fields (64), the ConcurrentHashMap node (32), the
+     * ScoreKey (32), the Scored value (32) and table slack at the default load factor (16).
+     * Every entry is the same shape, so every entry weighs the same.
+     */
+    static final int ENTRY_BYTES = 176;
+
+    /**
+     * @param maximumBytes heap the cache may use, counted at ENTRY_BYTES per entry
+     */
+    public CaffeineScoreStore(long maximumBytes, Duration expireAfterAccess) {
+        this(maximumBytes, expireAfterAccess, EvictionListener.IGNORE);
+    }
+
+    public CaffeineScoreStore(long maximumBytes, Duration expireAfterAccess, EvictionListener evictionListener) {
+        expireAfterAccessMillis = expireAfterAccess.toMillis();
+        internalCache = Caffeine
+                .newBuilder()
+                .maximumWeight(maximumBytes)
+                .weigher((ScoreKey key, Scored scored) -> ENTRY_BYTES)
+                .expireAfterAccess(expireAfterAccess)
+                .evictionListener((ScoreKey key, Scored scored, RemovalCause cause) -> {
+                    if (key != null && scored != null) {
+                        var idle = cause == RemovalCause.EXPIRED ? expireAfterAccessMillis : 0L;
+                        var age = System.currentTimeMillis() - scored.writtenAtMillis();
+                        evictionListener.evicted(key.context(), key.item(), scored.score(), idle, age);
+                    }
+                })
+                .scheduler(Scheduler.systemScheduler())
+                .build();
+    }
+
+    @Override
+    public int getScores(long context, long[] items, double[] scores, long[] ages) {
+        var now = ages == null ? 0L : System.currentTimeMillis();
+        var hits = 0;
+        for (int i = 0; i < items.length; i++) {
+            var scored = internalCache.getIfPresent(new ScoreKey(context, items[i]));
+            if (scored == null) {
+                scores[i] = Double.NaN;
+            } else {
+                scores[i] = scored.score();
+                if (ages != null) {
+                    ages[i] = now - scored.writtenAtMillis();
+                }
+                hits += 1;
+            }
+        }
+        return hits;
+    }
+
+    @Override
+    public void setScores(long context, long[] items, double[] scores, long[] ages) {
+        var now = System.currentTimeMillis();
+        for (int i = 0; i < items.length; i++) {
+            var writtenAt = ages == null ? now : now - ages[i];
+            internalCache.put(new ScoreKey(context, items[i]), new Scored(scores[i], writtenAt));
+        }
+    }
+
+    @Override
+    public long size() {
+        return internalCache.estimatedSize();
+    }
+
+    @Override
+    public long bytesUsed() {
+        return internalCache
+                .policy()
+                .eviction()
+                .map(eviction -> eviction.weightedSize().orElse(0L))
+                .orElse(0L);
+    }
+
+    @Override
+    public void forEach(EntryVisitor visitor) {
+        var expiration = internalCache.policy().expireAfterAccess().orElseThrow();
+        var now = System.currentTimeMillis();
+        internalCache.asMap().forEach((key, scored) -> {
+            var idle = expiration.ageOf(key, TimeUnit.MILLISECONDS).orElse(0L);
+            visitor.visit(
+                    key.context(),
+                    key.item(),
+                    scored.score(),
+                    expireAfterAccessMillis - idle,
+                    now - scored.writtenAtMillis()
+            );
+        });
+    }
+
+    /*
+     * caffeine only supports a single expiry for the whole cache, so restored entries
+     * simply start over with the full TTL
+     */
+    @Override
+    public void restore(long context, long item, double score, long remainingTtlMillis, long ageMillis) {
+        internalCache.put(new ScoreKey(context, item), new Scored(score, System.currentTimeMillis() - ageMillis));
+    }
+}
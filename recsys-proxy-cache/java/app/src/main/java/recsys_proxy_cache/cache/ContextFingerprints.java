@@ -0,0 +1,171 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Ints;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import recsys_proxy_cache.protos.Context;
+
+/**
+ * Computes and memoizes the 64-bit fingerprint of a model name and context.
+ *
+ * Computing a fingerprint copies and sorts every key and value list, runs high cardinality
+ * values through their hashers and then farmhashes the lot. Our traffic reuses a small set
+ * of country/language/site combinations, and a single session sends many requests with
+ * the same context, so doing all of that on every request is mostly wasted work.
+ *
+ * Fingerprints are memoized by the model name and Context message itself. Protobuf gives
+ * us structural equality for free, and its hashCode over the fields map is insensitive to
+ * key order and memoized on the message instance, so a lookup costs one pass over the
+ * strings rather than a sort, a concat and a hash.
+ */
+public class ContextFingerprints {
+    private static final Logger log = LoggerFactory.getLogger(ContextFingerprints.class);
+    private static final Cache<Key, Long> fingerprints = Caffeine
+            .newBuilder()
+            .maximumSize(getEnvMaximumSize())
+            .recordStats()
+            .build();
+
+    private record Key(String modelName, long modelVersion, Context context) {}
+
+    private static long getEnvMaximumSize() {
+        var maximumSize = System.getenv("CONTEXT_FINGERPRINT_CACHE_SIZE");
+        if (maximumSize == null) {
+            maximumSize = "100000";
+        }
+
+        log.warn("using CONTEXT_FINGERPRINT_CACHE_SIZE={}", maximumSize);
+        return Long.parseLong(maximumSize);
+    }
+
+    public static long fingerprint(String modelName, Context context) {
+        return fingerprint(modelName, 0L, context);
+    }
+
+    /**
+     * The model version is part of the fingerprint, so every version of a model gets a key
+     * space of its own and moving to a new version never sees the old version's scores.
+     */
+    public static long fingerprint(String modelName, long modelVersion, Context context) {
+        return fingerprints.get(
+                new Key(modelName, modelVersion, context),
+                key -> computeFingerprint(key.modelName(), key.modelVersion(), key.context())
+        );
+    }
+
+    /**
+     * @return cumulative hit and miss counts of the memoized fingerprints
+     */
+    public static CacheStats stats() {
+        return fingerprints.stats();
+    }
+
+    private static long computeFingerprint(String modelName, long modelVersion, Context context) {
+        var nameBytes = modelName.getBytes(StandardCharsets.US_ASCII);
+        // context bytes are surprisingly complex to parse, check the function
+        var contextBytes = getContextBytes(context);
+
+        /*
+         * Using farmfingerprint64 because its non-cryptographic and generally
+         * fast. Preference to usage over murmur3 simply because of known speed.
+         *
+         * We will be appending the item id bytes to the farmfingerprint64 to
+         * reduce has collisions further. Thus producing a 128-bit unique key
+         *
+         * It is however important that we keep the maximumSize in
+         * mind on the cache as well though. Consider the collision
+         * probability chance at 100Million keys
+         *
+         * But we also need to balance this against speed and memory
+         * usage in the cache as well.
+         */
+        return Hashing
+                .farmHashFingerprint64()
+                .newHasher(nameBytes.length + Long.BYTES + contextBytes.length)
+                .putBytes(nameBytes)
+                .putLong(modelVersion)
+                .putBytes(contextBytes)
+                .hash()
+                .asLong();
+    }
+
+    /**
+     * Retrieves the bytes from the context, handling all sub-rules for context key/value
+     * pairs.
+     *
+     * This gets a bit complicated because of the existence of HighCardinalityKeys.
+     *
+     * In short, some key terms in context, like "session" which is a random string
+     * generated for each unique visit causes our cache to have a near 100% miss rate.
+     * To handle this we will transform the values into something that is lower cardinality.
+     *
+     * The specifics of which will be pushed out to another class
+     *
+     * @param context the context to process
+     * @return the bytes that represent the context with all processing handled
+     */
+    private static byte[] getContextBytes(Context context) {
+        var contextByteStream = new ByteArrayOutputStream(context.getSerializedSize());
+
+        /*
+         * since we are going to process the keys, we must sort them initially to ensure
+         * that there is consistency between key/value byte pairings
+         */
+        var fields = context.getFieldsMap();
+        var keys = new ArrayList<>(fields.keySet());
+        Collections.sort(keys);
+
+        for (var key : keys) {
+            var isHighCardinality = HighCardinalityKeys.isHighCardinality(key);
+            var keyBytes = key.getBytes(StandardCharsets.US_ASCII);
+            contextByteStream.writeBytes(keyBytes);
+
+            // we must sort values, to ensure that the values order is not important
+            var values = new ArrayList<>(fields.get(key).getValuesList());
+            Collections.sort(values);
+
+            for (var value : values) {
+                byte[] valueBytes = value.getBytes(StandardCharsets.US_ASCII);
+                if (isHighCardinality) {
+                    valueBytes = Ints.toByteArray(
+                            HighCardinalityKeys
+                                    .hashHighCardinalityKey(key, valueBytes)
+                                    .intValue()
+                    );
+
+                }
+                contextByteStream.writeBytes(valueBytes);
+            }
+        }
+
+        return contextByteStream.toByteArray();
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Scheduler;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Two level store, keyed first by context fingerprint and then by item id.
+ *
+ * Every item in a request shares the same context, yet the flat stores hash and hold each
+ * (context, item) pair independently. Here a request costs one probe for its context and
+ * then one primitive probe per item into that context's own long to double map.
+ *
+ * Contexts are the unit of eviction and expiry. Caffeine weighs each context by the heap
+ * its map actually takes, table slack included, so maximumBytes bounds memory rather than
+ * the number of scores. When room is needed a whole context goes at once along with every
+ * score in it.
+ */
+public class ContextScoreStore implements ScoreStore {
+    /*
+     * Fixed heap cost of a context on a 64 bit JVM with compressed oops: caffeine's node
+     * (64), the ConcurrentHashMap node (32), the boxed Long key (16), ItemScores with its
+     * StampedLock and Table (72) and the headers of the three arrays (48).
+     */
+    static final int CONTEXT_BYTES = 232;
+
+    /*
+     * a long key, a double value and an int write time per table slot, whether the slot
+     * is used or not
+     */
+    static final int TABLE_SLOT_BYTES = 20;
+
+    /*
+     * what an item costs on average once table slack is counted, since tables are kept
+     * between a quarter and three quarters full. Only used to turn entry counts into bytes.
+     */
+    static final int ESTIMATED_ITEM_BYTES = 40;
+
+    private final Cache<Long, ItemScores> internalCache;
+    private final long expireAfterAccessMillis;
+    private final long createdAtNanos = System.nanoTime();
+    private final LongAdder itemCount = new LongAdder();
+
+    /**
+     * @param maximumBytes heap the cache may use, as weighed by ItemScores.weight
+     */
+    public ContextScoreStore(long maximumBytes, Duration expireAfterAccess) {
+        this(maximumBytes, expireAfterAccess, EvictionListener.IGNORE);
+    }
+
+    public ContextScoreStore(long maximumBytes, Duration expireAfterAccess, EvictionListener evictionListener) {
+        expireAfterAccessMillis = expireAfterAccess.toMillis();
+        internalCache = Caffeine
+                .newBuilder()
+                .maximumWeight(maximumBytes)
+                .weigher((Long context, ItemScores scores) -> scores.weight())
+                .expireAfterAccess(expireAfterAccess)
+                .evictionListener((Long context, ItemScores itemScores, RemovalCause cause) -> {
+                    if (context != null && itemScores != null) {
+                        itemCount.add(-itemScores.size());
+                        var idle = cause == RemovalCause.EXPIRED ? expireAfterAccessMillis : 0L;
+                        var now = nowSeconds();
+                        itemScores.forEach((item, score, written) ->
+                                evictionListener.evicted(context, item, score, idle, ageMillis(now, written)));
+                    }
+                })
+                .scheduler(Scheduler.systemScheduler())
+                .build();
+    }
+
+    @Override
+    public int getScores(long context, long[] items, double[] scores, long[] ages) {
+        var itemScores = internalCache.getIfPresent(context);
+        if (itemScores == null) {
+            Arrays.fill(scores, 0, items.length, Double.NaN);
+            return 0;
+        }
+        return itemScores.getAll(items, scores, ages, nowSeconds());
+    }
+
+    @Override
+    public void setScores(long context, long[] items, double[] scores, long[] ages) {
+        /*
+         * going through compute rather than put means caffeine re-weighs the context
+         * after every insert, so contexts that grow are accounted for correctly
+         */
+        var now = nowSeconds();
+        internalCache.asMap().compute(context, (key, itemScores) -> {
+            if (itemScores == null) {
+                itemScores = new ItemScores(items.length);
+            }
+            itemCount.add(itemScores.putAll(items, scores, ages, now));
+            return itemScores;
+        });
+    }
+
+    @Override
+    public long size() {
+        return itemCount.sum();
+    }
+
+    @Override
+    public long bytesUsed() {
+        return internalCache
+                .policy()
+                .eviction()
+                .map(eviction -> eviction.weightedSize().orElse(0L))
+                .orElse(0L);
+    }
+
+    @Override
+    public void forEach(EntryVisitor visitor) {
+        var expiration = internalCache.policy().expireAfterAccess().orElseThrow();
+        var now = nowSeconds();
+        internalCache.asMap().forEach((context, itemScores) -> {
+            var idle = expiration.ageOf(context, TimeUnit.MILLISECONDS).orElse(0L);
+            var remaining = expireAfterAccessMillis - idle;
+            itemScores.forEach((item, score, written) ->
+                    visitor.visit(context, item, score, remaining, ageMillis(now, written)));
+        });
+    }
+
+    /*
+     * expiry is per context, so a restored entry simply keeps its context alive for the
+     * full TTL
+     */
+    @Override
+    public void restore(long context, long item, double score, long remainingTtlMillis, long ageMillis) {
+        setScores(context, new long[] {item}, new double[] {score}, new long[] {ageMillis});
+    }
+
+    private int nowSeconds() {
+        return (int) TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - createdAtNanos);
+    }
+
+    private static long ageMillis(int now, int written) {
+        return TimeUnit.SECONDS.toMillis(now - written);
+    }
+
+    /**
+     * @return the approximate number of contexts currently held
+     */
+    public long contextCount() {
+        return internalCache.estimatedSize();
+    }
+
+    /**
+     * Open addressed long to double map holding the scores of a single context.
+     *
+     * NaN marks an empty slot, which is fine because NaN is already the miss marker of
+     * ScoreStore and so is never a score worth caching. Reads are optimistic against a
+     * StampedLock, so concurrent requests for a hot context never block one another.
+     */
+    static final class ItemScores {
+        private static final int MIN_CAPACITY = 16;
+
+        private final StampedLock lock = new StampedLock();
+        private Table table;
+        private int size;
+
+        ItemScores(int expectedSize) {
+            table = new Table(capacityFor(expectedSize));
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * @return the heap taken by this context, clamped to what caffeine can weigh
+         */
+        int weight() {
+            return (int) Math.min(Integer.MAX_VALUE, CONTEXT_BYTES + (long) table.keys.length * TABLE_SLOT_BYTES);
+        }
+
+        int getAll(long[] items, double[] scores, long[] ages, int now) {
+            var stamp = lock.tryOptimisticRead();
+            var hits = table.getAll(items, scores, ages, now);
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    hits = table.getAll(items, scores, ages, now);
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return hits;
+        }
+
+        /**
+         * @param ages how long ago every score was computed in millis, or null for just now
+         * @return the number of items that were not present before
+         */
+        int putAll(long[] items, double[] scores, long[] ages, int now) {
+            var added = 0;
+            var stamp = lock.writeLock();
+            try {
+                if ((size + items.length) * 4 > table.keys.length * 3) {
+                    table = table.resize(capacityFor(size + items.length));
+                }
+                for (int i = 0; i < items.length; i++) {
+                    var written = ages == null ? now : now - (int) TimeUnit.MILLISECONDS.toSeconds(ages[i]);
+                    if (!Double.isNaN(scores[i]) && table.put(items[i], scores[i], written)) {
+                        added += 1;
+                    }
+                }
+                size += added;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            return added;
+        }
+
+        void forEach(ItemVisitor visitor) {
+            var stamp = lock.readLock();
+            try {
+                for (int i = 0; i < table.keys.length; i++) {
+                    if (!Double.isNaN(table.values[i])) {
+                        visitor.visit(table.keys[i], table.values[i], table.written[i]);
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private static int capacityFor(int expectedSize) {
+            // keep the load factor at or below a half after sizing
+            return Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, expectedSize)) << 2);
+        }
+    }
+
+    @FunctionalInterface
+    interface ItemVisitor {
+        /**
+         * @param written seconds since the store was created, negative for scores older
+         *                than the store
+         */
+        void visit(long item, double score, int written);
+    }
+
+    /*
+     * keys, values and write times live together so a reader can never see one resized
+     * without the others. Write times are seconds since the store was created.
+     */
+    private static final class Table {
+        private final long[] keys;
+        private final double[] values;
+        private final int[] written;
+        private final int mask;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            values = new double[capacity];
+            written = new int[capacity];
+            mask = capacity - 1;
+            Arrays.fill(values, Double.NaN);
+        }
+
+        int getAll(long[] items, double[] scores, long[] ages, int now) {
+            var hits = 0;
+            for (int i = 0; i < items.length; i++) {
+                var index = indexOf(items[i]);
+                scores[i] = index < 0 ? Double.NaN : values[index];
+                if (!Double.isNaN(scores[i])) {
+                    if (ages != null) {
+                        ages[i] = TimeUnit.SECONDS.toMillis(now - written[index]);
+                    }
+                    hits += 1;
+                }
+            }
+            return hits;
+        }
+
+        /**
+         * @return the slot holding item, or -1 when it is missing
+         */
+        int indexOf(long item) {
+            var index = (int) ScoreKey.hash(0L, item) & mask;
+            // bounded so that a torn optimistic read can never spin forever
+            for (int probes = 0; probes < keys.length; probes++) {
+                if (Double.isNaN(values[index])) {
+                    return -1;
+                }
+                if (keys[index] == item) {
+                    return index;
+                }
+                index = (index + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * @return true if the item was not present before
+         */
+        boolean put(long item, double score, int writtenAt) {
+            var index = (int) ScoreKey.hash(0L, item) & mask;
+            while (true) {
+                if (Double.isNaN(values[index])) {
+                    keys[index] = item;
+                    values[index] = score;
+                    written[index] = writtenAt;
+                    return true;
+                }
+                if (keys[index] == item) {
+                    values[index] = score;
+                    written[index] = writtenAt;
+                    return false;
+                }
+                index = (index + 1) & mask;
+            }
+        }
+
+        Table resize(int capacity) {
+            var resized = new Table(capacity);
+            for (int i = 0; i < keys.length; i++) {
+                if (!Double.isNaN(values[i])) {
+                    resized.put(keys[i], values[i], written[i]);
+                }
+            }
+            return resized;
+        }
+    }
+}
@@ -0,0 +1,636 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Second cache tier on local disk for scores evicted from the in memory store.
+ *
+ * The memory store has to throw scores away once it is full or once they have gone five
+ * minutes unread, yet most of them are still good for an hour and plenty will be asked
+ * for again. Evicted entries are appended here instead, so a memory miss can be answered
+ * from NVMe rather than with a round trip to TF Serving.
+ *
+ * Every record carries its own expiry, the disk TTL of the partition that spilled it
+ * counted from the entry's last read, so partitions can keep scores on disk for different
+ * lengths of time. defaultTtl applies to entries put directly. Records also keep when the
+ * score was computed, so ScoreCache can hold disk hits to the same hard TTL as memory.
+ *
+ * The data lives in fixed size segment files that are memory mapped and only ever
+ * appended to. Records are 40 bytes, little endian:
+ *
+ *   [0, 8)   context fingerprint
+ *   [8, 16)  item id
+ *   [16, 24) score
+ *   [24, 32) written at, epoch millis
+ *   [32, 40) expires at, epoch millis. 0 marks the end of the segment
+ *
+ * An open addressed index of single longs sits in direct memory and maps a key to the
+ * segment and record holding its latest score. Index entries only carry part of the key
+ * hash, so a hit is always confirmed against the full key stored in the record. At a
+ * load factor of at most 3/4 the index costs under 11 bytes of memory per record on disk,
+ * a third of what the off heap store spends per entry.
+ *
+ * Once every segment is in use the oldest one is reclaimed. Records that were superseded
+ * or expired are simply forgotten. When only a few records in it are still live they are
+ * compacted into the new segment, otherwise the whole segment is evicted, which keeps
+ * the tier roughly first in first out without ever rewriting most of the disk.
+ *
+ * Segments outlive the process, and on startup they are scanned to rebuild the index.
+ * Segment files of any other size were written with a different record layout and are
+ * deleted.
+ */
+public class DiskScoreTier implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(DiskScoreTier.class);
+
+    private static final int RECORD_BYTES = 40;
+    private static final int CONTEXT_OFFSET = 0;
+    private static final int ITEM_OFFSET = 8;
+    private static final int SCORE_OFFSET = 16;
+    private static final int WRITTEN_AT_OFFSET = 24;
+    private static final int EXPIRES_AT_OFFSET = 32;
+
+    /*
+     * index entry layout, from the low bits up: record within the segment, segment id and
+     * the top bits of the key hash. Segment ids start at 1 so a used entry is never 0.
+     */
+    private static final int RECORD_BITS = 19;
+    private static final int SEGMENT_BITS = 14;
+    private static final int TAG_BITS = 31;
+    private static final int SEGMENT_SHIFT = RECORD_BITS;
+    private static final int TAG_SHIFT = RECORD_BITS + SEGMENT_BITS;
+    private static final long RECORD_MASK = (1L << RECORD_BITS) - 1;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+    private static final int RECORDS_PER_SEGMENT = 1 << RECORD_BITS;
+    private static final long SEGMENT_BYTES = (long) RECORDS_PER_SEGMENT * RECORD_BYTES;
+    private static final long MAX_INDEX_SLOTS = 1L << TAG_BITS;
+    private static final int MAX_SEGMENTS = (int) Math.min(SEGMENT_MASK, MAX_INDEX_SLOTS * 3 / 4 / RECORDS_PER_SEGMENT);
+
+    /*
+     * direct buffers are int indexed, so the index is split into chunks of at most 1GB
+     */
+    private static final int INDEX_CHUNK_SHIFT = 27;
+    private static final long INDEX_CHUNK_MASK = (1L << INDEX_CHUNK_SHIFT) - 1;
+
+    /*
+     * a segment is compacted when at most this share of its records are still live
+     */
+    private static final double COMPACTION_THRESHOLD = 0.5;
+    private static final int SURVIVOR_LONGS = RECORD_BYTES / Long.BYTES;
+
+    private static final String SEGMENT_PREFIX = "scores-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final Path directory;
+    private final long defaultTtlMillis;
+    private final int maxSegments;
+
+    private final Segment[] segments;
+    private final ArrayDeque<Segment> segmentsByAge = new ArrayDeque<>();
+    private final ArrayDeque<Integer> freeSegmentIds = new ArrayDeque<>();
+    private long nextSequence = 1;
+
+    private final ByteBuffer[] index;
+    private final long indexSlots;
+    private final StampedLock lock = new StampedLock();
+    private long entries;
+
+    private final LongAdder compacted = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    public DiskScoreTier(Path directory, long maximumBytes, Duration defaultTtl) throws IOException {
+        this.directory = directory;
+        this.defaultTtlMillis = defaultTtl.toMillis();
+
+        var requestedSegments = Math.max(2, maximumBytes / SEGMENT_BYTES);
+        if (requestedSegments > MAX_SEGMENTS) {
+            log.warn("disk score tier capped at {} bytes, requested={}", MAX_SEGMENTS * SEGMENT_BYTES, maximumBytes);
+        }
+        maxSegments = (int) Math.min(MAX_SEGMENTS, requestedSegments);
+        segments = new Segment[maxSegments + 1];
+        for (int id = 1; id <= maxSegments; id++) {
+            freeSegmentIds.add(id);
+        }
+
+        indexSlots = (long) maxSegments * RECORDS_PER_SEGMENT * 4 / 3;
+        index = new ByteBuffer[(int) ((indexSlots + INDEX_CHUNK_MASK) >>> INDEX_CHUNK_SHIFT)];
+        for (int i = 0; i < index.length; i++) {
+            var slots = Math.min(INDEX_CHUNK_MASK + 1, indexSlots - ((long) i << INDEX_CHUNK_SHIFT));
+            index[i] = ByteBuffer.allocateDirect((int) (slots * Long.BYTES)).order(ByteOrder.nativeOrder());
+        }
+
+        Files.createDirectories(directory);
+        recover();
+        log.warn(
+                "opened disk score tier path={} segments={} maxBytes={} indexBytes={} entries={}",
+                directory, segmentsByAge.size(), maxSegments * SEGMENT_BYTES, indexSlots * Long.BYTES, entries
+        );
+    }
+
+    /**
+     * Appends an evicted entry under the default TTL. Entries that have already been idle
+     * for longer than that are ignored. Matches ScoreStore.EvictionListener.
+     */
+    public void put(long context, long item, double score, long idleMillis, long ageMillis) {
+        if (!accepts(score, idleMillis, defaultTtlMillis)) {
+            return;
+        }
+        var now = System.currentTimeMillis();
+        var expiresAt = expiresAt(now, idleMillis, defaultTtlMillis);
+        var stamp = lock.writeLock();
+        try {
+            append(context, item, score, now - ageMillis, expiresAt);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Appends the first count entries of the arrays under a single lock. Used by
+     * DiskSpillQueue, which has already turned idle times and ages into epoch millis.
+     */
+    public void putAll(long[] contexts, long[] items, double[] scores, long[] writtenAts, long[] expiresAts, int count) {
+        var stamp = lock.writeLock();
+        try {
+            for (int i = 0; i < count; i++) {
+                append(contexts[i], items[i], scores[i], writtenAts[i], expiresAts[i]);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return the TTL of entries whose partition does not set a disk TTL of its own
+     */
+    public Duration defaultTtl() {
+        return Duration.ofMillis(defaultTtlMillis);
+    }
+
+    /**
+     * @return false for entries that would already have expired under ttlMillis
+     */
+    boolean accepts(double score, long idleMillis, long ttlMillis) {
+        return idleMillis < ttlMillis && !Double.isNaN(score);
+    }
+
+    /**
+     * @return when an entry evicted at now after idleMillis unread expires under ttlMillis
+     */
+    long expiresAt(long now, long idleMillis, long ttlMillis) {
+        return now - idleMillis + ttlMillis;
+    }
+
+    /**
+     * Looks up every item under the given context, filling scores exactly like
+     * ScoreStore.getScores does.
+     *
+     * @return the number of items found
+     */
+    public int getScores(long context, long[] items, double[] scores) {
+        return getScores(context, items, scores, null);
+    }
+
+    /**
+     * Like getScores, but also reports how long ago every entry found was first written,
+     * however long it has spent in memory and on disk since.
+     *
+     * @param ages output array at least as long as items, or null when not needed
+     */
+    public int getScores(long context, long[] items, double[] scores, long[] ages) {
+        var now = System.currentTimeMillis();
+        var stamp = lock.tryOptimisticRead();
+        var hits = getAll(context, items, scores, ages, now);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                hits = getAll(context, items, scores, ages, now);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * @return the number of keys currently indexed, some of which may have expired
+     */
+    public long size() {
+        var stamp = lock.readLock();
+        try {
+            return entries;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return live records moved to a newer segment while reclaiming an old one
+     */
+    public long compactedCount() {
+        return compacted.sum();
+    }
+
+    /**
+     * @return live records dropped while reclaiming an old segment
+     */
+    public long evictionCount() {
+        return evicted.sum();
+    }
+
+    /**
+     * Flushes every segment to disk. Closing is optional, the page cache writes segments
+     * back on its own and a restart picks up whatever made it.
+     */
+    @Override
+    public void close() {
+        var stamp = lock.writeLock();
+        try {
+            for (var segment : segmentsByAge) {
+                segment.buffer.force();
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private int getAll(long context, long[] items, double[] scores, long[] ages, long now) {
+        var hits = 0;
+        for (int i = 0; i < items.length; i++) {
+            scores[i] = get(context, items[i], now, ages, i);
+            if (!Double.isNaN(scores[i])) {
+                hits += 1;
+            }
+        }
+        return hits;
+    }
+
+    /*
+     * Safe to run optimistically, segments are never unmapped while still referenced and
+     * a torn read at worst returns a score the caller throws away after validating. The
+     * age of a hit goes to ages[index] when ages is not null.
+     */
+    private double get(long context, long item, long now, long[] ages, int index) {
+        var tag = tag(context, item);
+        var slot = home(tag);
+        // bounded so that a torn optimistic read can never spin forever
+        for (long probes = 0; probes < indexSlots; probes++) {
+            var entry = indexGet(slot);
+            if (entry == 0) {
+                return Double.NaN;
+            }
+            if (entry >>> TAG_SHIFT == tag) {
+                var segment = segments[segmentOf(entry)];
+                if (segment != null) {
+                    var offset = recordOf(entry) * RECORD_BYTES;
+                    if (segment.buffer.getLong(offset + ITEM_OFFSET) == item
+                            && segment.buffer.getLong(offset + CONTEXT_OFFSET) == context) {
+                        var expiresAt = segment.buffer.getLong(offset + EXPIRES_AT_OFFSET);
+                        if (now >= expiresAt) {
+                            return Double.NaN;
+                        }
+                        if (ages != null) {
+                            ages[index] = Math.max(0, now - segment.buffer.getLong(offset + WRITTEN_AT_OFFSET));
+                        }
+                        return segment.buffer.getDouble(offset + SCORE_OFFSET);
+                    }
+                }
+            }
+            slot = next(slot);
+        }
+        return Double.NaN;
+    }
+
+    private void append(long context, long item, double score, long writtenAt, long expiresAt) {
+        var active = segmentsByAge.peekLast();
+        if (active == null || active.count == RECORDS_PER_SEGMENT) {
+            active = roll();
+        }
+
+        var record = active.count;
+        var offset = record * RECORD_BYTES;
+        active.buffer.putLong(offset + CONTEXT_OFFSET, context);
+        active.buffer.putLong(offset + ITEM_OFFSET, item);
+        active.buffer.putDouble(offset + SCORE_OFFSET, score);
+        active.buffer.putLong(offset + WRITTEN_AT_OFFSET, writtenAt);
+        // written last, a record only counts once its expiry is there
+        active.buffer.putLong(offset + EXPIRES_AT_OFFSET, expiresAt);
+        active.count += 1;
+
+        indexPut(context, item, location(active.id, record));
+    }
+
+    private Segment roll() {
+        long[] survivors = null;
+        if (freeSegmentIds.isEmpty()) {
+            survivors = reclaimOldest();
+        }
+
+        Segment segment;
+        try {
+            segment = Segment.open(freeSegmentIds.poll(), nextSequence++, directory);
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+        segments[segment.id] = segment;
+        segmentsByAge.addLast(segment);
+
+        if (survivors != null) {
+            for (int i = 0; i < survivors.length; i += SURVIVOR_LONGS) {
+                append(
+                        survivors[i],
+                        survivors[i + 1],
+                        Double.longBitsToDouble(survivors[i + 2]),
+                        survivors[i + 3],
+                        survivors[i + 4]
+                );
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * Frees the oldest segment, unindexing everything in it.
+     *
+     * @return records to carry over into the next segment, SURVIVOR_LONGS longs each
+     */
+    private long[] reclaimOldest() {
+        var oldest = segmentsByAge.pollFirst();
+        var now = System.currentTimeMillis();
+
+        var live = new int[oldest.count];
+        var liveCount = 0;
+        for (int record = 0; record < oldest.count; record++) {
+            var offset = record * RECORD_BYTES;
+            var expiresAt = oldest.buffer.getLong(offset + EXPIRES_AT_OFFSET);
+            var context = oldest.buffer.getLong(offset + CONTEXT_OFFSET);
+            var item = oldest.buffer.getLong(offset + ITEM_OFFSET);
+            if (indexRemove(context, item, location(oldest.id, record)) && now < expiresAt) {
+                live[liveCount++] = record;
+            }
+        }
+
+        var survivors = new long[0];
+        if (liveCount <= oldest.count * COMPACTION_THRESHOLD) {
+            survivors = new long[liveCount * SURVIVOR_LONGS];
+            for (int i = 0; i < liveCount; i++) {
+                var offset = live[i] * RECORD_BYTES;
+                var survivor = i * SURVIVOR_LONGS;
+                survivors[survivor] = oldest.buffer.getLong(offset + CONTEXT_OFFSET);
+                survivors[survivor + 1] = oldest.buffer.getLong(offset + ITEM_OFFSET);
+                survivors[survivor + 2] = oldest.buffer.getLong(offset + SCORE_OFFSET);
+                survivors[survivor + 3] = oldest.buffer.getLong(offset + WRITTEN_AT_OFFSET);
+                survivors[survivor + 4] = oldest.buffer.getLong(offset + EXPIRES_AT_OFFSET);
+            }
+            compacted.add(liveCount);
+        } else {
+            evicted.add(liveCount);
+        }
+
+        segments[oldest.id] = null;
+        freeSegmentIds.add(oldest.id);
+        try {
+            Files.deleteIfExists(oldest.path);
+        } catch (IOException exception) {
+            log.error("failed to delete reclaimed score segment path={}", oldest.path, exception);
+        }
+        return survivors;
+    }
+
+    private void recover() throws IOException {
+        var files = new ArrayList<Path>();
+        try (var listing = Files.list(directory)) {
+            listing
+                    .filter(path -> {
+                        var name = path.getFileName().toString();
+                        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+                    })
+                    .forEach(files::add);
+        }
+        files.sort(Comparator.comparingLong(DiskScoreTier::sequenceOf));
+
+        for (var iterator = files.iterator(); iterator.hasNext(); ) {
+            var file = iterator.next();
+            if (Files.size(file) != SEGMENT_BYTES) {
+                log.warn("deleting score segment with an unexpected size path={} bytes={}", file, Files.size(file));
+                Files.delete(file);
+                iterator.remove();
+            }
+        }
+
+        // keep only the newest segments if the tier was shrunk since they were written
+        while (files.size() > maxSegments) {
+            Files.deleteIfExists(files.remove(0));
+        }
+
+        var now = System.currentTimeMillis();
+        var stamp = lock.writeLock();
+        try {
+            for (var file : files) {
+                var segment = Segment.open(freeSegmentIds.poll(), sequenceOf(file), directory);
+                segments[segment.id] = segment;
+                segmentsByAge.addLast(segment);
+                nextSequence = segment.sequence + 1;
+
+                while (segment.count < RECORDS_PER_SEGMENT) {
+                    var offset = segment.count * RECORD_BYTES;
+                    var expiresAt = segment.buffer.getLong(offset + EXPIRES_AT_OFFSET);
+                    if (expiresAt == 0) {
+                        break;
+                    }
+                    if (now < expiresAt) {
+                        indexPut(
+                                segment.buffer.getLong(offset + CONTEXT_OFFSET),
+                                segment.buffer.getLong(offset + ITEM_OFFSET),
+                                location(segment.id, segment.count)
+                        );
+                    }
+                    segment.count += 1;
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void indexPut(long context, long item, long location) {
+        var tag = tag(context, item);
+        var entry = (tag << TAG_SHIFT) | location;
+        var slot = home(tag);
+        while (true) {
+            var existing = indexGet(slot);
+            if (existing == 0) {
+                indexSet(slot, entry);
+                entries += 1;
+                return;
+            }
+            if (existing >>> TAG_SHIFT == tag && recordMatches(existing, context, item)) {
+                indexSet(slot, entry);
+                return;
+            }
+            slot = next(slot);
+        }
+    }
+
+    /**
+     * Removes the key from the index if it still points at the given location, shifting
+     * later entries of the probe sequence back so lookups never need tombstones.
+     *
+     * @return true if the key was removed
+     */
+    private boolean indexRemove(long context, long item, long location) {
+        var tag = tag(context, item);
+        var slot = home(tag);
+        while (true) {
+            var existing = indexGet(slot);
+            if (existing == 0) {
+                return false;
+            }
+            if (existing >>> TAG_SHIFT == tag && recordMatches(existing, context, item)) {
+                if ((existing & ~(-1L << TAG_SHIFT)) != location) {
+                    return false;
+                }
+                break;
+            }
+            slot = next(slot);
+        }
+
+        var hole = slot;
+        var current = next(hole);
+        while (true) {
+            var existing = indexGet(current);
+            if (existing == 0) {
+                break;
+            }
+            var home = home(existing >>> TAG_SHIFT);
+            // move the entry into the hole unless its home lies cyclically in (hole, current]
+            var stays = hole <= current
+                    ? hole < home && home <= current
+                    : hole < home || home <= current;
+            if (!stays) {
+                indexSet(hole, existing);
+                hole = current;
+            }
+            current = next(current);
+        }
+        indexSet(hole, 0L);
+        entries -= 1;
+        return true;
+    }
+
+    private boolean recordMatches(long entry, long context, long item) {
+        var segment = segments[segmentOf(entry)];
+        var offset = recordOf(entry) * RECORD_BYTES;
+        return segment != null
+                && segment.buffer.getLong(offset + ITEM_OFFSET) == item
+                && segment.buffer.getLong(offset + CONTEXT_OFFSET) == context;
+    }
+
+    private long indexGet(long slot) {
+        return index[(int) (slot >>> INDEX_CHUNK_SHIFT)].getLong((int) (slot & INDEX_CHUNK_MASK) * Long.BYTES);
+    }
+
+    private void indexSet(long slot, long entry) {
+        index[(int) (slot >>> INDEX_CHUNK_SHIFT)].putLong((int) (slot & INDEX_CHUNK_MASK) * Long.BYTES, entry);
+    }
+
+    private long home(long tag) {
+        // maps the tag onto [0, indexSlots) without needing a power of two table
+        return (tag * indexSlots) >>> TAG_BITS;
+    }
+
+    private long next(long slot) {
+        return slot + 1 == indexSlots ? 0 : slot + 1;
+    }
+
+    private static long tag(long context, long item) {
+        // the top bits, the low bits of the same hash already picked the memory bucket
+        return ScoreKey.hash(context, item) >>> (Long.SIZE - TAG_BITS);
+    }
+
+    private static long location(int segmentId, int record) {
+        return ((long) segmentId << SEGMENT_SHIFT) | record;
+    }
+
+    private static int segmentOf(long entry) {
+        return (int) ((entry >>> SEGMENT_SHIFT) & SEGMENT_MASK);
+    }
+
+    private static int recordOf(long entry) {
+        return (int) (entry & RECORD_MASK);
+    }
+
+    private static long sequenceOf(Path path) {
+        var name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()), 16);
+    }
+
+    private static final class Segment {
+        private final int id;
+        private final long sequence;
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private int count;
+
+        private Segment(int id, long sequence, Path path, MappedByteBuffer buffer) {
+            this.id = id;
+            this.sequence = sequence;
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        /*
+         * mapping past the end of a new file grows it, sparse and zero filled
+         */
+        static Segment open(int id, long sequence, Path directory) throws IOException {
+            var path = directory.resolve(SEGMENT_PREFIX + "%016x".formatted(sequence) + SEGMENT_SUFFIX);
+            try (var channel = FileChannel.open(
+                    path,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)
+            ) {
+                var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                return new Segment(id, sequence, path, buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache.cache;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded queue between the memory stores and the disk tier.
+ *
+ * Eviction listeners run under a store's write lock, so they only copy the entry into a
+ * ring of primitive arrays, and a single score-cache-disk-writer thread appends entries
+ * to the tier in batches. When the ring is full evictions are dropped and counted, which
+ * only means a later miss goes to the backend.
+ *
+ * Each partition spills through a listener of its own, which stamps its entries with the
+ * partition's disk TTL.
+ */
+public class DiskSpillQueue {
+    private static final Logger log = LoggerFactory.getLogger(DiskSpillQueue.class);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final DiskScoreTier tier;
+    private final int capacity;
+    private final int mask;
+    private final long[] contexts;
+    private final long[] items;
+    private final double[] scores;
+    private final long[] writtenAts;
+    private final long[] expiresAts;
+    // guarded by this
+    private long head;
+    private long tail;
+
+    // only ever touched by the writer thread
+    private final long[] batchContexts;
+    private final long[] batchItems;
+    private final double[] batchScores;
+    private final long[] batchWrittenAts;
+    private final long[] batchExpiresAts;
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean running = true;
+    private volatile boolean flushed = true;
+
+    public DiskSpillQueue(DiskScoreTier tier, int capacity, int batchSize) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two, found " + capacity);
+        }
+        this.tier = tier;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        contexts = new long[capacity];
+        items = new long[capacity];
+        scores = new double[capacity];
+        writtenAts = new long[capacity];
+        expiresAts = new long[capacity];
+
+        var batch = Math.min(batchSize, capacity);
+        batchContexts = new long[batch];
+        batchItems = new long[batch];
+        batchScores = new double[batch];
+        batchWrittenAts = new long[batch];
+        batchExpiresAts = new long[batch];
+
+        var thread = new Thread(this::drain, "score-cache-disk-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param ttl how long entries of the spilling partition are kept on disk, counted from
+     *            their last read
+     * @return a listener queueing evicted entries to expire ttl after they were last read
+     */
+    public ScoreStore.EvictionListener listener(Duration ttl) {
+        var ttlMillis = ttl.toMillis();
+        return (context, item, score, idleMillis, ageMillis) -> {
+            if (tier.accepts(score, idleMillis, ttlMillis)) {
+                // both times are relative to now, so they are pinned down before the entry waits
+                var now = System.currentTimeMillis();
+                offer(context, item, score, now - ageMillis, tier.expiresAt(now, idleMillis, ttlMillis));
+            }
+        };
+    }
+
+    /*
+     * Queues the entry for the disk tier, or drops it if the queue is full. Never blocks
+     * on the tier.
+     */
+    private void offer(long context, long item, double score, long writtenAt, long expiresAt) {
+        synchronized (this) {
+            if (!running || tail - head == capacity) {
+                dropped.increment();
+                return;
+            }
+            var slot = (int) (tail & mask);
+            contexts[slot] = context;
+            items[slot] = item;
+            scores[slot] = score;
+            writtenAts[slot] = writtenAt;
+            expiresAts[slot] = expiresAt;
+            tail += 1;
+        }
+    }
+
+    /**
+     * Stops accepting evictions and gives the writer up to timeout to append what is left
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        running = false;
+        var deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!isDrained() && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    /**
+     * @return evictions appended to the disk tier so far
+     */
+    public long writtenCount() {
+        return written.sum();
+    }
+
+    /**
+     * @return evictions dropped because the queue was full
+     */
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    private synchronized boolean isDrained() {
+        return head == tail && flushed;
+    }
+
+    private void drain() {
+        while (true) {
+            int count;
+            synchronized (this) {
+                count = (int) Math.min(batchItems.length, tail - head);
+                for (int i = 0; i < count; i++) {
+                    var slot = (int) ((head + i) & mask);
+                    batchContexts[i] = contexts[slot];
+                    batchItems[i] = items[slot];
+                    batchScores[i] = scores[slot];
+                    batchWrittenAts[i] = writtenAts[slot];
+                    batchExpiresAts[i] = expiresAts[slot];
+                }
+                head += count;
+                flushed = count == 0;
+            }
+
+            if (count == 0) {
+                if (!running) {
+                    return;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+
+            try {
+                tier.putAll(batchContexts, batchItems, batchScores, batchWrittenAts, batchExpiresAts, count);
+                written.add(count);
+            } catch (RuntimeException exception) {
+                log.error("failed to write {} evicted scores to the disk tier", count, exception);
+            }
+        }
+    }
+}
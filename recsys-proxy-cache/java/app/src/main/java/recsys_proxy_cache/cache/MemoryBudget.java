@@ -0,0 +1,79 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache.cache;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import java.lang.management.ManagementFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Turns a fraction of the memory the JVM may use into a byte budget for a score store.
+ *
+ * Stores used to be sized by entry count, which says nothing about how much memory they
+ * actually take. With -Xmx512M the real bound ended up being an OOM rather than the cache
+ * limit. Budgets are instead taken out of the region the store lives in: the heap for the
+ * caffeine and context stores, direct memory for the off heap store.
+ *
+ * Direct memory is capped by -XX:MaxDirectMemorySize, which defaults to the max heap size
+ * when unset. Keep in mind the disk tier's index and grpc's buffers come out of the same
+ * region, so fractions across all partitions should leave room for them.
+ */
+final class MemoryBudget {
+    private static final Logger log = LoggerFactory.getLogger(MemoryBudget.class);
+
+    private MemoryBudget() {}
+
+    /**
+     * @return fraction of the memory region store lives in, in bytes
+     */
+    static long fractionOf(String store, double fraction) {
+        if (!(fraction > 0 && fraction <= 1)) {
+            throw new IllegalArgumentException("memory fraction must be in (0, 1], found " + fraction);
+        }
+        var region = isOffHeap(store) ? maxDirectBytes() : maxHeapBytes();
+        return (long) (region * fraction);
+    }
+
+    static boolean isOffHeap(String store) {
+        return store.equalsIgnoreCase("offheap");
+    }
+
+    static long maxHeapBytes() {
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    static long maxDirectBytes() {
+        try {
+            var option = ManagementFactory
+                    .getPlatformMXBean(HotSpotDiagnosticMXBean.class)
+                    .getVMOption("MaxDirectMemorySize");
+            var bytes = Long.parseLong(option.getValue());
+            if (bytes > 0) {
+                return bytes;
+            }
+        } catch (RuntimeException exception) {
+            log.warn("could not read MaxDirectMemorySize, assuming it matches the max heap", exception);
+        }
+        // 0 means unset, in which case the JVM caps direct memory at the max heap size
+        return maxHeapBytes();
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache.cache;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fixed size, open addressed score store living entirely outside the java heap.
+ *
+ * The caffeine backed store costs us well over 100 bytes an entry once you add up the
+ * key object, the boxed Double and the cache node itself. All we
+ * actually need to hold is a 128-bit key and an 8-byte score. Here every entry is a fixed
+ * 32 byte slot in a direct ByteBuffer, which the garbage collector never has to trace.
+ *
+ * Slot layout:
+ *
+ *   [0, 8)   context fingerprint
+ *   [8, 16)  item id
+ *   [16, 24) score
+ *   [24, 32) stamp. 0 marks an empty slot
+ *
+ * The stamp packs two clocks into one word. The low 40 bits are the access stamp, in
+ * millis since the store was created, which drives expiry and eviction. The high 24 bits
+ * are when the score was written, in seconds and wrapping every 194 days, which is all
+ * ScoreCache needs to compare against TTLs measured in minutes.
+ *
+ * Slots are grouped into buckets of WAYS slots. A key hashes to exactly one bucket and
+ * may live in any slot of it, so a lookup touches at most 256 contiguous bytes. Slots are
+ * never emptied once filled, which means the first empty slot in a bucket ends the probe.
+ *
+ * When a bucket is full the slot with the oldest access stamp is replaced. Per bucket LRU
+ * over a set associative table is a close enough approximation of global LRU for our
+ * traffic, and expired entries always have the oldest stamps so they are reclaimed first.
+ */
+public class OffHeapScoreStore implements ScoreStore {
+    private static final Logger log = LoggerFactory.getLogger(OffHeapScoreStore.class);
+
+    static final int SLOT_BYTES = 32;
+    private static final int CONTEXT_OFFSET = 0;
+    private static final int ITEM_OFFSET = 8;
+    private static final int SCORE_OFFSET = 16;
+    private static final int STAMP_OFFSET = 24;
+
+    private static final int WRITTEN_SHIFT = 40;
+    private static final long ACCESS_MASK = (1L << WRITTEN_SHIFT) - 1;
+    private static final long WRITTEN_MASK = (1L << (Long.SIZE - WRITTEN_SHIFT)) - 1;
+
+    // atomic access to stamps, in the same native order the segments are written in
+    private static final VarHandle STAMPS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private static final int WAYS = 8;
+    private static final int BUCKET_BYTES = SLOT_BYTES * WAYS;
+
+    /*
+     * direct buffers are int indexed, so the table is split into segments of at most 1GB
+     */
+    private static final int MAX_BUCKETS_PER_SEGMENT = (1 << 30) / BUCKET_BYTES;
+    private static final int MAX_LOCK_STRIPES = 4096;
+
+    private final ByteBuffer[] segments;
+    private final int segmentShift;
+    private final int segmentBucketMask;
+    private final long bucketMask;
+    private final StampedLock[] locks;
+    private final long expireAfterAccessMillis;
+    private final long createdAtNanos;
+    private final EvictionListener evictionListener;
+    private final LongAdder occupied = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public OffHeapScoreStore(long maximumSize, Duration expireAfterAccess) {
+        this(maximumSize, expireAfterAccess, EvictionListener.IGNORE);
+    }
+
+    public OffHeapScoreStore(long maximumSize, Duration expireAfterAccess, EvictionListener evictionListener) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize must be positive, found " + maximumSize);
+        }
+
+        var buckets = Long.highestOneBit((maximumSize + WAYS - 1) / WAYS);
+        if (buckets * WAYS < maximumSize) {
+            buckets <<= 1;
+        }
+        var bucketsPerSegment = (int) Math.min(buckets, MAX_BUCKETS_PER_SEGMENT);
+
+        segments = new ByteBuffer[(int) (buckets / bucketsPerSegment)];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = ByteBuffer
+                    .allocateDirect(bucketsPerSegment * BUCKET_BYTES)
+                    .order(ByteOrder.nativeOrder());
+        }
+
+        segmentShift = Integer.numberOfTrailingZeros(bucketsPerSegment);
+        segmentBucketMask = bucketsPerSegment - 1;
+        bucketMask = buckets - 1;
+
+        locks = new StampedLock[(int) Math.min(MAX_LOCK_STRIPES, buckets)];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new StampedLock();
+        }
+
+        this.expireAfterAccessMillis = expireAfterAccess.toMillis();
+        this.createdAtNanos = System.nanoTime();
+        this.evictionListener = evictionListener;
+        log.warn("allocated off heap score store slots={} bytes={}", capacity(), buckets * BUCKET_BYTES);
+    }
+
+    /**
+     * @return the number of slots in the table, maximumSize rounded up to a power of two
+     */
+    public long capacity() {
+        return (bucketMask + 1) * WAYS;
+    }
+
+    /**
+     * @return the number of live entries replaced to make room for new ones
+     */
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long size() {
+        return occupied.sum();
+    }
+
+    /*
+     * the whole table is allocated up front, so it takes the same memory empty or full
+     */
+    @Override
+    public long bytesUsed() {
+        return capacity() * SLOT_BYTES;
+    }
+
+    @Override
+    public int getScores(long context, long[] items, double[] scores, long[] ages) {
+        var now = now();
+        var hits = 0;
+        for (int i = 0; i < items.length; i++) {
+            var word = get(context, items[i], now, scores, i);
+            if (word != 0) {
+                hits += 1;
+                if (ages != null) {
+                    ages[i] = writtenAgeMillis(word, now);
+                }
+            }
+        }
+        return hits;
+    }
+
+    @Override
+    public void setScores(long context, long[] items, double[] scores, long[] ages) {
+        var now = now();
+        for (int i = 0; i < items.length; i++) {
+            set(context, items[i], scores[i], now, now, ages == null ? now : now - ages[i]);
+        }
+    }
+
+    @Override
+    public void forEach(EntryVisitor visitor) {
+        var now = now();
+        for (long bucket = 0; bucket <= bucketMask; bucket++) {
+            var segment = segments[(int) (bucket >>> segmentShift)];
+            var base = (int) (bucket & segmentBucketMask) * BUCKET_BYTES;
+            var lock = locks[(int) (bucket & (locks.length - 1))];
+
+            var stamp = lock.readLock();
+            try {
+                for (int slot = base; slot < base + BUCKET_BYTES; slot += SLOT_BYTES) {
+                    var slotStamp = segment.getLong(slot + STAMP_OFFSET);
+                    if (slotStamp == 0) {
+                        break;
+                    }
+                    var remaining = expireAfterAccessMillis - (now - accessOf(slotStamp));
+                    if (remaining > 0) {
+                        visitor.visit(
+                                segment.getLong(slot + CONTEXT_OFFSET),
+                                segment.getLong(slot + ITEM_OFFSET),
+                                segment.getDouble(slot + SCORE_OFFSET),
+                                remaining,
+                                writtenAgeMillis(slotStamp, now)
+                        );
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    @Override
+    public void restore(long context, long item, double score, long remainingTtlMillis, long ageMillis) {
+        var now = now();
+        // backdate the access stamp so the entry expires when it would have originally
+        var stamp = Math.max(1, now - (expireAfterAccessMillis - remainingTtlMillis));
+        set(context, item, score, now, stamp, now - ageMillis);
+    }
+
+    /**
+     * Writes the score of item into scores[index], or NaN when it is missing.
+     *
+     * @return the stamp of the slot found, 0 when there was none
+     */
+    private long get(long context, long item, long now, double[] scores, int index) {
+        var bucket = ScoreKey.hash(context, item) & bucketMask;
+        var segment = segments[(int) (bucket >>> segmentShift)];
+        var base = (int) (bucket & segmentBucketMask) * BUCKET_BYTES;
+        var lock = locks[(int) (bucket & (locks.length - 1))];
+
+        /*
+         * Reads are optimistic and only fall back to the read lock when a writer got in
+         * the way. The access stamp is touched afterwards without the lock, by a compare
+         * and set against the stamp that was read: if a writer refreshed or replaced the
+         * slot in between, its stamp is newer and is kept as is.
+         */
+        var stamp = lock.tryOptimisticRead();
+        var slot = find(segment, base, context, item, now);
+        var score = slot < 0 ? Double.NaN : segment.getDouble(slot + SCORE_OFFSET);
+        var word = slot < 0 ? 0L : segment.getLong(slot + STAMP_OFFSET);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                slot = find(segment, base, context, item, now);
+                score = slot < 0 ? Double.NaN : segment.getDouble(slot + SCORE_OFFSET);
+                word = slot < 0 ? 0L : segment.getLong(slot + STAMP_OFFSET);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        scores[index] = score;
+        if (slot >= 0) {
+            STAMPS.compareAndSet(segment, slot + STAMP_OFFSET, word, (word & ~ACCESS_MASK) | now);
+        }
+        return word;
+    }
+
+    private int find(ByteBuffer segment, int base, long context, long item, long now) {
+        for (int slot = base; slot < base + BUCKET_BYTES; slot += SLOT_BYTES) {
+            var slotStamp = segment.getLong(slot + STAMP_OFFSET);
+            if (slotStamp == 0) {
+                return -1;
+            }
+            if (segment.getLong(slot + ITEM_OFFSET) == item && segment.getLong(slot + CONTEXT_OFFSET) == context) {
+                return now - accessOf(slotStamp) > expireAfterAccessMillis ? -1 : slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param writtenAt when the score was computed, in store millis. May be before the
+     *                  store was created
+     */
+    private void set(long context, long item, double score, long now, long accessStamp, long writtenAt) {
+        var bucket = ScoreKey.hash(context, item) & bucketMask;
+        var segment = segments[(int) (bucket >>> segmentShift)];
+        var base = (int) (bucket & segmentBucketMask) * BUCKET_BYTES;
+        var lock = locks[(int) (bucket & (locks.length - 1))];
+
+        var stamp = lock.writeLock();
+        try {
+            var target = -1;
+            var oldest = base;
+            var oldestStamp = Long.MAX_VALUE;
+            var oldestWord = 0L;
+            for (int slot = base; slot < base + BUCKET_BYTES; slot += SLOT_BYTES) {
+                var slotStamp = segment.getLong(slot + STAMP_OFFSET);
+                if (slotStamp == 0) {
+                    target = slot;
+                    occupied.increment();
+                    break;
+                }
+                if (segment.getLong(slot + ITEM_OFFSET) == item && segment.getLong(slot + CONTEXT_OFFSET) == context) {
+                    segment.putDouble(slot + SCORE_OFFSET, score);
+                    segment.putLong(slot + STAMP_OFFSET, stampOf(writtenAt, accessStamp));
+                    return;
+                }
+                if (accessOf(slotStamp) < oldestStamp) {
+                    oldest = slot;
+                    oldestStamp = accessOf(slotStamp);
+                    oldestWord = slotStamp;
+                }
+            }
+
+            if (target < 0) {
+                target = oldest;
+                if (now - oldestStamp <= expireAfterAccessMillis) {
+                    evictions.increment();
+                }
+                evictionListener.evicted(
+                        segment.getLong(target + CONTEXT_OFFSET),
+                        segment.getLong(target + ITEM_OFFSET),
+                        segment.getDouble(target + SCORE_OFFSET),
+                        now - oldestStamp,
+                        writtenAgeMillis(oldestWord, now)
+                );
+            }
+
+            segment.putLong(target + CONTEXT_OFFSET, context);
+            segment.putLong(target + ITEM_OFFSET, item);
+            segment.putDouble(target + SCORE_OFFSET, score);
+            segment.putLong(target + STAMP_OFFSET, stampOf(writtenAt, accessStamp));
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private static long stampOf(long writtenAt, long accessStamp) {
+        return (Math.floorDiv(writtenAt, 1000) & WRITTEN_MASK) << WRITTEN_SHIFT | accessStamp;
+    }
+
+    private static long accessOf(long stamp) {
+        return stamp & ACCESS_MASK;
+    }
+
+    private static long writtenAgeMillis(long stamp, long now) {
+        return (((now / 1000) - (stamp >>> WRITTEN_SHIFT)) & WRITTEN_MASK) * 1000;
+    }
+
+    private long now() {
+        // offset by one so that a stamp of 0 always means an empty slot
+        return (System.nanoTime() - createdAtNanos) / 1_000_000 + 1;
+    }
+}
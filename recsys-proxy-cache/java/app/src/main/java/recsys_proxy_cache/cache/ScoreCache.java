@@ -20,124 +20,616 @@
  */
 package recsys_proxy_cache.cache;
 
-import com.github.benmanes.caffeine.cache.Caffeine;
-import com.github.benmanes.caffeine.cache.Scheduler;
 import com.google.common.collect.Maps;
-import com.google.common.hash.Hashing;
-import com.google.common.primitives.Bytes;
-import com.github.benmanes.caffeine.cache.Cache;
-import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
-import java.io.ByteArrayOutputStream;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.Collections;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import recsys_proxy_cache.protos.Context;
 
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
 
 public class ScoreCache {
     private static final Logger log = LoggerFactory.getLogger(ScoreCache.class.getName());
+    private static final Duration EXPIRE_AFTER_ACCESS = Duration.ofMinutes(5);
+
     /*
-     * Shared cache by all threads, backed by concurrent hashmap. See the javadocs for more.
-     *
-     * The maximumSize of the cache is a point of interest in the keys. We want to keep the
-     * cache size large enough to catch enough cases of repeat scoring, but small enough to
-     * keep memory sufficiently low. The larger the maximumSize the more likely collisions
-     * are. So choosing our hash algorithm is critical too.
-     *
-     * There are a lot of considerations here
+     * When SCORE_CACHE_DISK_PATH is set, whatever a partition's store evicts is spilled
+     * into the disk tier, which has to exist before any store does.
+     */
+    private static final Optional<DiskScoreTier> diskTier = getEnvDiskTier();
+
+    /*
+     * Stores evict under their own write lock, so evictions are queued here and appended
+     * to the disk tier by a writer thread rather than inline
+     */
+    private static final Optional<DiskSpillQueue> diskSpill = getEnvDiskSpill();
+
+    /*
+     * memory impacted by buffer size and writers operating, each buffered record
+     * costs 40 bytes of heap, per partition
+     */
+    private static final WriteSettings writeSettings = getEnvWriteSettings();
+
+    /*
+     * Stores shared by all threads. Models without a partition of their own share the
+     * default partition, whose store is configured through the environment. The off heap
+     * store is the default. The caffeine store and the two level context store are kept
+     * selectable so that we can compare hit rate and memory of each layout on real traffic.
      */
-    private static final Cache<ByteBuffer, Double> internalCache = Caffeine
-            .newBuilder()
-            .maximumSize(200_000_000)
-            .expireAfterAccess(5, TimeUnit.MINUTES)
-            .scheduler(Scheduler.systemScheduler())
-            .build();
+    private static final ScorePartition defaultPartition = getEnvDefaultPartition();
+    private static final List<ScorePartition> partitions = new ArrayList<>(List.of(defaultPartition));
+    private static final Map<String, ScorePartition> partitionsByModel = loadPartitions();
 
     /*
-     * memory impacted by queue size and threads operating
+     * Soft and hard TTLs measure how long ago a score was written, unlike the store's own
+     * expiry which is reset on every read and so never ages out a hot key. Both are off
+     * unless configured.
      */
-    private static final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>(10_000);
-    private static final ThreadPoolExecutor insertExecutor = new ThreadPoolExecutor(
-            3, 16, 10, TimeUnit.SECONDS, queue, Executors.defaultThreadFactory()
-    );
+    private static final Freshness freshness = getEnvFreshness();
+    private static final Optional<ScoreRefresher> refresher = getEnvRefresher();
 
+    private static final Optional<Path> snapshotPath = getEnvSnapshotPath();
+    private static final ScheduledExecutorService maintenanceExecutor = startMaintenance();
 
     public static void shutdown() {
         log.warn("shutting down cache gracefully");
-        queue.clear();
-        insertExecutor.shutdown();
+        // refreshes write through the buffers, so they have to stop first
+        refresher.ifPresent(r -> r.shutdown(5, TimeUnit.SECONDS));
+        for (var partition : partitions) {
+            partition.writeBuffer().shutdown(5, TimeUnit.SECONDS);
+        }
+        maintenanceExecutor.shutdown();
+        writeSnapshot();
+        diskSpill.ifPresent(spill -> spill.shutdown(5, TimeUnit.SECONDS));
+        diskTier.ifPresent(DiskScoreTier::close);
+    }
+
+    /**
+     * Warms the cache from the last snapshot, if SCORE_CACHE_SNAPSHOT_PATH points at one.
+     * A missing or unreadable snapshot only means starting cold, so failures are logged
+     * and swallowed.
+     */
+    public static void loadSnapshot() {
+        if (snapshotPath.isEmpty()) {
+            return;
+        }
+        for (var partition : partitions) {
+            var path = snapshotPathOf(partition);
+            if (!Files.exists(path)) {
+                continue;
+            }
+            var start = System.nanoTime();
+            try {
+                var loaded = ScoreSnapshots.load(partition.store(), path);
+                log.warn(
+                        "loaded {} cached scores into partition={} from snapshot in {}ms",
+                        loaded,
+                        partition.name(),
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                );
+            } catch (IOException | RuntimeException exception) {
+                log.error("failed to load score snapshot path={}, starting cold", path, exception);
+            }
+        }
+    }
+
+    /**
+     * Writes every live entry to SCORE_CACHE_SNAPSHOT_PATH. Synchronized so the periodic
+     * snapshot and the one taken on shutdown never write the same temporary file at once.
+     */
+    public static synchronized void writeSnapshot() {
+        if (snapshotPath.isEmpty()) {
+            return;
+        }
+        for (var partition : partitions) {
+            var path = snapshotPathOf(partition);
+            var start = System.nanoTime();
+            try {
+                var written = ScoreSnapshots.write(partition.store(), path);
+                log.info(
+                        "wrote {} cached scores of partition={} to snapshot in {}ms",
+                        written,
+                        partition.name(),
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                );
+            } catch (IOException | RuntimeException exception) {
+                log.error("failed to write score snapshot path={}", path, exception);
+            }
+        }
+    }
+
+    /*
+     * the default partition keeps the configured path, so snapshots from before
+     * partitions existed still load
+     */
+    private static Path snapshotPathOf(ScorePartition partition) {
+        var path = snapshotPath.orElseThrow();
+        if (partition == defaultPartition) {
+            return path;
+        }
+        return path.resolveSibling(path.getFileName() + "." + partition.name());
+    }
+
+    private record Freshness(long softTtlMillis, long hardTtlMillis) {
+        boolean enabled() {
+            return softTtlMillis != Long.MAX_VALUE || hardTtlMillis != Long.MAX_VALUE;
+        }
+    }
+
+    /*
+     * Past SCORE_CACHE_SOFT_TTL seconds a score is still served but queued to be scored
+     * again in the background. Past SCORE_CACHE_HARD_TTL seconds it is a miss. Either may
+     * be used without the other.
+     */
+    private static Freshness getEnvFreshness() {
+        var softTtl = System.getenv("SCORE_CACHE_SOFT_TTL");
+        log.warn("using SCORE_CACHE_SOFT_TTL={}", softTtl);
+
+        var hardTtl = System.getenv("SCORE_CACHE_HARD_TTL");
+        log.warn("using SCORE_CACHE_HARD_TTL={}", hardTtl);
+
+        return new Freshness(
+                softTtl == null ? Long.MAX_VALUE : TimeUnit.SECONDS.toMillis(Long.parseLong(softTtl)),
+                hardTtl == null ? Long.MAX_VALUE : TimeUnit.SECONDS.toMillis(Long.parseLong(hardTtl))
+        );
+    }
+
+    private static Optional<ScoreRefresher> getEnvRefresher() {
+        if (freshness.softTtlMillis() == Long.MAX_VALUE) {
+            return Optional.empty();
+        }
+
+        var threads = Optional
+                .ofNullable(System.getenv("SCORE_CACHE_REFRESH_THREADS"))
+                .orElse("2");
+        log.warn("using SCORE_CACHE_REFRESH_THREADS={}", threads);
+
+        var maxPending = Optional
+                .ofNullable(System.getenv("SCORE_CACHE_REFRESH_MAX_PENDING"))
+                .orElse("10000");
+        log.warn("using SCORE_CACHE_REFRESH_MAX_PENDING={}", maxPending);
+
+        return Optional.of(new ScoreRefresher(Integer.parseInt(threads), Integer.parseInt(maxPending)));
+    }
+
+    private static Optional<Path> getEnvSnapshotPath() {
+        var path = Optional
+                .ofNullable(System.getenv("SCORE_CACHE_SNAPSHOT_PATH"))
+                .filter(value -> !value.isBlank());
+        log.warn("using SCORE_CACHE_SNAPSHOT_PATH={}", path.orElse(null));
+        return path.map(Path::of);
+    }
+
+    private record WriteSettings(
+            int writers,
+            int capacity,
+            int batchSize,
+            ScoreWriteBuffer.OverflowPolicy overflowPolicy,
+            long blockTimeout
+    ) {
+        ScoreWriteBuffer newWriteBuffer(ScoreStore store, int writers) {
+            return new ScoreWriteBuffer(store, writers, capacity, batchSize, overflowPolicy, blockTimeout);
+        }
+    }
+
+    private static WriteSettings getEnvWriteSettings() {
+        var writers = Optional
+                .ofNullable(System.getenv("SCORE_CACHE_WRITERS"))
+                .orElse("3");
+        log.warn("using SCORE_CACHE_WRITERS={}", writers);
+
+        var capacity = Optional
+                .ofNullable(System.getenv("SCORE_CACHE_WRITE_BUFFER_SIZE"))
+                .orElse("131072");
+        log.warn("using SCORE_CACHE_WRITE_BUFFER_SIZE={}", capacity);
+
+        var batchSize = Optional
+                .ofNullable(System.getenv("SCORE_CACHE_WRITE_BATCH_SIZE"))
+                .orElse("4096");
+        log.warn("using SCORE_CACHE_WRITE_BATCH_SIZE={}", batchSize);
+
+        var overflowPolicy = Optional
+                .ofNullable(System.getenv("SCORE_CACHE_WRITE_OVERFLOW_POLICY"))
+                .orElse("drop");
+        log.warn("using SCORE_CACHE_WRITE_OVERFLOW_POLICY={}", overflowPolicy);
+
+        var blockTimeout = Optional
+                .ofNullable(System.getenv("SCORE_CACHE_WRITE_BLOCK_TIMEOUT"))
+                .orElse("5");
+        log.warn("using SCORE_CACHE_WRITE_BLOCK_TIMEOUT={}", blockTimeout);
+
+        return new WriteSettings(
+                Integer.parseInt(writers),
+                Integer.parseInt(capacity),
+                Integer.parseInt(batchSize),
+                ScoreWriteBuffer.OverflowPolicy.valueOf(overflowPolicy.toUpperCase()),
+                Long.parseLong(blockTimeout)
+        );
     }
 
-    final private byte[] hashedContext;
+    private static ScheduledExecutorService startMaintenance() {
+        var executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("score-cache-maintenance")
+                .setDaemon(true)
+                .build()
+        );
+        executor.scheduleAtFixedRate(ScoreCache::logStats, 1, 1, TimeUnit.MINUTES);
+
+        if (snapshotPath.isPresent()) {
+            var interval = Optional
+                    .ofNullable(System.getenv("SCORE_CACHE_SNAPSHOT_INTERVAL"))
+                    .orElse("300");
+            log.warn("using SCORE_CACHE_SNAPSHOT_INTERVAL={}", interval);
+            var seconds = Long.parseLong(interval);
+            executor.scheduleAtFixedRate(ScoreCache::writeSnapshot, seconds, seconds, TimeUnit.SECONDS);
+        }
+        return executor;
+    }
 
-    private ScoreCache(String modelName, Context context) {
-        var nameBytes = modelName.getBytes(StandardCharsets.US_ASCII);
-        // context bytes are surprisingly complex to parse, check the function
-        var contextBytes = getContextBytes(context);
+    private static void logStats() {
+        for (var partition : partitions) {
+            partition.logStats();
+        }
+        log.info(
+                "score cache stats partitions={} bytesUsed={} fingerprintHitRate={} diskEntries={} "
+                        + "diskSpilled={} diskSpillDropped={} refreshed={} refreshFailed={} refreshDropped={}",
+                partitions.size(),
+                partitions.stream().mapToLong(partition -> partition.store().bytesUsed()).sum(),
+                ContextFingerprints.stats().hitRate(),
+                diskTier.map(DiskScoreTier::size).orElse(0L),
+                diskSpill.map(DiskSpillQueue::writtenCount).orElse(0L),
+                diskSpill.map(DiskSpillQueue::droppedCount).orElse(0L),
+                refresher.map(ScoreRefresher::refreshedCount).orElse(0L),
+                refresher.map(ScoreRefresher::failedCount).orElse(0L),
+                refresher.map(ScoreRefresher::droppedCount).orElse(0L)
+        );
+    }
+
+    private static Optional<DiskScoreTier> getEnvDiskTier() {
+        var path = Optional
+                .ofNullable(System.getenv("SCORE_CACHE_DISK_PATH"))
+                .filter(value -> !value.isBlank());
+        log.warn("using SCORE_CACHE_DISK_PATH={}", path.orElse(null));
+        if (path.isEmpty()) {
+            return Optional.empty();
+        }
 
         /*
-         * Using farmfingerprint64 because its non-cryptographic and generally
-         * fast. Preference to usage over murmur3 simply because of known speed.
-         *
-         * We will be appending the item id bytes to the farmfingerprint64 to
-         * reduce has collisions further. Thus producing a 128-bit unique key
-         *
-         * It is however important that we keep the maximumSize in
-         * mind on the cache as well though. Consider the collision
-         * probability chance at 100Million keys
-         *
-         * But we also need to balance this against speed and memory
-         * usage in the cache as well.
+         * the tier's index lives in direct memory at roughly a quarter of the bytes on disk,
+         * so raising this may mean raising -XX:MaxDirectMemorySize too
          */
+        var maxBytes = Optional
+                .ofNullable(System.getenv("SCORE_CACHE_DISK_MAX_BYTES"))
+                .orElse("1073741824");
+        log.warn("using SCORE_CACHE_DISK_MAX_BYTES={}", maxBytes);
+
+        var ttl = Optional
+                .ofNullable(System.getenv("SCORE_CACHE_DISK_TTL"))
+                .orElse("3600");
+        log.warn("using SCORE_CACHE_DISK_TTL={}", ttl);
 
-        hashedContext = Hashing
-                .farmHashFingerprint64()
-                .newHasher(nameBytes.length + contextBytes.length)
-                .putBytes(nameBytes)
-                .putBytes(contextBytes)
-                .hash()
-                .asBytes();
+        try {
+            return Optional.of(new DiskScoreTier(
+                    Path.of(path.get()),
+                    Long.parseLong(maxBytes),
+                    Duration.ofSeconds(Long.parseLong(ttl))
+            ));
+        } catch (IOException exception) {
+            log.error("failed to open disk score tier path={}, running without it", path.get(), exception);
+            return Optional.empty();
+        }
+    }
+
+    private static Optional<DiskSpillQueue> getEnvDiskSpill() {
+        if (diskTier.isEmpty()) {
+            return Optional.empty();
+        }
+        // 40 bytes of heap per queued eviction, must be a power of two
+        var size = Optional
+                .ofNullable(System.getenv("SCORE_CACHE_DISK_QUEUE_SIZE"))
+                .orElse("65536");
+        log.warn("using SCORE_CACHE_DISK_QUEUE_SIZE={}", size);
+        return Optional.of(new DiskSpillQueue(diskTier.get(), Integer.parseInt(size), 512));
     }
 
-    private ByteBuffer getHashKey(long item) {
-        return ByteBuffer.wrap(
-                Bytes.concat(
-                        hashedContext,
-                        Longs.toByteArray(item)
-                )
+    /*
+     * partitions without a disk TTL of their own keep SCORE_CACHE_DISK_TTL
+     */
+    private static ScoreStore.EvictionListener evictionListener(Optional<Duration> diskTtl) {
+        return diskSpill.isPresent()
+                ? diskSpill.get().listener(diskTtl.orElse(diskTier.get().defaultTtl()))
+                : ScoreStore.EvictionListener.IGNORE;
+    }
+
+    private static ScorePartition getEnvDefaultPartition() {
+        var store = Optional
+                .ofNullable(System.getenv("SCORE_CACHE_STORE"))
+                .orElse("offheap");
+        log.warn("using SCORE_CACHE_STORE={}", store);
+
+        var maxBytes = getEnvMaxBytes(store);
+        var scoreStore = ScorePartition.newStore(store, maxBytes, EXPIRE_AFTER_ACCESS, evictionListener(Optional.empty()));
+        log.warn("created default score cache partition store={} maxBytes={}", store, maxBytes);
+        return new ScorePartition(
+                ScorePartition.DEFAULT_NAME,
+                scoreStore,
+                maxBytes,
+                writeSettings.newWriteBuffer(scoreStore, writeSettings.writers())
         );
     }
 
-    public Map<Long, Double> getScores(Collection<Long> items) {
-        var itemLookup = Maps.<ByteBuffer, Long>newHashMapWithExpectedSize(items.size());
-        for (var item : items) {
-            var key = getHashKey(item);
-            itemLookup.put(key, item);
+    /*
+     * The default partition takes SCORE_CACHE_MEMORY_FRACTION of the max heap, or of max
+     * direct memory for the off heap store, unless given an explicit SCORE_CACHE_MAX_BYTES.
+     * SCORE_CACHE_MAX_ENTRIES is still honoured for deployments that set it, and is
+     * converted to bytes.
+     *
+     * The off heap store rounds its slot count down to a power of two, so a budget just
+     * short of one gets close to half of it. With our -Xmx512M, Runtime.maxMemory reports
+     * a little under 512M since one survivor space is left out, a quarter of that is just
+     * under 128M, and the store ends up with 2M slots in 64M rather than the 4M it had
+     * when sized by entry count. SCORE_CACHE_MAX_BYTES=134217728 gets those 4M slots back.
+     */
+    private static long getEnvMaxBytes(String store) {
+        var maxBytes = System.getenv("SCORE_CACHE_MAX_BYTES");
+        log.warn("using SCORE_CACHE_MAX_BYTES={}", maxBytes);
+        if (maxBytes != null) {
+            return Long.parseLong(maxBytes);
         }
 
-        var cachedData = internalCache.getAllPresent(itemLookup.keySet());
-        var scoredItems = Maps.<Long, Double>newHashMapWithExpectedSize(cachedData.size());
-        for (var entry: cachedData.entrySet()) {
-            var item = itemLookup.get(entry.getKey());
-            scoredItems.put(item, entry.getValue());
+        var maxEntries = System.getenv("SCORE_CACHE_MAX_ENTRIES");
+        if (maxEntries != null) {
+            log.warn("using deprecated SCORE_CACHE_MAX_ENTRIES={}", maxEntries);
+            return Long.parseLong(maxEntries) * ScorePartition.estimatedBytesPerEntry(store);
+        }
+
+        var fraction = Optional
+                .ofNullable(System.getenv("SCORE_CACHE_MEMORY_FRACTION"))
+                .orElse("0.25");
+        log.warn("using SCORE_CACHE_MEMORY_FRACTION={}", fraction);
+        return MemoryBudget.fractionOf(store, Double.parseDouble(fraction));
+    }
+
+    private static Map<String, ScorePartition> loadPartitions() {
+        var byModel = new HashMap<String, ScorePartition>();
+        for (var config : ScorePartition.loadConfigs()) {
+            var maxBytes = config.resolveMaxBytes();
+            var store = ScorePartition.newStore(
+                    config.store(),
+                    maxBytes,
+                    config.expireAfterAccess(),
+                    evictionListener(config.diskTtl())
+            );
+            var partition = new ScorePartition(
+                    config.name(),
+                    store,
+                    maxBytes,
+                    writeSettings.newWriteBuffer(store, config.writers())
+            );
+            partitions.add(partition);
+            for (var model : config.models()) {
+                if (byModel.put(model, partition) != null) {
+                    throw new IllegalArgumentException("model=" + model + " is assigned to more than one partition");
+                }
+            }
+            log.warn(
+                    "created score cache partition name={} models={} store={} maxBytes={} expireAfterAccess={} diskTtl={}",
+                    config.name(), config.models(), config.store(), maxBytes, config.expireAfterAccess(),
+                    config.diskTtl().orElse(null)
+            );
+        }
+        return Map.copyOf(byModel);
+    }
+
+    final private long hashedContext;
+    final private ScorePartition partition;
+    final private Optional<ScoreRefresher.Rescorer> rescorer;
+
+    private ScoreCache(String modelName, long modelVersion, Context context, ScoreRefresher.Rescorer rescorer) {
+        partition = partitionsByModel.getOrDefault(modelName, defaultPartition);
+        this.rescorer = Optional.ofNullable(rescorer);
+        // fingerprints are memoized, check the class for how they are computed
+        hashedContext = ContextFingerprints.fingerprint(modelName, modelVersion, context);
+    }
+
+    /**
+     * @return the fingerprint of the model, its version and the context scores are cached under
+     */
+    public long fingerprint() {
+        return hashedContext;
+    }
+
+    /**
+     * Looks up cached scores without allocating anything per item.
+     *
+     * @param items items to look up
+     * @param scores receives the score of items[i] at scores[i], or NaN on a miss
+     * @return the number of items found
+     */
+    public int getScores(long[] items, double[] scores) {
+        var found = 0;
+        var expired = 0;
+        boolean[] hardExpired = null;
+        if (freshness.enabled()) {
+            var ages = new long[items.length];
+            found = partition.store().getScores(hashedContext, items, scores, ages);
+            if (found > 0) {
+                if (freshness.hardTtlMillis() != Long.MAX_VALUE) {
+                    hardExpired = new boolean[items.length];
+                }
+                expired = checkFreshness(items, scores, ages, found, hardExpired);
+                found -= expired;
+            }
+        } else {
+            found = partition.store().getScores(hashedContext, items, scores);
+        }
+
+        var foundOnDisk = 0;
+        if (found + expired < items.length && diskTier.isPresent()) {
+            foundOnDisk = getScoresFromDisk(diskTier.get(), items, scores, hardExpired, items.length - found - expired);
+            found += foundOnDisk;
+        }
+        partition.recordLookup(items.length, found, foundOnDisk);
+        return found;
+    }
+
+    /*
+     * Turns scores past the hard TTL into misses and queues those past the soft TTL to be
+     * scored again. Used for memory and disk hits alike.
+     *
+     * Hard expired items are flagged in hardExpired, when it is not null, so the disk tier
+     * is not asked for them: anything it holds for the key is an older copy and just as
+     * expired.
+     *
+     * @return the number of scores turned into misses
+     */
+    private int checkFreshness(long[] items, double[] scores, long[] ages, int found, boolean[] hardExpired) {
+        var expired = 0;
+        var stale = 0;
+        long[] staleItems = null;
+        for (int i = 0; i < items.length; i++) {
+            if (Double.isNaN(scores[i]) || ages[i] <= freshness.softTtlMillis()) {
+                continue;
+            }
+            if (ages[i] > freshness.hardTtlMillis()) {
+                scores[i] = Double.NaN;
+                if (hardExpired != null) {
+                    hardExpired[i] = true;
+                }
+                expired += 1;
+            } else {
+                if (staleItems == null) {
+                    staleItems = new long[found];
+                }
+                staleItems[stale] = items[i];
+                stale += 1;
+            }
+        }
+
+        if (stale > 0 && refresher.isPresent() && rescorer.isPresent()) {
+            refresher.get().refresh(
+                    hashedContext,
+                    Arrays.copyOf(staleItems, stale),
+                    rescorer.get(),
+                    partition.writeBuffer()
+            );
+        }
+        return expired;
+    }
+
+    /*
+     * Fills in memory misses from the disk tier and promotes whatever it finds back into
+     * memory. Disk hits are checked against the soft and hard TTLs like memory hits, and
+     * are promoted with the age they were written with so they expire on schedule.
+     * Promotions go through the write buffer like any other insert, so a read never ends
+     * up waiting on a store write lock. Items flagged in hardExpired, which may be null,
+     * are left as misses.
+     */
+    private int getScoresFromDisk(DiskScoreTier tier, long[] items, double[] scores, boolean[] hardExpired, int missing) {
+        var missedIndexes = new int[missing];
+        var missedItems = new long[missing];
+        var m = 0;
+        for (int i = 0; i < items.length && m < missing; i++) {
+            if (Double.isNaN(scores[i]) && (hardExpired == null || !hardExpired[i])) {
+                missedIndexes[m] = i;
+                missedItems[m] = items[i];
+                m += 1;
+            }
+        }
+
+        var diskScores = new double[missing];
+        var diskAges = new long[missing];
+        var found = tier.getScores(hashedContext, missedItems, diskScores, diskAges);
+        if (found > 0 && freshness.enabled()) {
+            found -= checkFreshness(missedItems, diskScores, diskAges, found, null);
+        }
+        if (found == 0) {
+            return 0;
+        }
+
+        var promotedItems = new long[found];
+        var promotedScores = new double[found];
+        var promotedAges = new long[found];
+        var p = 0;
+        for (int j = 0; j < missing; j++) {
+            if (!Double.isNaN(diskScores[j])) {
+                scores[missedIndexes[j]] = diskScores[j];
+                promotedItems[p] = missedItems[j];
+                promotedScores[p] = diskScores[j];
+                promotedAges[p] = diskAges[j];
+                p += 1;
+            }
+        }
+        partition.writeBuffer().offer(hashedContext, promotedItems, promotedScores, promotedAges);
+        return found;
+    }
+
+    public Map<Long, Double> getScores(Collection<Long> items) {
+        var itemArray = Longs.toArray(items);
+        var scores = new double[itemArray.length];
+        var hits = getScores(itemArray, scores);
+
+        var scoredItems = Maps.<Long, Double>newHashMapWithExpectedSize(hits);
+        for (int i = 0; i < itemArray.length; i++) {
+            if (!Double.isNaN(scores[i])) {
+                scoredItems.put(itemArray[i], scores[i]);
+            }
         }
 
         return scoredItems;
     }
 
+    /**
+     * Whatever the store still holds for items, however old. Only meant as a fallback when
+     * TF Serving cannot answer in time, so nothing is refreshed and no stats are recorded.
+     */
+    public Map<Long, Double> getLastKnownScores(Collection<Long> items) {
+        var itemArray = Longs.toArray(items);
+        var scores = new double[itemArray.length];
+        var found = partition.store().getScores(hashedContext, itemArray, scores);
+
+        var scoredItems = Maps.<Long, Double>newHashMapWithExpectedSize(found);
+        for (int i = 0; i < itemArray.length; i++) {
+            if (!Double.isNaN(scores[i])) {
+                scoredItems.put(itemArray[i], scores[i]);
+            }
+        }
+        return scoredItems;
+    }
+
     public void setScores(Map<Long, Double> scores) {
+        var items = new long[scores.size()];
+        var values = new double[scores.size()];
+        var i = 0;
+        for (var entry : scores.entrySet()) {
+            items[i] = entry.getKey();
+            values[i] = entry.getValue();
+            i += 1;
+        }
+        setScores(items, values);
+    }
+
+    /**
+     * Queues every items[i] to be cached with scores[i]. Both arrays are copied into the
+     * write buffer before returning.
+     */
+    public void setScores(long[] items, double[] scores) {
         /*
-         * Currently, we are using caffeine for the implementation
-         * of this shared internalCache. Caffeine internally uses a
-         * ConcurrentHashMap to store data. Everything from this point
-         * in is just going to be about usage of that ConcurrentHashMap
+         * Both stores lock on writes. The off heap store takes a striped write lock per
+         * bucket, while caffeine internally uses a ConcurrentHashMap to store data. What
+         * follows was written about that ConcurrentHashMap but holds for either.
          *
          * https://docs.oracle.com/en/java/javase/17/docs/api/java.base/java/util/concurrent/ConcurrentHashMap.html         *
          *
@@ -153,9 +645,10 @@ public class ScoreCache {
          * may see it block as it requires the lock to operate.
          *
          * The most sensible option here to me is to limit the thread capacity
-         * of updates by queueing them and having thread pools manage the updates.
-         * With this we will never fully freeze, but instead queue updates that
-         * should operate on a thread pool that won't spike heavily.
+         * of updates by queueing them and having a few writer threads manage the
+         * updates. With this we will never fully freeze, but instead queue updates
+         * that are applied in large batches by threads that won't spike heavily.
+         * See ScoreWriteBuffer for how that queue is laid out.
          *
          * There is a trade-off with this approach though. Queueing the update's
           means that we will silently miss more in the cache. Cache misses mean
@@ -166,75 +659,16 @@ public class ScoreCache {
          * instead. Is it better to silently fall through the cache, or loudly block the
          * service when the cache write is overwhelmed?
          *
-         * I am now opting to silently fail. May god have mercy on us.
+         * I am now opting to silently fail by default. May god have mercy on us.
+         * SCORE_CACHE_WRITE_OVERFLOW_POLICY=block trades a bounded wait for fewer
+         * dropped writes, and dropped writes are counted in the stats either way.
          */
-        try {
-            insertExecutor.execute(() -> {
-                var scoresToInsert = Maps.<ByteBuffer, Double>newHashMapWithExpectedSize(scores.size());
-                for (var entry : scores.entrySet()) {
-                    var key = getHashKey(entry.getKey());
-                    scoresToInsert.put(key, entry.getValue());
-                }
-                internalCache.putAll(scoresToInsert);
-            });
-        } catch (RejectedExecutionException exception) {
-            log.warn("cache insert has exceeded maximum queue size! Ignoring cache insert/update temporarily");
-            log.error("failed to insert set scores into queue. queue probably full", exception);
-            // silent failure
+        var dropped = partition.writeBuffer().offer(hashedContext, items, scores);
+        if (dropped > 0) {
+            log.debug("cache write buffer full! dropped {} cache inserts", dropped);
         }
     }
 
-    /**
-     * Retrieves the bytes from the context, handling all sub-rules for context key/value
-     * pairs.
-     *
-     * This gets a bit complicated because of the existence of HighCardinalityKeys.
-     *
-     * In short, some key terms in context, like "session" which is a random string
-     * generated for each unique visit causes our cache to have a near 100% miss rate.
-     * To handle this we will transform the values into something that is lower cardinality.
-     *
-     * The specifics of which will be pushed out to another class
-     *
-     * @param context the context to process
-     * @return the bytes that represent the context with all processing handled
-     */
-    private byte[] getContextBytes(Context context) {
-        var contextByteStream = new ByteArrayOutputStream(context.getSerializedSize());
-
-        /*
-         * since we are going to process the keys, we must sort them initially to ensure
-         * that there is consistency between key/value byte pairings
-         */
-        var fields = context.getFieldsMap();
-        var keys = new ArrayList<>(fields.keySet());
-        Collections.sort(keys);
-
-        for (var key : keys) {
-            var isHighCardinality = HighCardinalityKeys.isHighCardinality(key);
-            var keyBytes = key.getBytes(StandardCharsets.US_ASCII);
-            contextByteStream.writeBytes(keyBytes);
-
-            // we must sort values, to ensure that the values order is not important
-            var values = new ArrayList<>(fields.get(key).getValuesList());
-            Collections.sort(values);
-
-            for (var value : values) {
-                byte[] valueBytes = value.getBytes(StandardCharsets.US_ASCII);
-                if (isHighCardinality) {
-                    valueBytes = Ints.toByteArray(
-                            HighCardinalityKeys
-                                    .hashHighCardinalityKey(key, valueBytes)
-                                    .intValue()
-                    );
-
-                }
-                contextByteStream.writeBytes(valueBytes);
-            }
-        }
-
-        return contextByteStream.toByteArray();
-    }
 
 
     /**
@@ -257,7 +691,9 @@ public class ScoreCache {
         }
 
         private String modelName;
+        private long modelVersion;
         private Context context;
+        private ScoreRefresher.Rescorer rescorer;
 
         private Builder() {}
 
@@ -266,15 +702,35 @@ public class ScoreCache {
             return this;
         }
 
+        /**
+         * Version of the model the scores come from. Scores cached under one version are
+         * never returned for another.
+         */
+        public Builder withModelVersion(long modelVersion) {
+            this.modelVersion = modelVersion;
+            return this;
+        }
+
         public Builder withContext(Context context) {
             this.context = context;
             return this;
         }
 
+        /**
+         * How to score items of this model and context again once their cached scores pass
+         * SCORE_CACHE_SOFT_TTL. Without one stale scores are served until the hard TTL.
+         */
+        public Builder withRescorer(ScoreRefresher.Rescorer rescorer) {
+            this.rescorer = rescorer;
+            return this;
+        }
+
         public ScoreCache build() {
             return new ScoreCache(
                     modelName,
-                    context
+                    modelVersion,
+                    context,
+                    rescorer
             );
         }
     }
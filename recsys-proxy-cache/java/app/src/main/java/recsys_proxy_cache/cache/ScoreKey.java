@@ -0,0 +1,61 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache.cache;
+
+/**
+ * Our 128-bit cache key as two primitive longs: the context fingerprint and the item id.
+ *
+ * This replaces concatenating both into a fresh byte array and wrapping it in a ByteBuffer
+ * for every item, which cost three objects per key instead of one and hashed all 16 bytes
+ * through Arrays.hashCode on every lookup.
+ *
+ * @param context fingerprint of the model name and context, see ScoreCache
+ * @param item the raw item id
+ */
+public record ScoreKey(long context, long item) {
+    /*
+     * The context is already a farmhash fingerprint but item ids tend to be small and
+     * sequential. Mixing them through the murmur3 finalizer keeps keys sharing a context
+     * from piling into neighbouring hash bins.
+     */
+    public static long hash(long context, long item) {
+        var h = context ^ (item * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public int hashCode() {
+        var h = hash(context, item);
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof ScoreKey key
+                && key.context == context
+                && key.item == item;
+    }
+}
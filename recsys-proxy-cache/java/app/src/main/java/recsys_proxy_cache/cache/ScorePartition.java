@@ -0,0 +1,266 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache.cache;
+
+import com.jsoniter.JsonIterator;
+import com.jsoniter.any.Any;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A slice of the score cache with a store, write buffer and stats of its own.
+ *
+ * Every model used to share one store with one size limit and one TTL, so a high QPS
+ * model with little reuse could churn out the working set of a model that actually gets
+ * cache hits. Models listed in score-cache-partitions.json get a partition of their own,
+ * everything else lands in the default partition configured through the environment.
+ *
+ * The file is a list of partitions, for example:
+ *
+ *   [
+ *     {
+ *       "name": "homepage",
+ *       "models": ["homepage_ranker"],
+ *       "store": "offheap",
+ *       "maxBytes": 268435456,
+ *       "expireAfterAccessSeconds": 900,
+ *       "diskTtlSeconds": 7200,
+ *       "writers": 1
+ *     }
+ *   ]
+ *
+ * store picks the eviction policy the same way SCORE_CACHE_STORE does: per bucket LRU for
+ * offheap, W-TinyLFU for caffeine and whole contexts at a time for context. Instead of
+ * maxBytes a partition may give memoryFraction, a share of the max heap or, for offheap,
+ * of max direct memory. diskTtlSeconds is how long the partition's evicted scores are
+ * kept in the disk tier, SCORE_CACHE_DISK_TTL when left out. Only name, models and one of
+ * maxBytes or memoryFraction are required.
+ */
+public class ScorePartition {
+    private static final Logger log = LoggerFactory.getLogger(ScorePartition.class);
+    private static final String resourceFileName = "score-cache-partitions.json";
+
+    public static final String DEFAULT_NAME = "default";
+
+    /**
+     * Partition settings as read from score-cache-partitions.json
+     */
+    public record Config(
+            String name,
+            List<String> models,
+            String store,
+            long maxBytes,
+            double memoryFraction,
+            Duration expireAfterAccess,
+            Optional<Duration> diskTtl,
+            int writers
+    ) {
+        /**
+         * @return maxBytes when given, otherwise memoryFraction of the region the store lives in
+         */
+        public long resolveMaxBytes() {
+            return maxBytes > 0 ? maxBytes : MemoryBudget.fractionOf(store, memoryFraction);
+        }
+    }
+
+    private final String name;
+    private final ScoreStore store;
+    private final long maxBytes;
+    private final ScoreWriteBuffer writeBuffer;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+
+    ScorePartition(String name, ScoreStore store, long maxBytes, ScoreWriteBuffer writeBuffer) {
+        this.name = name;
+        this.store = store;
+        this.maxBytes = maxBytes;
+        this.writeBuffer = writeBuffer;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    ScoreStore store() {
+        return store;
+    }
+
+    ScoreWriteBuffer writeBuffer() {
+        return writeBuffer;
+    }
+
+    void recordLookup(int requested, int found, int foundOnDisk) {
+        hits.add(found);
+        misses.add(requested - found);
+        if (foundOnDisk > 0) {
+            diskHits.add(foundOnDisk);
+        }
+    }
+
+    void logStats() {
+        var hitCount = hits.sumThenReset();
+        var missCount = misses.sumThenReset();
+        var requested = Math.max(1, hitCount + missCount);
+        log.info(
+                "score cache stats partition={} store={} entries={} bytesUsed={} maxBytes={} hits={} "
+                        + "misses={} hitRate={} written={} coalesced={} dropped={} diskHits={}",
+                name,
+                store.getClass().getSimpleName(),
+                store.size(),
+                store.bytesUsed(),
+                maxBytes,
+                hitCount,
+                missCount,
+                (double) hitCount / requested,
+                writeBuffer.writtenCount(),
+                writeBuffer.coalescedCount(),
+                writeBuffer.droppedCount(),
+                diskHits.sumThenReset()
+        );
+    }
+
+    /**
+     * Creates a store that stays within maxBytes. The heap stores weigh their entries in
+     * bytes themselves. The off heap table is allocated up front in power of two slots, so
+     * its size is rounded down to keep the allocation inside the budget.
+     */
+    static ScoreStore newStore(
+            String store,
+            long maxBytes,
+            Duration expireAfterAccess,
+            ScoreStore.EvictionListener evictionListener
+    ) {
+        return switch (store.toLowerCase()) {
+            case "offheap" -> new OffHeapScoreStore(
+                    Math.max(1, Long.highestOneBit(maxBytes / OffHeapScoreStore.SLOT_BYTES)),
+                    expireAfterAccess,
+                    evictionListener
+            );
+            case "caffeine" -> new CaffeineScoreStore(maxBytes, expireAfterAccess, evictionListener);
+            case "context" -> new ContextScoreStore(maxBytes, expireAfterAccess, evictionListener);
+            default -> throw new IllegalArgumentException("unknown score store=" + store);
+        };
+    }
+
+    /*
+     * Per entry footprints, used to turn the legacy SCORE_CACHE_MAX_ENTRIES into bytes.
+     * The off heap store and caffeine are exact, the context store varies with how full
+     * its tables are.
+     */
+    static long estimatedBytesPerEntry(String store) {
+        return switch (store.toLowerCase()) {
+            case "offheap" -> OffHeapScoreStore.SLOT_BYTES;
+            case "caffeine" -> CaffeineScoreStore.ENTRY_BYTES;
+            case "context" -> ContextScoreStore.ESTIMATED_ITEM_BYTES;
+            default -> throw new IllegalArgumentException("unknown score store=" + store);
+        };
+    }
+
+    /**
+     * @return the partitions configured in score-cache-partitions.json, none when the
+     *         file is missing
+     */
+    static List<Config> loadConfigs() {
+        log.warn("Starting load of score cache partitions at {}", resourceFileName);
+        var resourceStream = Optional.ofNullable(
+                ScorePartition.class
+                        .getClassLoader()
+                        .getResourceAsStream(resourceFileName)
+        );
+        if (resourceStream.isEmpty()) {
+            log.warn("no {} found, every model shares the default partition", resourceFileName);
+            return List.of();
+        }
+
+        try (var stream = resourceStream.get()) {
+            var configs = parseConfigs(stream.readAllBytes());
+            log.info("found {} score cache partition configurations", configs.size());
+            return configs;
+        } catch (Exception exception) {
+            log.error("failed to read {} file", resourceFileName, exception);
+            throw new RuntimeException(exception);
+        }
+    }
+
+    public static List<Config> parseConfigs(byte[] json) {
+        var configs = new ArrayList<Config>();
+        for (var configJson : JsonIterator.deserialize(json).asList()) {
+            var config = configJson.asMap();
+            var name = required(config.get("name"), "name").toString();
+            if (name.equals(DEFAULT_NAME)) {
+                throw new IllegalArgumentException("partition name " + DEFAULT_NAME + " is reserved");
+            }
+
+            var models = new ArrayList<String>();
+            for (var model : required(config.get("models"), "models").asList()) {
+                models.add(model.toString());
+            }
+
+            var store = Optional.ofNullable(config.get("store")).map(Any::toString).orElse("offheap");
+            // fail on a typo here rather than when the partition is created
+            estimatedBytesPerEntry(store);
+
+            var maxBytes = Optional.ofNullable(config.get("maxBytes")).map(Any::toLong).orElse(0L);
+            var memoryFraction = Optional.ofNullable(config.get("memoryFraction")).map(Any::toDouble).orElse(0.0);
+            if (maxBytes <= 0 && memoryFraction <= 0) {
+                throw new IllegalArgumentException("score cache partition is missing maxBytes or memoryFraction");
+            }
+            if (memoryFraction > 1) {
+                throw new IllegalArgumentException("memoryFraction must be at most 1, found " + memoryFraction);
+            }
+
+            var expireAfterAccess = Optional
+                    .ofNullable(config.get("expireAfterAccessSeconds"))
+                    .map(seconds -> Duration.ofSeconds(seconds.toLong()))
+                    .orElse(Duration.ofMinutes(5));
+            var diskTtl = Optional
+                    .ofNullable(config.get("diskTtlSeconds"))
+                    .map(seconds -> Duration.ofSeconds(seconds.toLong()));
+            var writers = Optional.ofNullable(config.get("writers")).map(Any::toInt).orElse(1);
+
+            log.info("processing score cache partition name={} models={} store={}", name, models, store);
+            configs.add(new Config(
+                    name,
+                    List.copyOf(models),
+                    store,
+                    maxBytes,
+                    memoryFraction,
+                    expireAfterAccess,
+                    diskTtl,
+                    writers
+            ));
+        }
+        return configs;
+    }
+
+    private static Any required(Any value, String field) {
+        if (value == null) {
+            throw new IllegalArgumentException("score cache partition is missing " + field);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache.cache;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Re-scores cached entries in the background once they are past their soft TTL.
+ *
+ * Without it the first request after a hot score expires pays the full TF Serving round
+ * trip, along with every other request that misses on it at the same moment. ScoreCache
+ * instead keeps serving the stale score and hands the item over to the refresher, which
+ * scores it again off the request path and writes the result through the partition's
+ * write buffer like any other insert.
+ *
+ * Stale items are batched per context fingerprint. Items queued for a context while its
+ * batch is still waiting join that batch, so one re-score covers every item the context
+ * went stale on, and an item is never queued twice while a refresh of it is pending.
+ * When maxPendingContexts batches are already waiting new ones are dropped, and those
+ * entries simply turn into misses once they pass the hard TTL.
+ */
+public class ScoreRefresher {
+    private static final Logger log = LoggerFactory.getLogger(ScoreRefresher.class);
+
+    /**
+     * Scores items again under the context and model of the request that found them stale
+     */
+    @FunctionalInterface
+    public interface Rescorer {
+        Map<Long, Double> score(List<Long> items) throws Exception;
+    }
+
+    private static final class Batch {
+        private final Rescorer rescorer;
+        private final ScoreWriteBuffer writeBuffer;
+        // only touched inside ConcurrentHashMap.compute, which serializes access per context
+        private final List<Long> items = new ArrayList<>();
+
+        Batch(Rescorer rescorer, ScoreWriteBuffer writeBuffer) {
+            this.rescorer = rescorer;
+            this.writeBuffer = writeBuffer;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final int maxPendingContexts;
+    private final ConcurrentHashMap<Long, Batch> pending = new ConcurrentHashMap<>();
+    private final Set<ScoreKey> queued = ConcurrentHashMap.newKeySet();
+    private final LongAdder refreshed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    public ScoreRefresher(int threads, int maxPendingContexts) {
+        this.maxPendingContexts = maxPendingContexts;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("score-cache-refresher-%d")
+                .setDaemon(true)
+                .build()
+        );
+    }
+
+    /**
+     * Queues items of context to be re-scored by rescorer and written into writeBuffer.
+     * Never blocks, items already queued are skipped.
+     */
+    public void refresh(long context, long[] items, Rescorer rescorer, ScoreWriteBuffer writeBuffer) {
+        var isNewBatch = new boolean[1];
+        pending.compute(context, (key, batch) -> {
+            if (batch == null) {
+                if (pending.size() >= maxPendingContexts) {
+                    dropped.add(items.length);
+                    return null;
+                }
+                batch = new Batch(rescorer, writeBuffer);
+                isNewBatch[0] = true;
+            }
+            for (var item : items) {
+                if (queued.add(new ScoreKey(context, item))) {
+                    batch.items.add(item);
+                }
+            }
+            return batch;
+        });
+
+        if (isNewBatch[0]) {
+            try {
+                executor.execute(() -> run(context));
+            } catch (RejectedExecutionException exception) {
+                // shutting down, nothing will run the batch
+                forget(context, pending.remove(context));
+            }
+        }
+    }
+
+    private void run(long context) {
+        var batch = pending.remove(context);
+        if (batch == null || batch.items.isEmpty()) {
+            forget(context, batch);
+            return;
+        }
+
+        try {
+            var scores = batch.rescorer.score(batch.items);
+            var items = new long[scores.size()];
+            var values = new double[scores.size()];
+            var i = 0;
+            for (var entry : scores.entrySet()) {
+                items[i] = entry.getKey();
+                values[i] = entry.getValue();
+                i += 1;
+            }
+            batch.writeBuffer.offer(context, items, values);
+            refreshed.add(items.length);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            failed.add(batch.items.size());
+        } catch (Exception exception) {
+            failed.add(batch.items.size());
+            log.warn("failed to refresh {} stale scores, they will be served until their hard TTL", batch.items.size(), exception);
+        } finally {
+            forget(context, batch);
+        }
+    }
+
+    private void forget(long context, Batch batch) {
+        if (batch == null) {
+            return;
+        }
+        for (var item : batch.items) {
+            queued.remove(new ScoreKey(context, item));
+        }
+    }
+
+    /**
+     * @return the number of scores written back by refreshes
+     */
+    public long refreshedCount() {
+        return refreshed.sum();
+    }
+
+    /**
+     * @return the number of scores whose refresh failed
+     */
+    public long failedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * @return the number of scores not queued because too many contexts were pending
+     */
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Stops taking new refreshes and waits up to timeout for those running to finish
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeout, unit)) {
+                log.warn("score refreshes still running after {} {}, abandoning them", timeout, unit);
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache.cache;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the contents of a ScoreStore to a compact binary file and loads them back.
+ *
+ * Every deploy used to start the cache from empty, sending all traffic through to TF
+ * Serving for the first few minutes. Snapshots let a restarted proxy come up warm.
+ *
+ * File layout, all little endian:
+ *
+ *   header, 24 bytes: magic (int), version (int), written at epoch millis (long), count (long)
+ *   records, 32 bytes each: context (long), item (long), score (double), remaining TTL millis (int),
+ *   age millis (int)
+ *
+ * Snapshots are written to a temporary file next to the target and moved over it once
+ * complete, so a crash mid write never leaves a truncated snapshot behind. Loading memory
+ * maps the file and walks the records in place, and time spent on disk is taken off every
+ * entry's remaining TTL and added to its age, so nothing outlives the expiry it would have
+ * had or comes back any fresher than it was written.
+ */
+public class ScoreSnapshots {
+    private static final Logger log = LoggerFactory.getLogger(ScoreSnapshots.class);
+    private static final int MAGIC = 0x52505343;
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 24;
+    private static final int RECORD_BYTES = 32;
+    private static final int WRITE_BUFFER_BYTES = RECORD_BYTES * 32_768;
+    private static final long RECORDS_PER_MAPPING = (1 << 30) / RECORD_BYTES;
+
+    /**
+     * @return the number of entries written
+     */
+    public static long write(ScoreStore store, Path path) throws IOException {
+        var parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        var temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        var count = new long[1];
+        try (var channel = FileChannel.open(
+                temporary,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)
+        ) {
+            var buffer = ByteBuffer
+                    .allocateDirect(WRITE_BUFFER_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            channel.position(HEADER_BYTES);
+
+            store.forEach((context, item, score, remainingTtlMillis, ageMillis) -> {
+                if (remainingTtlMillis <= 0) {
+                    return;
+                }
+                if (buffer.remaining() < RECORD_BYTES) {
+                    flush(channel, buffer);
+                }
+                buffer.putLong(context)
+                        .putLong(item)
+                        .putDouble(score)
+                        .putInt((int) Math.min(Integer.MAX_VALUE, remainingTtlMillis))
+                        .putInt((int) Math.min(Integer.MAX_VALUE, ageMillis));
+                count[0] += 1;
+            });
+            flush(channel, buffer);
+
+            buffer.putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putLong(System.currentTimeMillis())
+                    .putLong(count[0])
+                    .flip();
+            channel.write(buffer, 0);
+            channel.force(true);
+        } catch (UncheckedIOException exception) {
+            throw exception.getCause();
+        }
+
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count[0];
+    }
+
+    /**
+     * @return the number of entries loaded, expired entries are skipped
+     */
+    public static long load(ScoreStore store, Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES) {
+                throw new IOException("score snapshot too small to hold a header path=" + path);
+            }
+
+            var header = channel
+                    .map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            var magic = header.getInt();
+            var version = header.getInt();
+            if (magic != MAGIC || version != VERSION) {
+                throw new IOException("unrecognized score snapshot magic=%s version=%s path=%s"
+                        .formatted(Integer.toHexString(magic), version, path));
+            }
+            var writtenAt = header.getLong();
+            var count = header.getLong();
+            if (channel.size() < HEADER_BYTES + count * RECORD_BYTES) {
+                throw new IOException("score snapshot truncated, expected %s records path=%s".formatted(count, path));
+            }
+
+            var elapsed = Math.max(0, System.currentTimeMillis() - writtenAt);
+            log.info("loading score snapshot records={} age={}ms path={}", count, elapsed, path);
+
+            var loaded = 0L;
+            for (long first = 0; first < count; first += RECORDS_PER_MAPPING) {
+                var records = Math.min(RECORDS_PER_MAPPING, count - first);
+                var mapping = channel
+                        .map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + first * RECORD_BYTES, records * RECORD_BYTES)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                for (long i = 0; i < records; i++) {
+                    var context = mapping.getLong();
+                    var item = mapping.getLong();
+                    var score = mapping.getDouble();
+                    var remainingTtlMillis = mapping.getInt() - elapsed;
+                    var ageMillis = mapping.getInt() + elapsed;
+                    if (remainingTtlMillis > 0) {
+                        store.restore(context, item, score, remainingTtlMillis, ageMillis);
+                        loaded += 1;
+                    }
+                }
+            }
+            return loaded;
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+        buffer.clear();
+    }
+}
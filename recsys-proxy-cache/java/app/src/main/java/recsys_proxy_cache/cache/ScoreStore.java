@@ -0,0 +1,122 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache.cache;
+
+/**
+ * Storage behind the shared ScoreCache.
+ *
+ * Entries are keyed by the 64-bit context fingerprint computed in ScoreCache paired with
+ * the raw item id, which together make up our 128-bit cache key. Scores move in and out
+ * through primitive arrays so implementations are free to lay entries out however suits
+ * them, on heap or off.
+ */
+public interface ScoreStore {
+    /**
+     * Looks up every item under the given context.
+     *
+     * scores[i] receives the cached score for items[i], or NaN when there is no live
+     * entry for it. NaN is never a meaningful score for us, so it doubles as the miss
+     * marker and saves us allocating anything on the read path.
+     *
+     * @param context fingerprint of the model name and context
+     * @param items items to look up
+     * @param scores output array, at least as long as items
+     * @return the number of items found
+     */
+    default int getScores(long context, long[] items, double[] scores) {
+        return getScores(context, items, scores, null);
+    }
+
+    /**
+     * Like getScores, but also reports how long ago every entry found was written.
+     *
+     * ages[i] receives the millis since the score of items[i] was last set, which is what
+     * ScoreCache checks its soft and hard TTLs against. It is only meaningful where
+     * scores[i] is not NaN, and stores may round it to the second. Entries promoted from
+     * the disk tier or restored from a snapshot keep the age they were written with.
+     *
+     * @param ages output array at least as long as items, or null when not needed
+     */
+    int getScores(long context, long[] items, double[] scores, long[] ages);
+
+    /**
+     * Inserts or replaces the score of every items[i] with scores[i] under the given context
+     */
+    default void setScores(long context, long[] items, double[] scores) {
+        setScores(context, items, scores, null);
+    }
+
+    /**
+     * Like setScores, but for scores that were computed ages[i] millis ago rather than just
+     * now, which is what later getScores calls report their age from.
+     *
+     * @param ages how long ago every score was computed, or null for just now
+     */
+    void setScores(long context, long[] items, double[] scores, long[] ages);
+
+    /**
+     * @return the approximate number of entries currently held
+     */
+    long size();
+
+    /**
+     * @return the approximate number of bytes of memory the store holds on to for its
+     *         entries, including whatever per entry overhead its layout carries
+     */
+    long bytesUsed();
+
+    /**
+     * Visits every live entry. Entries written while the visit is in progress may or may
+     * not be seen, which is fine for the snapshots this exists for.
+     */
+    void forEach(EntryVisitor visitor);
+
+    /**
+     * Inserts a single entry that should expire once remainingTtlMillis have passed without
+     * it being read, and whose score was computed ageMillis ago. Stores that cannot expire
+     * entries individually may keep it for their full TTL instead.
+     */
+    void restore(long context, long item, double score, long remainingTtlMillis, long ageMillis);
+
+    @FunctionalInterface
+    interface EntryVisitor {
+        /**
+         * @param ageMillis how long ago the score was written, as getScores reports it
+         */
+        void visit(long context, long item, double score, long remainingTtlMillis, long ageMillis);
+    }
+
+    /**
+     * Told about entries a store throws away to make room, or because they were not read
+     * for their whole TTL. Listeners run on the thread doing the eviction, often while it
+     * holds a lock, so they must be quick and must not call back into the store.
+     */
+    @FunctionalInterface
+    interface EvictionListener {
+        EvictionListener IGNORE = (context, item, score, idleMillis, ageMillis) -> {};
+
+        /**
+         * @param idleMillis how long the entry had gone without being read or written
+         * @param ageMillis how long ago the score was written, as getScores reports it
+         */
+        void evicted(long context, long item, double score, long idleMillis, long ageMillis);
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache.cache;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded write pipeline in front of a ScoreStore.
+ *
+ * Previously every setScores call submitted its own Runnable to a thread pool, and once
+ * the pool's queue filled up whole requests worth of scores were silently thrown away.
+ * Here scores are appended as plain (context, item, score, written at) records to one of a few lock
+ * free ring buffers, each drained by its own writer thread in large batches.
+ *
+ * Each ring has many producers but exactly one consumer, so producers only ever contend
+ * on a single CAS to claim their slots. Records live in parallel primitive arrays, so an
+ * insert allocates nothing. A context always maps to the same ring, which keeps writes to
+ * a key in order, and duplicate keys within a drained batch are coalesced so that only the
+ * latest score for a key is written.
+ *
+ * When a ring is full the configured OverflowPolicy decides whether the producer drops its
+ * records or waits a bounded amount of time for the writer to catch up.
+ */
+public class ScoreWriteBuffer {
+    private static final Logger log = LoggerFactory.getLogger(ScoreWriteBuffer.class);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long BLOCKED_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    public enum OverflowPolicy {
+        /** drop the records that do not fit, the cache just misses more */
+        DROP,
+        /** wait up to the block timeout for room, then drop */
+        BLOCK,
+    }
+
+    private final ScoreStore store;
+    private final Ring[] rings;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private volatile boolean running = true;
+
+    public ScoreWriteBuffer(
+            ScoreStore store,
+            int writers,
+            int capacityPerWriter,
+            int batchSize,
+            OverflowPolicy overflowPolicy,
+            long blockTimeoutMillis
+    ) {
+        if (Integer.bitCount(capacityPerWriter) != 1) {
+            throw new IllegalArgumentException("capacityPerWriter must be a power of two, found " + capacityPerWriter);
+        }
+        this.store = store;
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+
+        rings = new Ring[writers];
+        for (int i = 0; i < writers; i++) {
+            rings[i] = new Ring(capacityPerWriter, Math.min(batchSize, capacityPerWriter));
+            var thread = new Thread(rings[i]::drain, "score-cache-writer-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        log.warn(
+                "started score write buffer writers={} capacityPerWriter={} batchSize={} overflowPolicy={}",
+                writers, capacityPerWriter, batchSize, overflowPolicy
+        );
+    }
+
+    /**
+     * Appends every (items[i], scores[i]) under context to the buffer. Both arrays are
+     * copied before returning, so callers are free to reuse them.
+     *
+     * @return the number of records that had to be dropped
+     */
+    public int offer(long context, long[] items, double[] scores) {
+        return offer(context, items, scores, null);
+    }
+
+    /**
+     * Like offer, but for scores computed ages[i] millis ago rather than just now, such as
+     * those promoted from the disk tier. The store is handed the ages as of the write.
+     *
+     * @param ages how long ago every score was computed, or null for just now
+     */
+    public int offer(long context, long[] items, double[] scores, long[] ages) {
+        var ring = rings[(int) Math.floorMod(ScoreKey.hash(context, 0L), (long) rings.length)];
+        var now = System.currentTimeMillis();
+        var droppedRecords = 0;
+        for (int start = 0; start < items.length; start += ring.capacity) {
+            var length = Math.min(ring.capacity, items.length - start);
+            if (!ring.offer(context, items, scores, ages, now, start, length)) {
+                droppedRecords += length;
+            }
+        }
+        if (droppedRecords > 0) {
+            dropped.add(droppedRecords);
+        }
+        return droppedRecords;
+    }
+
+    /**
+     * Stops accepting records and gives the writers up to timeout to flush what is left
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        running = false;
+        var deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (var ring : rings) {
+            while (ring.tail.get() != ring.flushed.get() && System.nanoTime() < deadline) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * @return records handed to the store so far
+     */
+    public long writtenCount() {
+        return written.sum();
+    }
+
+    /**
+     * @return records dropped because the buffer was full
+     */
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return records skipped because a later record in the same batch had the same key
+     */
+    public long coalescedCount() {
+        return coalesced.sum();
+    }
+
+    private final class Ring {
+        private final int capacity;
+        private final int mask;
+        private final long[] contexts;
+        private final long[] items;
+        private final double[] scores;
+        // epoch millis the score was computed at
+        private final long[] writtenAts;
+        /*
+         * sequences[i] == n + 1 once the record with sequence n has been published to slot i
+         */
+        private final AtomicLongArray sequences;
+        private final AtomicLong tail = new AtomicLong();
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong flushed = new AtomicLong();
+
+        // only ever touched by the writer thread
+        private final long[] batchContexts;
+        private final long[] batchItems;
+        private final double[] batchScores;
+        private final long[] batchWrittenAts;
+        private final boolean[] batchSkipped;
+        private final int[] coalesceIndex;
+        private final int[] coalesceGeneration;
+        private int generation;
+
+        Ring(int capacity, int batchSize) {
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            contexts = new long[capacity];
+            items = new long[capacity];
+            scores = new double[capacity];
+            writtenAts = new long[capacity];
+            sequences = new AtomicLongArray(capacity);
+
+            batchContexts = new long[batchSize];
+            batchItems = new long[batchSize];
+            batchScores = new double[batchSize];
+            batchWrittenAts = new long[batchSize];
+            batchSkipped = new boolean[batchSize];
+            coalesceIndex = new int[Integer.highestOneBit(batchSize) << 2];
+            coalesceGeneration = new int[coalesceIndex.length];
+        }
+
+        boolean offer(long context, long[] newItems, double[] newScores, long[] ages, long now, int start, int length) {
+            if (!running) {
+                return false;
+            }
+
+            var deadline = 0L;
+            long claimed;
+            while (true) {
+                claimed = tail.get();
+                if (claimed + length - head.get() <= capacity) {
+                    if (tail.compareAndSet(claimed, claimed + length)) {
+                        break;
+                    }
+                    continue;
+                }
+                if (overflowPolicy == OverflowPolicy.DROP) {
+                    return false;
+                }
+                if (deadline == 0L) {
+                    deadline = System.nanoTime() + blockTimeoutNanos;
+                } else if (System.nanoTime() > deadline) {
+                    return false;
+                }
+                LockSupport.parkNanos(BLOCKED_PARK_NANOS);
+            }
+
+            for (int i = 0; i < length; i++) {
+                var sequence = claimed + i;
+                var slot = (int) (sequence & mask);
+                contexts[slot] = context;
+                items[slot] = newItems[start + i];
+                scores[slot] = newScores[start + i];
+                writtenAts[slot] = ages == null ? now : now - ages[start + i];
+                sequences.lazySet(slot, sequence + 1);
+            }
+            return true;
+        }
+
+        void drain() {
+            var next = head.get();
+            while (running || next != tail.get()) {
+                var count = 0;
+                while (count < batchItems.length) {
+                    var slot = (int) (next & mask);
+                    if (sequences.get(slot) != next + 1) {
+                        break;
+                    }
+                    batchContexts[count] = contexts[slot];
+                    batchItems[count] = items[slot];
+                    batchScores[count] = scores[slot];
+                    batchWrittenAts[count] = writtenAts[slot];
+                    count += 1;
+                    next += 1;
+                }
+
+                if (count == 0) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    continue;
+                }
+
+                // slots are copied out, hand them back to producers before writing
+                head.lazySet(next);
+                try {
+                    write(count);
+                } catch (Exception exception) {
+                    log.error("failed to write batch of {} scores to the cache", count, exception);
+                }
+                flushed.lazySet(next);
+            }
+        }
+
+        private void write(int count) {
+            coalesce(count);
+
+            /*
+             * records from one request sit next to each other, so runs of the same context
+             * are written to the store together
+             */
+            var runItems = new long[count];
+            var runScores = new double[count];
+            var runAges = new long[count];
+            var now = System.currentTimeMillis();
+            var runLength = 0;
+            var runContext = batchContexts[0];
+            for (int i = 0; i < count; i++) {
+                if (batchSkipped[i]) {
+                    continue;
+                }
+                if (batchContexts[i] != runContext && runLength > 0) {
+                    writeRun(runContext, runItems, runScores, runAges, runLength);
+                    runLength = 0;
+                }
+                runContext = batchContexts[i];
+                runItems[runLength] = batchItems[i];
+                runScores[runLength] = batchScores[i];
+                runAges[runLength] = Math.max(0, now - batchWrittenAts[i]);
+                runLength += 1;
+            }
+            if (runLength > 0) {
+                writeRun(runContext, runItems, runScores, runAges, runLength);
+            }
+        }
+
+        private void writeRun(long context, long[] runItems, double[] runScores, long[] runAges, int runLength) {
+            store.setScores(
+                    context,
+                    Arrays.copyOf(runItems, runLength),
+                    Arrays.copyOf(runScores, runLength),
+                    Arrays.copyOf(runAges, runLength)
+            );
+            written.add(runLength);
+        }
+
+        /*
+         * Marks every record whose key shows up again later in the batch as skipped, moving
+         * the later score onto the first occurrence. Generations save us clearing the index
+         * between batches.
+         */
+        private void coalesce(int count) {
+            generation += 1;
+            var indexMask = coalesceIndex.length - 1;
+            var duplicates = 0;
+            for (int i = 0; i < count; i++) {
+                batchSkipped[i] = false;
+                var index = (int) ScoreKey.hash(batchContexts[i], batchItems[i]) & indexMask;
+                while (true) {
+                    if (coalesceGeneration[index] != generation) {
+                        coalesceGeneration[index] = generation;
+                        coalesceIndex[index] = i;
+                        break;
+                    }
+                    var first = coalesceIndex[index];
+                    if (batchItems[first] == batchItems[i] && batchContexts[first] == batchContexts[i]) {
+                        batchScores[first] = batchScores[i];
+                        batchWrittenAts[first] = batchWrittenAts[i];
+                        batchSkipped[i] = true;
+                        duplicates += 1;
+                        break;
+                    }
+                    index = (index + 1) & indexMask;
+                }
+            }
+            if (duplicates > 0) {
+                coalesced.add(duplicates);
+            }
+        }
+    }
+}
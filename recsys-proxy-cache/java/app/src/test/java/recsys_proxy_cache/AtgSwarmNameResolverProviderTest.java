@@ -0,0 +1,59 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AtgSwarmNameResolverProviderTest {
+    @Test
+    public void testValidServersAreParsedIntoTargets() {
+        var body = """
+                {
+                    "valid_servers": [
+                        {"name": "the first test server", "host": "recsys_1", "addr": "172.20.128.1", "port": 8500},
+                        {"name": "the second test server", "host": "recsys_2", "addr": "172.20.128.2", "port": 8500}
+                    ]
+                }
+                """;
+        Assert.assertEquals(
+                Set.of("172.20.128.1:8500", "172.20.128.2:8500"),
+                AtgSwarmNameResolverProvider.parseValidServers(body)
+        );
+    }
+
+    @Test
+    public void testOnlyAtgSwarmTargetsAreResolved() {
+        var provider = new AtgSwarmNameResolverProvider(Duration.ZERO, Runnable::run);
+        Assert.assertNull(provider.newNameResolver(URI.create("dns:///recsys-1:8500"), null));
+        Assert.assertEquals(
+                URI.create("http://lookaside-load-balancer:80/servers"),
+                AtgSwarmNameResolverProvider.toDiscoveryUri(URI.create("atgswarm://lookaside-load-balancer:80/servers"))
+        );
+
+        var resolver = provider.newNameResolver(URI.create("atgswarm://lookaside-load-balancer:80/servers"), null);
+        Assert.assertEquals("lookaside-load-balancer:80", resolver.getServiceAuthority());
+        resolver.shutdown();
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import io.grpc.Status;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BackendGuardTest {
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    public void testLimitRejectsAndAdaptsToLatency() throws Exception {
+        var guard = new BackendGuard(2, 10, 100, 100, 1000, now::get);
+        var first = SettableFuture.<String>create();
+        var second = SettableFuture.<String>create();
+        guard.call(() -> first);
+        guard.call(() -> second);
+
+        var rejected = guard.call(() -> Futures.immediateFuture("never sent"));
+        Assert.assertEquals(Status.Code.RESOURCE_EXHAUSTED, statusOf(rejected));
+        Assert.assertEquals(1, guard.rejectedCount());
+
+        // fast answers raise the limit by 1/limit each, slow ones cut it by a tenth
+        first.set("fast");
+        guard.call(() -> Futures.immediateFuture("fast"));
+        guard.call(() -> Futures.immediateFuture("fast"));
+        Assert.assertEquals(3, guard.limit());
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        second.set("slow");
+        Assert.assertEquals(2, guard.limit());
+        Assert.assertEquals(0, guard.inFlight());
+    }
+
+    @Test
+    public void testBreakerOpensOnFailuresAndClosesAfterProbe() throws Exception {
+        var guard = new BackendGuard(10, 10, 100, 3, 1000, now::get);
+        for (int i = 0; i < 3; i++) {
+            guard.call(() -> Futures.immediateFailedFuture(Status.DEADLINE_EXCEEDED.asRuntimeException()));
+        }
+        Assert.assertTrue(guard.isOpen());
+
+        var shortCircuited = guard.call(() -> Futures.immediateFuture("never sent"));
+        Assert.assertEquals(Status.Code.UNAVAILABLE, statusOf(shortCircuited));
+        Assert.assertEquals(1, guard.shortCircuitedCount());
+
+        // one probe once the breaker has been open long enough, nothing else meanwhile
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+        var probe = SettableFuture.<String>create();
+        guard.call(() -> probe);
+        Assert.assertEquals(Status.Code.UNAVAILABLE, statusOf(guard.call(() -> Futures.immediateFuture("never sent"))));
+
+        probe.set("recovered");
+        Assert.assertFalse(guard.isOpen());
+        Assert.assertEquals("sent", guard.call(() -> Futures.immediateFuture("sent")).get());
+    }
+
+    @Test
+    public void testBurstOfFailuresBacksOffOnce() {
+        var guard = new BackendGuard(10, 10, 100, 100, 1000, now::get);
+        var stalled = new ArrayList<SettableFuture<String>>();
+        for (int i = 0; i < 5; i++) {
+            var call = SettableFuture.<String>create();
+            stalled.add(call);
+            guard.call(() -> call);
+        }
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        stalled.forEach(call -> call.setException(Status.DEADLINE_EXCEEDED.asRuntimeException()));
+        Assert.assertEquals(9, guard.limit());
+
+        // a call sent after the cut is a new signal
+        now.addAndGet(1);
+        guard.call(() -> Futures.immediateFailedFuture(Status.DEADLINE_EXCEEDED.asRuntimeException()));
+        Assert.assertEquals(8, guard.limit());
+    }
+
+    @Test
+    public void testCancelledProbeLetsTheNextCallProbe() throws Exception {
+        var guard = new BackendGuard(10, 10, 100, 1, 1000, now::get);
+        guard.call(() -> Futures.immediateFailedFuture(Status.UNAVAILABLE.asRuntimeException()));
+        Assert.assertTrue(guard.isOpen());
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+        guard.call(() -> Futures.immediateCancelledFuture());
+
+        Assert.assertEquals("sent", guard.call(() -> Futures.immediateFuture("sent")).get());
+        Assert.assertFalse(guard.isOpen());
+    }
+
+    @Test
+    public void testCancelledCallsAreNotFailures() {
+        var guard = new BackendGuard(10, 10, 100, 1, 1000, now::get);
+        guard.call(() -> Futures.immediateCancelledFuture());
+        Assert.assertFalse(guard.isOpen());
+        Assert.assertEquals(0, guard.inFlight());
+    }
+
+    @Test
+    public void testTimeoutsOfCallsTheCallerCutShortAreNotFailures() {
+        var guard = new BackendGuard(10, 10, 100, 1, 1000, now::get);
+        guard.call(() -> Futures.immediateFailedFuture(Status.DEADLINE_EXCEEDED.asRuntimeException()), true);
+        Assert.assertFalse(guard.isOpen());
+        Assert.assertEquals(10, guard.limit());
+
+        guard.call(() -> Futures.immediateFailedFuture(Status.DEADLINE_EXCEEDED.asRuntimeException()), false);
+        Assert.assertTrue(guard.isOpen());
+    }
+
+    private static Status.Code statusOf(Future<?> future) throws InterruptedException {
+        try {
+            future.get();
+            throw new AssertionError("expected the call to fail");
+        } catch (ExecutionException exception) {
+            return Status.fromThrowable(exception.getCause()).getCode();
+        }
+    }
+}
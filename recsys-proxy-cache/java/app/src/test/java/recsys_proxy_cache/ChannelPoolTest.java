@@ -0,0 +1,100 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import tensorflow.serving.Predict.PredictRequest;
+import tensorflow.serving.Predict.PredictResponse;
+import tensorflow.serving.PredictionServiceGrpc;
+
+public class ChannelPoolTest {
+    @Rule
+    public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+    private final ConcurrentLinkedQueue<StreamObserver<PredictResponse>> held = new ConcurrentLinkedQueue<>();
+    private ChannelPool systemUnderTest;
+
+    @Before
+    public void setupInProcessPredictionService() throws Exception {
+        var serverName = InProcessServerBuilder.generateName();
+        grpcCleanup.register(InProcessServerBuilder
+                .forName(serverName)
+                .directExecutor()
+                .addService(new PredictionServiceGrpc.PredictionServiceImplBase() {
+                    @Override
+                    public void predict(PredictRequest request, StreamObserver<PredictResponse> responseObserver) {
+                        // answered once the test releases it
+                        held.add(responseObserver);
+                    }
+                })
+                .build()
+                .start()
+        );
+        systemUnderTest = new ChannelPool(3, () -> grpcCleanup.register(InProcessChannelBuilder
+                .forName(serverName)
+                .directExecutor()
+                .build()
+        ));
+    }
+
+    @After
+    public void shutdownPool() throws Exception {
+        systemUnderTest.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testCallsSpreadOverLeastBusyChannels() throws Exception {
+        var calls = new ArrayList<ListenableFuture<PredictResponse>>();
+        for (int i = 0; i < 6; i++) {
+            calls.add(PredictionServiceGrpc
+                    .newFutureStub(systemUnderTest.next())
+                    .predict(PredictRequest.getDefaultInstance()));
+        }
+        Assert.assertEquals(List.of(2, 2, 2), systemUnderTest.inFlight());
+
+        held.forEach(observer -> {
+            observer.onNext(PredictResponse.getDefaultInstance());
+            observer.onCompleted();
+        });
+        for (var call : calls) {
+            call.get(1, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(List.of(0, 0, 0), systemUnderTest.inFlight());
+    }
+
+    @Test
+    public void testInvalidSizeIsRejected() {
+        Assert.assertThrows(IllegalArgumentException.class, () -> new ChannelPool(0, () -> null));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.UUID;
+import org.junit.Assert;
+import org.junit.Test;
+import recsys_proxy_cache.cache.ContextFingerprints;
+import recsys_proxy_cache.protos.Context;
+
+public class ContextFingerprintsTest {
+    @Test
+    public void testRepeatedContextIsMemoized() {
+        var modelName = UUID.randomUUID().toString();
+        var context = TestUtils.getRandomContext();
+
+        var hitsBefore = ContextFingerprints.stats().hitCount();
+        var first = ContextFingerprints.fingerprint(modelName, context);
+        var second = ContextFingerprints.fingerprint(modelName, context.toBuilder().build());
+
+        Assert.assertEquals(first, second);
+        Assert.assertEquals(hitsBefore + 1, ContextFingerprints.stats().hitCount());
+    }
+
+    @Test
+    public void testFieldOrderDoesNotChangeFingerprint() {
+        var modelName = UUID.randomUUID().toString();
+        var context = TestUtils.getRandomContext();
+
+        var keys = new ArrayList<>(context.getFieldsMap().keySet());
+        Collections.reverse(keys);
+        var reordered = Context.newBuilder();
+        for (var key : keys) {
+            reordered.putFields(key, context.getFieldsMap().get(key));
+        }
+
+        Assert.assertEquals(
+                ContextFingerprints.fingerprint(modelName, context),
+                ContextFingerprints.fingerprint(modelName, reordered.build())
+        );
+    }
+
+    @Test
+    public void testModelNameChangesFingerprint() {
+        var context = TestUtils.getRandomContext();
+        Assert.assertNotEquals(
+                ContextFingerprints.fingerprint(UUID.randomUUID().toString(), context),
+                ContextFingerprints.fingerprint(UUID.randomUUID().toString(), context)
+        );
+    }
+
+    @Test
+    public void testModelVersionChangesFingerprint() {
+        var modelName = UUID.randomUUID().toString();
+        var context = TestUtils.getRandomContext();
+        Assert.assertNotEquals(
+                ContextFingerprints.fingerprint(modelName, 1L, context),
+                ContextFingerprints.fingerprint(modelName, 2L, context)
+        );
+    }
+}
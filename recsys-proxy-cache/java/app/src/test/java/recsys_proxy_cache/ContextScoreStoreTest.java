@@ -0,0 +1,104 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Longs;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import recsys_proxy_cache.cache.ContextScoreStore;
+
+public class ContextScoreStoreTest {
+    private static final Random rand = new Random(1L);
+
+    @Test
+    public void testScoresAreKeptPerContext() {
+        var store = new ContextScoreStore(1 << 20, Duration.ofMinutes(5));
+        var context = rand.nextLong();
+        var items = Longs.toArray(TestUtils.getRandomItems(50));
+        var values = Doubles.toArray(TestUtils.getRandomScores(50).values());
+
+        var scores = new double[items.length];
+        Assert.assertEquals(0, store.getScores(context, items, scores));
+
+        store.setScores(context, items, values);
+        Assert.assertEquals(items.length, store.getScores(context, items, scores));
+        Assert.assertArrayEquals(values, scores, 0.0);
+
+        Assert.assertEquals(0, store.getScores(context + 1, items, scores));
+        for (var score : scores) {
+            Assert.assertTrue(Double.isNaN(score));
+        }
+        Assert.assertEquals(1, store.contextCount());
+        Assert.assertEquals(items.length, store.size());
+    }
+
+    @Test
+    public void testContextGrowsAcrossManyInserts() {
+        var store = new ContextScoreStore(1 << 20, Duration.ofMinutes(5));
+        var context = rand.nextLong();
+        var items = Longs.toArray(TestUtils.getRandomItems(5_000));
+        var values = Doubles.toArray(TestUtils.getRandomScores(5_000).values());
+
+        // insert in small batches so the per context map has to resize repeatedly
+        for (int start = 0; start < items.length; start += 7) {
+            var end = Math.min(items.length, start + 7);
+            var batchItems = new long[end - start];
+            var batchValues = new double[end - start];
+            System.arraycopy(items, start, batchItems, 0, batchItems.length);
+            System.arraycopy(values, start, batchValues, 0, batchValues.length);
+            store.setScores(context, batchItems, batchValues);
+        }
+
+        var scores = new double[items.length];
+        Assert.assertEquals(items.length, store.getScores(context, items, scores));
+        Assert.assertArrayEquals(values, scores, 0.0);
+    }
+
+    @Test
+    public void testContextsAreWeighedInBytes() throws InterruptedException {
+        // room for a handful of small contexts, but not for one with 5,000 items
+        var store = new ContextScoreStore(64 * 1024, Duration.ofMinutes(5));
+        var items = Longs.toArray(TestUtils.getRandomItems(10));
+        var values = Doubles.toArray(TestUtils.getRandomScores(10).values());
+        store.setScores(1L, items, values);
+        store.setScores(2L, items, values);
+        Assert.assertEquals(2 * items.length, store.size());
+        Assert.assertTrue(store.bytesUsed() > 0 && store.bytesUsed() < 64 * 1024);
+
+        var manyItems = Longs.toArray(TestUtils.getRandomItems(5_000));
+        var manyValues = Doubles.toArray(TestUtils.getRandomScores(5_000).values());
+        store.setScores(3L, manyItems, manyValues);
+
+        // caffeine evicts on its maintenance thread, so give it a moment
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        var scores = new double[manyItems.length];
+        while (store.getScores(3L, manyItems, scores) > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, store.getScores(3L, manyItems, scores));
+        Assert.assertTrue(store.bytesUsed() <= 64 * 1024);
+        Assert.assertEquals(2 * items.length, store.size());
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import recsys_proxy_cache.cache.DiskScoreTier;
+import recsys_proxy_cache.cache.DiskSpillQueue;
+import recsys_proxy_cache.cache.OffHeapScoreStore;
+
+public class DiskScoreTierTest {
+    private static final int RECORDS_PER_SEGMENT = 1 << 19;
+
+    @Test
+    public void testEvictedEntriesAreServedFromDisk() throws IOException {
+        var tier = new DiskScoreTier(Files.createTempDirectory("disk-tier"), 0, Duration.ofHours(1));
+        // a single bucket, so every insert past the eighth evicts the least recently used
+        var store = new OffHeapScoreStore(8, Duration.ofMinutes(5), tier::put);
+
+        var items = new long[16];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = i;
+            store.setScores(1L, new long[] {i}, new double[] {i / 10.0});
+        }
+
+        var memoryScores = new double[items.length];
+        var diskScores = new double[items.length];
+        Assert.assertEquals(8, store.getScores(1L, items, memoryScores));
+        Assert.assertEquals(8, tier.getScores(1L, items, diskScores));
+        for (int i = 0; i < items.length; i++) {
+            var score = Double.isNaN(memoryScores[i]) ? diskScores[i] : memoryScores[i];
+            Assert.assertEquals(i / 10.0, score, 0.0);
+        }
+        Assert.assertEquals(0, tier.getScores(2L, new long[] {0L}, new double[1]));
+    }
+
+    @Test
+    public void testSpilledEntriesAreWrittenByTheQueue() throws IOException {
+        var tier = new DiskScoreTier(Files.createTempDirectory("disk-tier"), 0, Duration.ofHours(1));
+        var spill = new DiskSpillQueue(tier, 16, 4);
+        var store = new OffHeapScoreStore(8, Duration.ofMinutes(5), spill.listener(Duration.ofMinutes(5)));
+
+        var items = new long[16];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = i;
+            store.setScores(1L, new long[] {i}, new double[] {i / 10.0});
+        }
+        spill.shutdown(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(8, spill.writtenCount());
+        Assert.assertEquals(8, tier.getScores(1L, items, new double[items.length]));
+
+        // once shut down nothing more is queued
+        spill.listener(Duration.ofMinutes(5)).evicted(2L, 2L, 0.2, 0L, 0L);
+        Assert.assertEquals(1, spill.droppedCount());
+        Assert.assertEquals(0, tier.getScores(2L, new long[] {2L}, new double[1]));
+    }
+
+    @Test
+    public void testSpilledEntriesKeepTheirPartitionDiskTtl() throws Exception {
+        var tier = new DiskScoreTier(Files.createTempDirectory("disk-tier"), 0, Duration.ofHours(1));
+        var spill = new DiskSpillQueue(tier, 16, 4);
+        var shortLived = spill.listener(Duration.ofMinutes(1));
+        var longLived = spill.listener(Duration.ofHours(2));
+
+        // idle past the partition's disk TTL, so never written
+        shortLived.evicted(1L, 1L, 0.1, Duration.ofMinutes(2).toMillis(), 0L);
+        // a few milliseconds left of the partition's disk TTL
+        shortLived.evicted(1L, 2L, 0.2, Duration.ofMinutes(1).toMillis() - 5, 0L);
+        // longer than the tier's default TTL
+        longLived.evicted(1L, 3L, 0.3, Duration.ofMinutes(90).toMillis(), 0L);
+        spill.shutdown(5, TimeUnit.SECONDS);
+        Thread.sleep(10);
+
+        var scores = new double[3];
+        Assert.assertEquals(2, spill.writtenCount());
+        Assert.assertEquals(1, tier.getScores(1L, new long[] {1L, 2L, 3L}, scores));
+        Assert.assertEquals(0.3, scores[2], 0.0);
+    }
+
+    @Test
+    public void testEntriesExpiredFromMemoryAreServedFromDisk() throws Exception {
+        var tier = new DiskScoreTier(Files.createTempDirectory("disk-tier"), 0, Duration.ofHours(1));
+        var spill = new DiskSpillQueue(tier, 16, 4);
+
+        // what a store with the default five minute expireAfterAccess evicts once idle
+        spill.listener(tier.defaultTtl()).evicted(1L, 1L, 0.1, Duration.ofMinutes(5).toMillis() + 1, Duration.ofMinutes(5).toMillis() + 1);
+        spill.shutdown(5, TimeUnit.SECONDS);
+
+        var scores = new double[1];
+        Assert.assertEquals(1, tier.getScores(1L, new long[] {1L}, scores));
+        Assert.assertEquals(0.1, scores[0], 0.0);
+    }
+
+    @Test
+    public void testDiskHitsKeepTheAgeTheyWereWrittenWith() throws IOException {
+        var tier = new DiskScoreTier(Files.createTempDirectory("disk-tier"), 0, Duration.ofHours(1));
+        var store = new OffHeapScoreStore(8, Duration.ofMinutes(5), tier::put);
+        var age = Duration.ofMinutes(40).toMillis();
+
+        // written forty minutes ago, then pushed out by eight fresh entries
+        store.setScores(1L, new long[] {0L}, new double[] {0.1}, new long[] {age});
+        for (long i = 1; i <= 8; i++) {
+            store.setScores(1L, new long[] {i}, new double[] {i / 10.0});
+        }
+
+        var scores = new double[1];
+        var ages = new long[1];
+        Assert.assertEquals(1, tier.getScores(1L, new long[] {0L}, scores, ages));
+        Assert.assertEquals(0.1, scores[0], 0.0);
+        // the store keeps write times to the second
+        Assert.assertEquals(age, ages[0], 2_000);
+    }
+
+    @Test
+    public void testStaleEntriesAreIgnored() throws IOException {
+        var tier = new DiskScoreTier(Files.createTempDirectory("disk-tier"), 0, Duration.ofMinutes(1));
+        tier.put(1L, 1L, 0.1, Duration.ofMinutes(2).toMillis(), 0L);
+        tier.put(1L, 2L, 0.2, 0L, 0L);
+
+        var scores = new double[2];
+        Assert.assertEquals(1, tier.getScores(1L, new long[] {1L, 2L}, scores));
+        Assert.assertEquals(0.2, scores[1], 0.0);
+    }
+
+    @Test
+    public void testIndexIsRebuiltOnRestart() throws IOException {
+        var directory = Files.createTempDirectory("disk-tier");
+        var tier = new DiskScoreTier(directory, 0, Duration.ofHours(1));
+        tier.put(1L, 1L, 0.1, 0L, 0L);
+        tier.put(1L, 1L, 0.3, 0L, 0L);
+        tier.put(2L, 2L, 0.2, 0L, 0L);
+        tier.close();
+
+        var reopened = new DiskScoreTier(directory, 0, Duration.ofHours(1));
+        Assert.assertEquals(2, reopened.size());
+        var scores = new double[1];
+        reopened.getScores(1L, new long[] {1L}, scores);
+        Assert.assertEquals(0.3, scores[0], 0.0);
+    }
+
+    @Test
+    public void testOldestSegmentIsCompactedOrEvicted() throws IOException {
+        // two segments, the smallest tier there is
+        var tier = new DiskScoreTier(Files.createTempDirectory("disk-tier"), 0, Duration.ofHours(1));
+
+        // the first segment is all overwrites of one key apart from a single record
+        tier.put(1L, 1L, 0.1, 0L, 0L);
+        for (int i = 1; i < RECORDS_PER_SEGMENT; i++) {
+            tier.put(2L, 2L, i, 0L, 0L);
+        }
+        // the second segment is all distinct live keys
+        for (int i = 0; i < RECORDS_PER_SEGMENT; i++) {
+            tier.put(3L, i, i, 0L, 0L);
+        }
+
+        // rolling compacts the mostly dead first segment
+        tier.put(4L, 4L, 0.4, 0L, 0L);
+        Assert.assertEquals(2, tier.compactedCount());
+        var scores = new double[1];
+        Assert.assertEquals(1, tier.getScores(1L, new long[] {1L}, scores));
+        Assert.assertEquals(0.1, scores[0], 0.0);
+        Assert.assertEquals(1, tier.getScores(2L, new long[] {2L}, scores));
+        Assert.assertEquals(RECORDS_PER_SEGMENT - 1, scores[0], 0.0);
+
+        // filling the third segment and rolling again evicts the fully live second one
+        for (int i = 0; i < RECORDS_PER_SEGMENT; i++) {
+            tier.put(5L, i, i, 0L, 0L);
+        }
+        Assert.assertEquals(RECORDS_PER_SEGMENT, tier.evictionCount());
+        Assert.assertEquals(0, tier.getScores(3L, new long[] {0L, 1L}, new double[2]));
+        Assert.assertEquals(1, tier.getScores(4L, new long[] {4L}, new double[1]));
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExecutionModeTest {
+    @Test
+    public void testModesAreParsedCaseInsensitively() {
+        Assert.assertEquals(ExecutionMode.VIRTUAL, ExecutionMode.fromName("Virtual"));
+        Assert.assertEquals(ExecutionMode.BOUNDED, ExecutionMode.fromName(" bounded "));
+        Assert.assertThrows(IllegalArgumentException.class, () -> ExecutionMode.fromName("forkjoin"));
+    }
+
+    @Test
+    public void testBoundedModeCapsThreads() throws Exception {
+        var executor = ExecutionMode.BOUNDED.newExecutor("bounded-test", 2);
+        var threads = ConcurrentHashMap.<String>newKeySet();
+        var done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            executor.execute(() -> {
+                threads.add(Thread.currentThread().getName());
+                done.countDown();
+            });
+        }
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        executor.shutdown();
+        Assert.assertTrue(threads.size() <= 2);
+        Assert.assertTrue(threads.stream().allMatch(name -> name.startsWith("bounded-test-")));
+    }
+
+    @Test
+    public void testEveryModeRunsTasks() throws Exception {
+        for (var mode : ExecutionMode.values()) {
+            var executor = mode.newExecutor(mode.name().toLowerCase(), 1);
+            var ran = new CountDownLatch(1);
+            executor.execute(ran::countDown);
+            Assert.assertTrue(mode.name(), ran.await(5, TimeUnit.SECONDS));
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import io.grpc.Context;
+import io.grpc.stub.StreamObserver;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.tensorflow.framework.TensorProto;
+import tensorflow.serving.Predict.PredictRequest;
+import tensorflow.serving.Predict.PredictResponse;
+import tensorflow.serving.PredictionServiceGrpc;
+
+/**
+ * PredictionService scoring every item as half its id after a fixed latency, for tests
+ * that need a real grpc call to TF Serving
+ */
+class FakePredictionService extends PredictionServiceGrpc.PredictionServiceImplBase {
+    final AtomicInteger calls = new AtomicInteger();
+    final CountDownLatch cancelled = new CountDownLatch(1);
+
+    private final long latencyMillis;
+    private final ScheduledExecutorService scheduler;
+
+    FakePredictionService(long latencyMillis, ScheduledExecutorService scheduler) {
+        this.latencyMillis = latencyMillis;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public void predict(PredictRequest request, StreamObserver<PredictResponse> responseObserver) {
+        calls.incrementAndGet();
+        var context = Context.current();
+        // the server cancels the context of completed calls too, so only count unanswered ones
+        var answered = new AtomicBoolean();
+        context.addListener(ignored -> {
+            if (!answered.get()) {
+                cancelled.countDown();
+            }
+        }, Runnable::run);
+
+        var scores = TensorProto.newBuilder();
+        for (var item : PredictRequests.itemIds(request)) {
+            scores.addDoubleVal(item / 2.0);
+        }
+        var response = PredictResponse.newBuilder().putOutputs("scores", scores.build()).build();
+        scheduler.schedule(() -> {
+            if (!context.isCancelled()) {
+                answered.set(true);
+                responseObserver.onNext(response);
+                responseObserver.onCompleted();
+            }
+        }, latencyMillis, TimeUnit.MILLISECONDS);
+    }
+}
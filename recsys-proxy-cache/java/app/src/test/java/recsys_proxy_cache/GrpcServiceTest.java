@@ -21,8 +21,12 @@
 package recsys_proxy_cache;
 
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.*;
@@ -30,11 +34,17 @@ import org.mockito.internal.creation.MockSettingsImpl;
 import recsys_proxy_cache.cache.ScoreCache;
 import recsys_proxy_cache.protos.*;
 
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class GrpcServiceTest {
     private static final Random rand = new Random(1L);
 
+    private ScoreCache.Builder cacheBuilderMock;
+    private RecsysProxy.Builder recsysBuilderMock;
     private ScoreCache scoreCacheMock;
     private RecsysProxy recsysProxyMock;
     private StreamObserver<ScoreResponse> streamObserverMock;
@@ -42,11 +52,11 @@ public class GrpcServiceTest {
 
     @Before
     public void setupMockedOutGrpcService() throws Exception {
-        var cacheBuilderMock = Mockito.mock(
+        cacheBuilderMock = Mockito.mock(
                 ScoreCache.Builder.class,
                 new MockSettingsImpl<>().defaultAnswer(Mockito.RETURNS_SELF)
         );
-        var recsysBuilderMock = Mockito.mock(
+        recsysBuilderMock = Mockito.mock(
                 RecsysProxy.Builder.class,
                 new MockSettingsImpl<>().defaultAnswer(Mockito.RETURNS_SELF)
         );
@@ -63,7 +73,8 @@ public class GrpcServiceTest {
         streamObserverMock = Mockito.mock(StreamObserver.class);
         systemUnderTest = new GrpcService(
                 () -> cacheBuilderMock,
-                () -> recsysBuilderMock
+                () -> recsysBuilderMock,
+                modelName -> ModelVersions.UNKNOWN_VERSION
         );
     }
 
@@ -71,8 +82,8 @@ public class GrpcServiceTest {
     public void TestCacheEmptyAllScoresAreAdded() throws Exception {
         var testData = TestUtils.generateRandomTestData(10, 0);
 
-        Mockito.when(recsysProxyMock.score(Mockito.any()))
-                .thenReturn(testData.proxyRecords);
+        Mockito.when(recsysProxyMock.scoreAsync(Mockito.any()))
+                .thenReturn(Futures.immediateFuture(testData.proxyRecords));
         Mockito.when(scoreCacheMock.getScores(Mockito.any()))
                 .thenReturn(testData.cacheRecords);
 
@@ -87,7 +98,7 @@ public class GrpcServiceTest {
     public void TestCacheFullRecsysProxyEmpty() throws Exception {
         var testData = TestUtils.generateRandomTestData(0, 10);
 
-        Mockito.when(recsysProxyMock.score(Mockito.any()))
+        Mockito.when(recsysProxyMock.scoreAsync(Mockito.any()))
                 .thenThrow(new AssertionError("expected RecsysProxy not to be called"));
         Mockito.when(scoreCacheMock.getScores(Mockito.any()))
                 .thenReturn(testData.cacheRecords);
@@ -102,8 +113,8 @@ public class GrpcServiceTest {
     public void TestCacheHalfFullRecsysProxyWithOtherHalf() throws Exception {
         var testData = TestUtils.generateRandomTestData(10, 10);
 
-        Mockito.when(recsysProxyMock.score(Mockito.any()))
-                .thenReturn(testData.proxyRecords);
+        Mockito.when(recsysProxyMock.scoreAsync(Mockito.any()))
+                .thenReturn(Futures.immediateFuture(testData.proxyRecords));
         Mockito.when(scoreCacheMock.getScores(Mockito.any()))
                 .thenReturn(testData.cacheRecords);
 
@@ -117,7 +128,7 @@ public class GrpcServiceTest {
     public void TestHandlesInvalidArgumentsGracefully() throws Exception {
         var testData = TestUtils.generateRandomTestData(0, 0);
 
-        Mockito.when(recsysProxyMock.score(Mockito.any()))
+        Mockito.when(recsysProxyMock.scoreAsync(Mockito.any()))
                 .thenThrow(new AssertionError("assert proxy not called"));
         Mockito.when(scoreCacheMock.getScores(Mockito.any()))
                 .thenThrow(new AssertionError("assert mock not called"));
@@ -131,7 +142,7 @@ public class GrpcServiceTest {
     public void TestHandlesUnexpectedProxyException() throws Exception {
         var testData = TestUtils.generateRandomTestData(10, 10);
 
-        Mockito.when(recsysProxyMock.score(Mockito.any()))
+        Mockito.when(recsysProxyMock.scoreAsync(Mockito.any()))
                 .thenThrow(new RuntimeException("this exception should be handled"));
         Mockito.when(scoreCacheMock.getScores(Mockito.any()))
                 .thenReturn(testData.cacheRecords);
@@ -145,8 +156,8 @@ public class GrpcServiceTest {
     public void TestHandlesUnexpectedCacheException() throws Exception {
         var testData = TestUtils.generateRandomTestData(10, 10);
 
-        Mockito.when(recsysProxyMock.score(Mockito.any()))
-                .thenReturn(testData.proxyRecords);
+        Mockito.when(recsysProxyMock.scoreAsync(Mockito.any()))
+                .thenReturn(Futures.immediateFuture(testData.proxyRecords));
         Mockito.when(scoreCacheMock.getScores(Mockito.any()))
                 .thenThrow(new RuntimeException("this exception should be handled"));
 
@@ -155,12 +166,111 @@ public class GrpcServiceTest {
         Mockito.verify(streamObserverMock).onError(Mockito.any());
     }
 
+    @Test
+    public void TestResponseIsCompletedByBackendCallback() throws Exception {
+        var testData = TestUtils.generateRandomTestData(10, 10);
+        var pending = SettableFuture.<Map<Long, Double>>create();
+
+        Mockito.when(recsysProxyMock.scoreAsync(Mockito.any()))
+                .thenReturn(pending);
+        Mockito.when(scoreCacheMock.getScores(Mockito.any()))
+                .thenReturn(testData.cacheRecords);
+
+        // the server thread is handed back while TF Serving is still scoring
+        systemUnderTest.getScores(testData.request, streamObserverMock);
+        Mockito.verifyNoInteractions(streamObserverMock);
+
+        pending.set(testData.proxyRecords);
+        Mockito.verify(streamObserverMock).onNext(testData.expected);
+        Mockito.verify(streamObserverMock).onCompleted();
+        Mockito.verify(scoreCacheMock).setScores(testData.proxyRecords);
+    }
+
+    @Test
+    public void TestDegradedModeServesFallbacksAndCachesLateScores() throws Exception {
+        var testData = TestUtils.generateRandomTestData(10, 10);
+        var pending = SettableFuture.<Map<Long, Double>>create();
+        var lastKnownItem = testData.proxyRecords.keySet().iterator().next();
+
+        Mockito.when(recsysProxyMock.scoreAsync(Mockito.any()))
+                .thenReturn(pending);
+        Mockito.when(scoreCacheMock.getScores(Mockito.any()))
+                .thenReturn(testData.cacheRecords);
+        Mockito.when(scoreCacheMock.getLastKnownScores(Mockito.any()))
+                .thenReturn(Map.of(lastKnownItem, 0.9));
+        var answeredOn = new AtomicReference<String>();
+        Mockito.doAnswer(invocation -> {
+            answeredOn.set(Thread.currentThread().getName());
+            return null;
+        }).when(streamObserverMock).onNext(Mockito.any());
+
+        degradedService().getScores(testData.request, streamObserverMock);
+
+        var response = ArgumentCaptor.forClass(ScoreResponse.class);
+        Mockito.verify(streamObserverMock, Mockito.timeout(2000)).onNext(response.capture());
+        Mockito.verify(streamObserverMock, Mockito.timeout(2000)).onCompleted();
+        assertDegraded(testData, response.getValue(), Map.of(lastKnownItem, 0.9));
+        // the budget's timer thread only ever hands the fallback off
+        Assert.assertNotEquals("degraded-mode-timer", answeredOn.get());
+
+        // TF Serving answering after the response went out still fills the cache
+        Mockito.verify(scoreCacheMock, Mockito.never()).setScores(Mockito.<Map<Long, Double>>any());
+        pending.set(testData.proxyRecords);
+        Mockito.verify(scoreCacheMock).setScores(testData.proxyRecords);
+    }
+
+    @Test
+    public void TestDegradedModeServesFallbacksWhenBackendUnavailable() throws Exception {
+        var testData = TestUtils.generateRandomTestData(10, 10);
+
+        Mockito.when(recsysProxyMock.scoreAsync(Mockito.any()))
+                .thenReturn(Futures.immediateFailedFuture(Status.UNAVAILABLE.asRuntimeException()));
+        Mockito.when(scoreCacheMock.getScores(Mockito.any()))
+                .thenReturn(testData.cacheRecords);
+        Mockito.when(scoreCacheMock.getLastKnownScores(Mockito.any()))
+                .thenReturn(Map.of());
+
+        degradedService().getScores(testData.request, streamObserverMock);
+
+        var response = ArgumentCaptor.forClass(ScoreResponse.class);
+        Mockito.verify(streamObserverMock, Mockito.timeout(2000)).onNext(response.capture());
+        Mockito.verify(streamObserverMock, Mockito.timeout(2000)).onCompleted();
+        assertDegraded(testData, response.getValue(), Map.of());
+    }
+
+    private GrpcService degradedService() {
+        return new GrpcService(
+                () -> cacheBuilderMock,
+                () -> recsysBuilderMock,
+                modelName -> ModelVersions.UNKNOWN_VERSION,
+                Optional.of(new DegradedMode(20, 0.5, Map.of()))
+        );
+    }
+
+    /*
+     * cached items keep their score, every other item gets its last known score or the
+     * default and is listed in degraded_indexes
+     */
+    private static void assertDegraded(TestUtils.TestData testData, ScoreResponse response, Map<Long, Double> lastKnown) {
+        var degradedIndexes = new HashSet<Integer>();
+        for (int i = 0; i < testData.items.size(); i++) {
+            var item = testData.items.get(i);
+            if (testData.cacheRecords.containsKey(item)) {
+                Assert.assertEquals(testData.cacheRecords.get(item), response.getScores(i), 0.0);
+            } else {
+                Assert.assertEquals(lastKnown.getOrDefault(item, 0.5), response.getScores(i), 0.0);
+                degradedIndexes.add(i);
+            }
+        }
+        Assert.assertEquals(degradedIndexes, new HashSet<>(response.getDegradedIndexesList()));
+    }
+
     @Test
     public void testUnexpectedEmptyResponseFromProxyYieldsException() throws Exception {
         var testData = TestUtils.generateRandomTestData(10, 10);
 
-        Mockito.when(recsysProxyMock.score(Mockito.any()))
-                .thenReturn(Maps.newHashMap());
+        Mockito.when(recsysProxyMock.scoreAsync(Mockito.any()))
+                .thenReturn(Futures.immediateFuture(Maps.newHashMap()));
         Mockito.when(scoreCacheMock.getScores(Mockito.any()))
                 .thenReturn(testData.cacheRecords);
 
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import io.grpc.Context;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.tensorflow.framework.TensorProto;
+import tensorflow.serving.Predict.PredictRequest;
+import tensorflow.serving.Predict.PredictResponse;
+import tensorflow.serving.PredictionServiceGrpc;
+import tensorflow.serving.PredictionServiceGrpc.PredictionServiceFutureStub;
+
+public class HedgerTest {
+    @Rule
+    public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private FakePredictionService predictionService;
+    private PredictionServiceFutureStub stub;
+
+    @Before
+    public void setupInProcessPredictionService() throws Exception {
+        var serverName = InProcessServerBuilder.generateName();
+        predictionService = new FakePredictionService();
+        grpcCleanup.register(InProcessServerBuilder
+                .forName(serverName)
+                .directExecutor()
+                .addService(predictionService)
+                .build()
+                .start()
+        );
+        stub = PredictionServiceGrpc.newFutureStub(grpcCleanup.register(InProcessChannelBuilder
+                .forName(serverName)
+                .directExecutor()
+                .build()
+        ));
+    }
+
+    @After
+    public void stopScheduler() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void testSlowCallIsHedgedAndLoserCancelled() throws Exception {
+        var hedger = new Hedger(20, 0, 100);
+        predictionService.latencies.add(5_000L);
+
+        var response = hedger
+                .call(() -> stub.withDeadlineAfter(10, TimeUnit.SECONDS).predict(PredictRequest.getDefaultInstance()))
+                .get(2, TimeUnit.SECONDS);
+
+        Assert.assertEquals(1.0, response.getOutputsOrThrow("scores").getDoubleVal(0), 0.0);
+        Assert.assertEquals(2, predictionService.calls.get());
+        Assert.assertEquals(1, hedger.hedgedCount());
+        Assert.assertEquals(1, hedger.hedgeWonCount());
+        Assert.assertTrue(predictionService.cancelled.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testHedgesStayWithinBudget() throws Exception {
+        var hedger = new Hedger(5, 0, 0);
+        predictionService.latencies.add(200L);
+
+        var response = hedger
+                .call(() -> stub.withDeadlineAfter(10, TimeUnit.SECONDS).predict(PredictRequest.getDefaultInstance()))
+                .get(2, TimeUnit.SECONDS);
+
+        Assert.assertEquals(1.0, response.getOutputsOrThrow("scores").getDoubleVal(0), 0.0);
+        Assert.assertEquals(1, predictionService.calls.get());
+        Assert.assertEquals(0, hedger.hedgedCount());
+    }
+
+    /**
+     * answers after the next queued latency, or at once when none is left
+     */
+    private class FakePredictionService extends PredictionServiceGrpc.PredictionServiceImplBase {
+        final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch cancelled = new CountDownLatch(1);
+
+        @Override
+        public void predict(PredictRequest request, StreamObserver<PredictResponse> responseObserver) {
+            calls.incrementAndGet();
+            var context = Context.current();
+            context.addListener(ignored -> {
+                if (context.isCancelled()) {
+                    cancelled.countDown();
+                }
+            }, Runnable::run);
+
+            var response = PredictResponse
+                    .newBuilder()
+                    .putOutputs("scores", TensorProto.newBuilder().addDoubleVal(1.0).build())
+                    .build();
+            Runnable respond = () -> {
+                if (!context.isCancelled()) {
+                    responseObserver.onNext(response);
+                    responseObserver.onCompleted();
+                }
+            };
+            var latency = latencies.poll();
+            if (latency == null) {
+                respond.run();
+            } else {
+                scheduler.schedule(respond, latency, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.StatusException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.testing.GrpcCleanupRule;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import tensorflow.serving.PredictionServiceGrpc;
+
+public class InFlightScoresTest {
+    @Rule
+    public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+    @Test
+    public void testOverlappingItemsAreScoredOnce() throws Exception {
+        var inFlight = new InFlightScores();
+        var owned = SettableFuture.<Map<Long, Double>>create();
+        var first = inFlight.score(1L, List.of(1L, 2L), items -> owned);
+
+        var sent = new ArrayList<Collection<Long>>();
+        var second = inFlight.score(1L, List.of(2L, 3L), items -> {
+            sent.add(List.copyOf(items));
+            return Futures.immediateFuture(Map.of(3L, 0.3));
+        });
+
+        // the second call sent its remainder straight away and is waiting on item 2
+        Assert.assertEquals(List.of(List.of(3L)), sent);
+        Assert.assertFalse(second.isDone());
+        owned.set(Map.of(1L, 0.1, 2L, 0.2));
+
+        Assert.assertEquals(Map.of(1L, 0.1, 2L, 0.2), first.get(5, TimeUnit.SECONDS).scores());
+        var result = second.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(Map.of(2L, 0.2, 3L, 0.3), result.scores());
+        Assert.assertEquals(Map.of(3L, 0.3), result.scored());
+        Assert.assertEquals(1, inFlight.coalescedCount());
+    }
+
+    @Test
+    public void testOwnerFailureIsPassedToAttachedCalls() throws Exception {
+        var inFlight = new InFlightScores();
+        var owned = SettableFuture.<Map<Long, Double>>create();
+        var first = inFlight.score(1L, List.of(1L), items -> owned);
+        var second = inFlight.score(1L, List.of(1L), items -> {
+            throw new AssertionError("expected item 1 not to be scored twice");
+        });
+
+        owned.setException(Status.UNAVAILABLE.withDescription("TF Serving is down").asException());
+
+        Assert.assertThrows(ExecutionException.class, () -> first.get(5, TimeUnit.SECONDS));
+        var exception = Assert.assertThrows(ExecutionException.class, () -> second.get(5, TimeUnit.SECONDS));
+        Assert.assertTrue(exception.getCause() instanceof StatusException);
+        Assert.assertEquals(Status.Code.UNAVAILABLE, ((StatusException) exception.getCause()).getStatus().getCode());
+
+        // nothing is left in flight, so the next call scores the item itself
+        var retried = inFlight.score(1L, List.of(1L), items -> Futures.immediateFuture(Map.of(1L, 0.4)));
+        Assert.assertEquals(Map.of(1L, 0.4), retried.get(5, TimeUnit.SECONDS).scored());
+    }
+
+    @Test
+    public void testCancellingTheOwnerCancelsItsRequest() {
+        var inFlight = new InFlightScores();
+        var owned = SettableFuture.<Map<Long, Double>>create();
+        var first = inFlight.score(1L, List.of(1L), items -> owned);
+
+        first.cancel(true);
+
+        Assert.assertTrue(owned.isCancelled());
+    }
+
+    @Test
+    public void testCancellingTheOwnerKeepsScoringForAttachedCalls() throws Exception {
+        var inFlight = new InFlightScores();
+        var owned = SettableFuture.<Map<Long, Double>>create();
+        var first = inFlight.score(1L, List.of(1L, 2L), items -> owned);
+        var second = inFlight.score(1L, List.of(2L), items -> {
+            throw new AssertionError("expected item 2 not to be scored twice");
+        });
+
+        first.cancel(true);
+        Assert.assertFalse(owned.isCancelled());
+        owned.set(Map.of(1L, 0.1, 2L, 0.2));
+
+        Assert.assertEquals(Map.of(2L, 0.2), second.get(5, TimeUnit.SECONDS).scores());
+    }
+
+    @Test
+    public void testOwnerCancellingItsCallKeepsTheBackendCallForAttachedCalls() throws Exception {
+        var scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            var backend = new FakePredictionService(200, scheduler);
+            var serverName = InProcessServerBuilder.generateName();
+            grpcCleanup.register(InProcessServerBuilder
+                    .forName(serverName)
+                    .directExecutor()
+                    .addService(backend)
+                    .build()
+                    .start()
+            );
+            var proxy = RecsysProxy.Builder
+                    .newBuilder()
+                    .withModelName("model")
+                    .withContext(TestUtils.getRandomContext())
+                    .withStub(PredictionServiceGrpc.newFutureStub(grpcCleanup.register(InProcessChannelBuilder
+                            .forName(serverName)
+                            .directExecutor()
+                            .build()
+                    )))
+                    .withDeadlineMillis(5_000)
+                    .build();
+
+            var inFlight = new InFlightScores();
+            var ownerCall = Context.current().withCancellation();
+            var owner = ownerCall.call(() -> inFlight.score(1L, List.of(1L, 2L), proxy::scoreAsync));
+            var attached = inFlight.score(1L, List.of(2L), items -> {
+                throw new AssertionError("expected item 2 not to be scored twice");
+            });
+
+            // what GrpcService does when its caller cancels
+            ownerCall.cancel(null);
+            owner.cancel(true);
+
+            Assert.assertEquals(Map.of(2L, 1.0), attached.get(5, TimeUnit.SECONDS).scores());
+            Assert.assertEquals(1, backend.cancelled.getCount());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import io.grpc.ConnectivityState;
+import io.grpc.ConnectivityStateInfo;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.LoadBalancer.PickSubchannelArgs;
+import io.grpc.LoadBalancer.ResolvedAddresses;
+import io.grpc.LoadBalancer.Subchannel;
+import io.grpc.LoadBalancer.SubchannelStateListener;
+import io.grpc.Status;
+import java.net.InetSocketAddress;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+public class LeastRequestLoadBalancerTest {
+    @Test
+    public void testPickerPrefersFewerOutstandingCalls() {
+        var busy = new LeastRequestLoadBalancer.Backend(Mockito.mock(Subchannel.class));
+        var idle = new LeastRequestLoadBalancer.Backend(Mockito.mock(Subchannel.class));
+        busy.outstanding.set(5);
+
+        var picker = new LeastRequestLoadBalancer.Picker(List.of(busy, idle), Status.OK);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertSame(idle, picker.pick());
+        }
+        var result = picker.pickSubchannel(Mockito.mock(PickSubchannelArgs.class));
+        Assert.assertSame(idle.subchannel, result.getSubchannel());
+        Assert.assertNotNull(result.getStreamTracerFactory());
+    }
+
+    @Test
+    public void testReadyOnceAnyBackendConnects() {
+        var helper = Mockito.mock(LoadBalancer.Helper.class);
+        var subchannels = List.of(Mockito.mock(Subchannel.class), Mockito.mock(Subchannel.class));
+        Mockito.when(helper.createSubchannel(Mockito.any(LoadBalancer.CreateSubchannelArgs.class)))
+                .thenReturn(subchannels.get(0), subchannels.get(1));
+
+        var systemUnderTest = new LeastRequestLoadBalancer(helper);
+        systemUnderTest.handleResolvedAddresses(ResolvedAddresses
+                .newBuilder()
+                .setAddresses(List.of(address(8500), address(8501)))
+                .build()
+        );
+        Mockito.verify(helper).updateBalancingState(Mockito.eq(ConnectivityState.CONNECTING), Mockito.any());
+
+        var listener = ArgumentCaptor.forClass(SubchannelStateListener.class);
+        Mockito.verify(subchannels.get(1)).start(listener.capture());
+        listener.getValue().onSubchannelState(ConnectivityStateInfo.forNonError(ConnectivityState.READY));
+
+        var picker = ArgumentCaptor.forClass(LoadBalancer.SubchannelPicker.class);
+        Mockito.verify(helper).updateBalancingState(Mockito.eq(ConnectivityState.READY), picker.capture());
+        var result = picker.getValue().pickSubchannel(Mockito.mock(PickSubchannelArgs.class));
+        Assert.assertSame(subchannels.get(1), result.getSubchannel());
+
+        // a backend that is no longer resolved is let go
+        systemUnderTest.handleResolvedAddresses(ResolvedAddresses
+                .newBuilder()
+                .setAddresses(List.of(address(8501)))
+                .build()
+        );
+        Mockito.verify(subchannels.get(0)).shutdown();
+        Mockito.verify(subchannels.get(1), Mockito.never()).shutdown();
+    }
+
+    private static EquivalentAddressGroup address(int port) {
+        return new EquivalentAddressGroup(new InetSocketAddress("127.0.0.1", port));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import java.util.ArrayList;
+import java.util.UUID;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import tensorflow.serving.GetModelStatus.GetModelStatusRequest;
+import tensorflow.serving.GetModelStatus.GetModelStatusResponse;
+import tensorflow.serving.GetModelStatus.ModelVersionStatus;
+import tensorflow.serving.ModelServiceGrpc;
+
+public class ModelVersionsTest {
+    @Rule
+    public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+    private FakeModelService modelService;
+    private ManagedChannel channel;
+    private ModelVersions systemUnderTest;
+
+    @Before
+    public void setupInProcessModelService() throws Exception {
+        var serverName = InProcessServerBuilder.generateName();
+        modelService = new FakeModelService();
+        grpcCleanup.register(InProcessServerBuilder
+                .forName(serverName)
+                .directExecutor()
+                .addService(modelService)
+                .build()
+                .start()
+        );
+        channel = grpcCleanup.register(InProcessChannelBuilder
+                .forName(serverName)
+                .directExecutor()
+                .build()
+        );
+        systemUnderTest = new ModelVersions(
+                () -> ModelServiceGrpc.newBlockingStub(channel),
+                MoreExecutors.directExecutor()
+        );
+    }
+
+    @Test
+    public void testFirstLookupDoesNotBlockTheCaller() {
+        var pending = new ArrayList<Runnable>();
+        var versions = new ModelVersions(() -> ModelServiceGrpc.newBlockingStub(channel), pending::add);
+        var modelName = UUID.randomUUID().toString();
+        modelService.response = GetModelStatusResponse
+                .newBuilder()
+                .addModelVersionStatus(status(5L, ModelVersionStatus.State.AVAILABLE))
+                .build();
+
+        Assert.assertEquals(ModelVersions.UNKNOWN_VERSION, versions.get(modelName));
+        Assert.assertEquals(ModelVersions.UNKNOWN_VERSION, versions.get(modelName));
+        Assert.assertEquals(1, pending.size());
+
+        pending.get(0).run();
+        Assert.assertEquals(5L, versions.get(modelName));
+    }
+
+    @Test
+    public void testNewestAvailableVersionIsUsed() {
+        modelService.response = GetModelStatusResponse
+                .newBuilder()
+                .addModelVersionStatus(status(3L, ModelVersionStatus.State.AVAILABLE))
+                .addModelVersionStatus(status(4L, ModelVersionStatus.State.LOADING))
+                .addModelVersionStatus(status(2L, ModelVersionStatus.State.AVAILABLE))
+                .build();
+
+        Assert.assertEquals(3L, systemUnderTest.get(UUID.randomUUID().toString()));
+    }
+
+    @Test
+    public void testRefreshPicksUpVersionBump() {
+        var modelName = UUID.randomUUID().toString();
+        modelService.response = GetModelStatusResponse
+                .newBuilder()
+                .addModelVersionStatus(status(1L, ModelVersionStatus.State.AVAILABLE))
+                .build();
+        Assert.assertEquals(1L, systemUnderTest.get(modelName));
+
+        modelService.response = GetModelStatusResponse
+                .newBuilder()
+                .addModelVersionStatus(status(1L, ModelVersionStatus.State.UNLOADING))
+                .addModelVersionStatus(status(2L, ModelVersionStatus.State.AVAILABLE))
+                .build();
+        Assert.assertEquals(1L, systemUnderTest.get(modelName));
+        systemUnderTest.refresh();
+        Assert.assertEquals(2L, systemUnderTest.get(modelName));
+    }
+
+    @Test
+    public void testLastKnownVersionIsKeptOnFailure() {
+        var modelName = UUID.randomUUID().toString();
+        modelService.response = GetModelStatusResponse
+                .newBuilder()
+                .addModelVersionStatus(status(7L, ModelVersionStatus.State.AVAILABLE))
+                .build();
+        Assert.assertEquals(7L, systemUnderTest.get(modelName));
+
+        modelService.response = null;
+        systemUnderTest.refresh();
+        Assert.assertEquals(7L, systemUnderTest.get(modelName));
+        Assert.assertEquals(ModelVersions.UNKNOWN_VERSION, systemUnderTest.get(UUID.randomUUID().toString()));
+    }
+
+    private static ModelVersionStatus status(long version, ModelVersionStatus.State state) {
+        return ModelVersionStatus.newBuilder().setVersion(version).setState(state).build();
+    }
+
+    private static class FakeModelService extends ModelServiceGrpc.ModelServiceImplBase {
+        volatile GetModelStatusResponse response;
+
+        @Override
+        public void getModelStatus(GetModelStatusRequest request, StreamObserver<GetModelStatusResponse> observer) {
+            if (response == null) {
+                observer.onError(Status.UNAVAILABLE.asException());
+                return;
+            }
+            observer.onNext(response);
+            observer.onCompleted();
+        }
+    }
+}
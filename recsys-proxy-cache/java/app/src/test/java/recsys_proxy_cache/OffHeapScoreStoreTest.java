@@ -0,0 +1,163 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Longs;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Test;
+import recsys_proxy_cache.cache.OffHeapScoreStore;
+
+public class OffHeapScoreStoreTest {
+    private static final Random rand = new Random(1L);
+
+    @Test
+    public void testSetScoresAreReturnedByGetScores() {
+        var store = new OffHeapScoreStore(1024, Duration.ofMinutes(5));
+        var context = rand.nextLong();
+        var expected = TestUtils.getRandomScores(100);
+        var items = Longs.toArray(expected.keySet());
+
+        var scores = new double[items.length];
+        Assert.assertEquals(0, store.getScores(context, items, scores));
+        for (var score : scores) {
+            Assert.assertTrue(Double.isNaN(score));
+        }
+
+        var values = new double[items.length];
+        for (int i = 0; i < items.length; i++) {
+            values[i] = expected.get(items[i]);
+        }
+        store.setScores(context, items, values);
+
+        Assert.assertEquals(items.length, store.getScores(context, items, scores));
+        Assert.assertArrayEquals(values, scores, 0.0);
+        Assert.assertEquals(items.length, store.size());
+
+        // same items under another context must not be found
+        Assert.assertEquals(0, store.getScores(context + 1, items, scores));
+    }
+
+    @Test
+    public void testStoreNeverGrowsPastCapacity() {
+        var store = new OffHeapScoreStore(64, Duration.ofMinutes(5));
+        var context = rand.nextLong();
+        var items = Longs.toArray(TestUtils.getRandomItems(10_000));
+        var values = Doubles.toArray(TestUtils.getRandomScores(10_000).values());
+        store.setScores(context, items, values);
+
+        Assert.assertEquals(store.capacity(), store.size());
+        Assert.assertTrue(store.evictionCount() > 0);
+
+        var scores = new double[items.length];
+        var hits = store.getScores(context, items, scores);
+        Assert.assertEquals(store.capacity(), hits);
+        for (int i = 0; i < items.length; i++) {
+            if (!Double.isNaN(scores[i])) {
+                Assert.assertEquals(values[i], scores[i], 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testEntriesExpireAfterAccess() throws InterruptedException {
+        var store = new OffHeapScoreStore(1024, Duration.ofMillis(20));
+        var context = rand.nextLong();
+        var items = new long[] {1L, 2L, 3L};
+        store.setScores(context, items, new double[] {0.1, 0.2, 0.3});
+
+        Thread.sleep(50L);
+        var scores = new double[items.length];
+        Assert.assertEquals(0, store.getScores(context, items, scores));
+    }
+
+    @Test
+    public void testAgesCountFromTheLastWrite() throws InterruptedException {
+        var store = new OffHeapScoreStore(1024, Duration.ofMinutes(5));
+        var context = rand.nextLong();
+        var items = new long[] {1L, 2L};
+        store.setScores(context, items, new double[] {0.1, 0.2});
+
+        // reads keep the entries alive but must not make them look freshly written
+        var scores = new double[items.length];
+        var ages = new long[items.length];
+        Thread.sleep(600L);
+        store.getScores(context, items, scores, ages);
+        Thread.sleep(600L);
+        store.setScores(context, new long[] {2L}, new double[] {0.3});
+
+        Assert.assertEquals(2, store.getScores(context, items, scores, ages));
+        Assert.assertTrue(ages[0] >= 1000L);
+        Assert.assertTrue(ages[1] <= 1000L);
+        Assert.assertEquals(0.3, scores[1], 0.0);
+    }
+
+    @Test
+    public void testReadsNeverRestoreAnOverwrittenWriteTime() throws Exception {
+        var store = new OffHeapScoreStore(1 << 16, Duration.ofMinutes(5));
+        var context = rand.nextLong();
+        var keys = 10_000;
+        for (long item = 0; item < keys; item++) {
+            store.setScores(context, new long[] {item}, new double[] {0.1});
+        }
+        // old enough that a read putting back the first write time shows in the age
+        Thread.sleep(2100L);
+
+        // readers hammer whichever key is being refreshed, each key can be raced once
+        var current = new AtomicLong();
+        var running = new AtomicBoolean(true);
+        var readers = new ArrayList<Thread>();
+        for (int r = 0; r < 4; r++) {
+            var reader = new Thread(() -> {
+                var scores = new double[1];
+                while (running.get()) {
+                    store.getScores(context, new long[] {current.get()}, scores);
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        try {
+            var scores = new double[1];
+            var ages = new long[1];
+            for (long item = 0; item < keys; item++) {
+                current.set(item);
+                store.setScores(context, new long[] {item}, new double[] {0.2});
+                // give a reader that saw the old stamp time to write it back
+                for (int spin = 0; spin < 1000; spin++) {
+                    Thread.onSpinWait();
+                }
+                store.getScores(context, new long[] {item}, scores, ages);
+                Assert.assertTrue("age " + ages[0] + " after a refresh", ages[0] <= 1000L);
+            }
+        } finally {
+            running.set(false);
+            for (var reader : readers) {
+                reader.join();
+            }
+        }
+    }
+}
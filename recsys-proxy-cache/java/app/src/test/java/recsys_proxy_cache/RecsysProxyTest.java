@@ -22,18 +22,38 @@ package recsys_proxy_cache;
 
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.SettableFuture;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.testing.GrpcCleanupRule;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
 import org.mockito.*;
 import org.mockito.internal.creation.MockSettingsImpl;
 import org.tensorflow.framework.TensorProto;
+import tensorflow.serving.Predict.PredictRequest;
 import tensorflow.serving.Predict.PredictResponse;
+import tensorflow.serving.PredictionServiceGrpc;
 import tensorflow.serving.PredictionServiceGrpc.PredictionServiceFutureStub;
 
 public class RecsysProxyTest {
+    @Rule
+    public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
     private PredictionServiceFutureStub mockStub;
     private RecsysProxy systemUnderTest;
 
@@ -71,6 +91,199 @@ public class RecsysProxyTest {
         Assert.assertEquals(expected, actual);
     }
 
+    @Test
+    public void testLargeRequestsAreSplitIntoChunks() throws Exception {
+        var chunked = RecsysProxy.Builder
+                .newBuilder()
+                .withModelName(UUID.randomUUID().toString())
+                .withContext(TestUtils.getRandomContext())
+                .withStub(mockStub)
+                .withMaxItemsPerCall(10)
+                .build();
+        var requested = new CopyOnWriteArrayList<Integer>();
+        Mockito.when(mockStub.predict(Mockito.any())).thenAnswer(invocation -> {
+            PredictRequest request = invocation.getArgument(0);
+            var items = PredictRequests.itemIds(request);
+            requested.add(items.length);
+            var scores = TensorProto.newBuilder();
+            for (var item : items) {
+                scores.addDoubleVal(item / 2.0);
+            }
+            return Futures.immediateFuture(PredictResponse.newBuilder().putOutputs("scores", scores.build()).build());
+        });
+
+        var items = LongStream.range(0, 25).boxed().collect(Collectors.toList());
+        var actual = chunked.scoreAsync(items).get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(List.of(10, 10, 5), requested);
+        Assert.assertEquals(25, actual.size());
+        items.forEach(item -> Assert.assertEquals(item / 2.0, actual.get(item), 0.0));
+    }
+
+    @Test
+    public void testFailedChunkCancelsTheOthers() {
+        var chunked = RecsysProxy.Builder
+                .newBuilder()
+                .withModelName(UUID.randomUUID().toString())
+                .withContext(TestUtils.getRandomContext())
+                .withStub(mockStub)
+                .withMaxItemsPerCall(10)
+                .withGuard(Optional.empty())
+                .build();
+        var pending = new CopyOnWriteArrayList<SettableFuture<PredictResponse>>();
+        Mockito.when(mockStub.predict(Mockito.any()))
+                .thenReturn(Futures.immediateFailedFuture(Status.UNAVAILABLE.asRuntimeException()))
+                .thenAnswer(invocation -> {
+                    var response = SettableFuture.<PredictResponse>create();
+                    pending.add(response);
+                    return response;
+                });
+
+        var scores = chunked.scoreAsync(LongStream.range(0, 25).boxed().collect(Collectors.toList()));
+
+        Assert.assertThrows(ExecutionException.class, () -> scores.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2, pending.size());
+        pending.forEach(response -> Assert.assertTrue(response.isCancelled()));
+    }
+
+    @Test
+    public void testContextTensorsAreReused() {
+        var context = TestUtils.getRandomContext();
+        var first = PredictRequests.predictRequest("model", context, new long[] {1L, 2L});
+        var second = PredictRequests.predictRequest("model", context, new long[] {3L});
+
+        Assert.assertArrayEquals(new long[] {1L, 2L}, PredictRequests.itemIds(first));
+        Assert.assertArrayEquals(new long[] {3L}, PredictRequests.itemIds(second));
+        Assert.assertEquals(context.getFieldsCount() + 1, second.getInputsCount());
+        for (var field : context.getFieldsMap().keySet()) {
+            Assert.assertSame(first.getInputsOrThrow(field), second.getInputsOrThrow(field));
+        }
+    }
+
+    @Test
+    public void testContextTensorsAreSharedAcrossSessions() {
+        var shared = TestUtils.getRandomContext();
+        var first = shared.toBuilder().putFields("session", TestUtils.getRandomValues(1)).build();
+        var second = shared.toBuilder().putFields("session", TestUtils.getRandomValues(1)).build();
+        var firstRequest = PredictRequests.predictRequest("model", first, new long[] {1L});
+        var secondRequest = PredictRequests.predictRequest("other-model", second, new long[] {2L});
+
+        Assert.assertEquals("other-model", secondRequest.getModelSpec().getName());
+        Assert.assertNotEquals(firstRequest.getInputsOrThrow("session"), secondRequest.getInputsOrThrow("session"));
+        for (var field : shared.getFieldsMap().keySet()) {
+            Assert.assertSame(firstRequest.getInputsOrThrow(field), secondRequest.getInputsOrThrow(field));
+        }
+    }
+
+    @Test
+    public void testModelsMappedToAnotherBackendNeverReachTfServing() throws Exception {
+        var context = TestUtils.getRandomContext();
+        var standIn = RecsysProxy.Builder
+                .newBuilder()
+                .withModelName("ranker")
+                .withContext(context)
+                .withStub(mockStub)
+                .withBackends(new ScoringBackends(ScoringBackends.parse("ranker=standin")))
+                .build();
+
+        var actual = standIn.scoreAsync(List.of(1L, 2L)).get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(StandInModel.scores(context, List.of(1L, 2L)), actual);
+        Mockito.verifyNoInteractions(mockStub);
+    }
+
+    @Test
+    public void testEveryBackendIsCalledThroughTheGuard() throws Exception {
+        var guard = new BackendGuard(10, 10, 100, 1, 60_000, System::nanoTime);
+        guard.call(() -> Futures.immediateFailedFuture(Status.UNAVAILABLE.asRuntimeException()));
+        var random = RecsysProxy.Builder
+                .newBuilder()
+                .withModelName("random")
+                .withContext(TestUtils.getRandomContext())
+                .withBackends(new ScoringBackends(ScoringBackends.parse("random=random")))
+                .withGuard(Optional.of(guard))
+                .build();
+
+        var scores = random.scoreAsync(List.of(1L, 2L));
+
+        var exception = Assert.assertThrows(ExecutionException.class, () -> scores.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Status.Code.UNAVAILABLE, Status.fromThrowable(exception.getCause()).getCode());
+        Assert.assertEquals(1, guard.shortCircuitedCount());
+    }
+
+    @Test
+    public void testBackendCallsOutliveTheInboundCall() throws Exception {
+        var scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            var backend = new FakePredictionService(200, scheduler);
+            var proxy = RecsysProxy.Builder
+                    .newBuilder()
+                    .withModelName("model")
+                    .withContext(TestUtils.getRandomContext())
+                    .withStub(inProcessStub(backend))
+                    .withDeadlineMillis(5_000)
+                    .build();
+
+            // as grpc does to a server call once it has been answered
+            var inbound = io.grpc.Context.current().withCancellation();
+            var scores = inbound.call(() -> proxy.scoreAsync(List.of(1L, 2L)));
+            inbound.cancel(null);
+
+            Assert.assertEquals(Map.of(1L, 0.5, 2L, 1.0), scores.get(5, TimeUnit.SECONDS));
+            Assert.assertEquals(1, backend.cancelled.getCount());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private PredictionServiceFutureStub inProcessStub(FakePredictionService backend) throws Exception {
+        var serverName = InProcessServerBuilder.generateName();
+        grpcCleanup.register(InProcessServerBuilder
+                .forName(serverName)
+                .directExecutor()
+                .addService(backend)
+                .build()
+                .start()
+        );
+        return PredictionServiceGrpc.newFutureStub(grpcCleanup.register(InProcessChannelBuilder
+                .forName(serverName)
+                .directExecutor()
+                .build()
+        ));
+    }
+
+    @Test
+    public void testBackendDeadlineFollowsTheCaller() {
+        var uncapped = RecsysProxy.backendDeadline(null).timeRemaining(TimeUnit.MILLISECONDS);
+        Assert.assertTrue(uncapped <= RecsysProxy.DEADLINE);
+
+        var far = io.grpc.Deadline.after(1, TimeUnit.HOURS);
+        Assert.assertTrue(RecsysProxy.backendDeadline(far).timeRemaining(TimeUnit.MILLISECONDS) <= RecsysProxy.DEADLINE);
+
+        var near = io.grpc.Deadline.after(RecsysProxy.DEADLINE - 1, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(RecsysProxy.backendDeadline(near).isBefore(near));
+    }
+
+    @Test
+    public void testCallerOutOfTimeNeverReachesTheBackend() throws Exception {
+        var guard = new BackendGuard(1, 1, 100, 1, 1000, System::nanoTime);
+        var proxy = RecsysProxy.Builder
+                .newBuilder()
+                .withModelName("model")
+                .withContext(TestUtils.getRandomContext())
+                .withStub(mockStub)
+                .withGuard(Optional.of(guard))
+                .build();
+
+        // inside the deadline margin, so the backend deadline has already passed
+        var scores = proxy.scoreAsync(List.of(1L, 2L), io.grpc.Deadline.after(1, TimeUnit.MILLISECONDS));
+
+        var exception = Assert.assertThrows(ExecutionException.class, () -> scores.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Status.Code.DEADLINE_EXCEEDED, Status.fromThrowable(exception.getCause()).getCode());
+        Mockito.verify(mockStub, Mockito.never()).predict(Mockito.any());
+        Assert.assertFalse(guard.isOpen());
+    }
+
     @Test
     public void testPredictThrowsExceptionOnTimeout() throws Exception {
         var expected = TestUtils.getRandomScores(10);
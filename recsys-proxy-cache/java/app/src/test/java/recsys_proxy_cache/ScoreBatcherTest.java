@@ -0,0 +1,102 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ScoreBatcherTest {
+    private final List<List<Long>> sent = new CopyOnWriteArrayList<>();
+    private final List<Optional<Deadline>> deadlines = new CopyOnWriteArrayList<>();
+    private final List<Context> contexts = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void testConcurrentCallsShareOneRequest() throws Exception {
+        var batcher = new ScoreBatcher(1024, 20_000);
+
+        var first = batcher.score(1L, List.of(1L, 2L), null, this::score);
+        var second = batcher.score(1L, List.of(2L, 3L), null, this::score);
+        Assert.assertTrue(sent.isEmpty());
+
+        Assert.assertEquals(Map.of(1L, 1.0, 2L, 2.0), first.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Map.of(2L, 2.0, 3L, 3.0), second.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(List.of(List.of(1L, 2L, 3L)), sent);
+        Assert.assertEquals(1, batcher.batchesSent());
+        Assert.assertEquals(2, batcher.callsBatched());
+    }
+
+    @Test
+    public void testFullBatchIsSentWithoutWaiting() throws Exception {
+        // a max wait far longer than the test is allowed to take
+        var batcher = new ScoreBatcher(4, TimeUnit.MINUTES.toMicros(10));
+
+        var first = batcher.score(1L, List.of(1L, 2L), null, this::score);
+        var second = batcher.score(1L, List.of(3L, 4L), null, this::score);
+
+        Assert.assertEquals(Map.of(1L, 1.0, 2L, 2.0), first.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Map.of(3L, 3.0, 4L, 4.0), second.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, sent.size());
+
+        // calls that fill a batch on their own go straight through
+        var alone = batcher.score(2L, List.of(5L, 6L, 7L, 8L), null, this::score);
+        Assert.assertEquals(Map.of(5L, 5.0, 6L, 6.0, 7L, 7.0, 8L, 8.0), alone.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, batcher.batchesSent());
+    }
+
+    @Test
+    public void testBatchIsSentForEveryCallNotJustTheOneFillingIt() throws Exception {
+        var batcher = new ScoreBatcher(4, TimeUnit.MINUTES.toMicros(10));
+        var soon = Deadline.after(1, TimeUnit.SECONDS);
+        var later = Deadline.after(1, TimeUnit.MINUTES);
+
+        var first = batcher.score(1L, List.of(1L, 2L), later, this::score);
+        var filling = Context.current().withCancellation();
+        var second = filling.call(() -> batcher.score(1L, List.of(3L, 4L), soon, this::score));
+        filling.cancel(null);
+
+        Assert.assertEquals(Map.of(1L, 1.0, 2L, 2.0), first.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Map.of(3L, 3.0, 4L, 4.0), second.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(List.of(Optional.of(later)), deadlines);
+        Assert.assertFalse(contexts.get(0).isCancelled());
+    }
+
+    private ListenableFuture<Map<Long, Double>> score(Collection<Long> items, Deadline deadline) {
+        sent.add(List.copyOf(items));
+        deadlines.add(Optional.ofNullable(deadline));
+        contexts.add(Context.current());
+        var scores = new HashMap<Long, Double>();
+        for (var item : items) {
+            scores.put(item, (double) item);
+        }
+        return Futures.immediateFuture(scores);
+    }
+}
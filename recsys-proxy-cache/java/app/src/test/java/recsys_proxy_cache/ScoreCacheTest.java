@@ -21,6 +21,7 @@
 package recsys_proxy_cache;
 
 import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -46,4 +47,28 @@ public class ScoreCacheTest {
         var data = scoreCache.getScores(randomScores.keySet());
         Assert.assertEquals(randomScores, data);
     }
+
+    @Test
+    public void testPrimitiveScoresAreIndexAlignedWithItems() throws InterruptedException {
+        var scoreCache = ScoreCache.Builder
+                .newBuilder()
+                .withContext(TestUtils.getRandomContext())
+                .withModelName(UUID.randomUUID().toString())
+                .build();
+
+        var randomScores = TestUtils.getRandomScores(5);
+        var items = Longs.toArray(randomScores.keySet());
+        var values = new double[items.length];
+        for (int i = 0; i < items.length; i++) {
+            values[i] = randomScores.get(items[i]);
+        }
+
+        var scores = new double[items.length];
+        Assert.assertEquals(0, scoreCache.getScores(items, scores));
+        scoreCache.setScores(items, values);
+        // sleep for a bit to allow background task to finish
+        Thread.sleep(10L);
+        Assert.assertEquals(items.length, scoreCache.getScores(items, scores));
+        Assert.assertArrayEquals(values, scores, 0.0);
+    }
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import org.junit.Assert;
+import org.junit.Test;
+import recsys_proxy_cache.cache.ScorePartition;
+
+public class ScorePartitionTest {
+    @Test
+    public void testPartitionConfigsAreParsed() {
+        var configs = ScorePartition.parseConfigs("""
+                [
+                  {
+                    "name": "homepage",
+                    "models": ["homepage_ranker", "homepage_ranker_v2"],
+                    "store": "caffeine",
+                    "maxBytes": 1600,
+                    "expireAfterAccessSeconds": 900,
+                    "diskTtlSeconds": 7200,
+                    "writers": 2
+                  },
+                  {
+                    "name": "search",
+                    "models": ["search_ranker"],
+                    "memoryFraction": 0.125
+                  }
+                ]
+                """.getBytes(StandardCharsets.UTF_8));
+
+        Assert.assertEquals(2, configs.size());
+        var homepage = configs.get(0);
+        Assert.assertEquals(List.of("homepage_ranker", "homepage_ranker_v2"), homepage.models());
+        Assert.assertEquals(Duration.ofMinutes(15), homepage.expireAfterAccess());
+        Assert.assertEquals(Optional.of(Duration.ofHours(2)), homepage.diskTtl());
+        Assert.assertEquals(2, homepage.writers());
+        Assert.assertEquals(1600, homepage.resolveMaxBytes());
+
+        var search = configs.get(1);
+        Assert.assertEquals("offheap", search.store());
+        Assert.assertEquals(Duration.ofMinutes(5), search.expireAfterAccess());
+        Assert.assertEquals(Optional.empty(), search.diskTtl());
+        Assert.assertEquals(1, search.writers());
+        Assert.assertEquals(Runtime.getRuntime().maxMemory() / 8, search.resolveMaxBytes(), 1.0);
+    }
+
+    @Test
+    public void testInvalidPartitionConfigsAreRejected() {
+        Assert.assertThrows(IllegalArgumentException.class, () -> ScorePartition.parseConfigs("""
+                [{"name": "default", "models": ["a"], "maxBytes": 1024}]
+                """.getBytes(StandardCharsets.UTF_8)));
+        Assert.assertThrows(IllegalArgumentException.class, () -> ScorePartition.parseConfigs("""
+                [{"name": "search", "models": ["a"]}]
+                """.getBytes(StandardCharsets.UTF_8)));
+        Assert.assertThrows(IllegalArgumentException.class, () -> ScorePartition.parseConfigs("""
+                [{"name": "search", "models": ["a"], "store": "unknown", "maxBytes": 1024}]
+                """.getBytes(StandardCharsets.UTF_8)));
+        Assert.assertThrows(IllegalArgumentException.class, () -> ScorePartition.parseConfigs("""
+                [{"name": "search", "models": ["a"], "memoryFraction": 1.5}]
+                """.getBytes(StandardCharsets.UTF_8)));
+    }
+}
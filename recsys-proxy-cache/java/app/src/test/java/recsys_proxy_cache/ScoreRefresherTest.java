@@ -0,0 +1,95 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import recsys_proxy_cache.cache.OffHeapScoreStore;
+import recsys_proxy_cache.cache.ScoreRefresher;
+import recsys_proxy_cache.cache.ScoreWriteBuffer;
+import recsys_proxy_cache.cache.ScoreWriteBuffer.OverflowPolicy;
+
+public class ScoreRefresherTest {
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Test
+    public void testStaleItemsAreBatchedPerContext() throws InterruptedException {
+        var store = new OffHeapScoreStore(1024, Duration.ofMinutes(5));
+        var buffer = new ScoreWriteBuffer(store, 1, 1024, 64, OverflowPolicy.DROP, 0);
+        var refresher = new ScoreRefresher(1, 16);
+
+        // keep the only refresh thread busy so the next refreshes have to queue up
+        refresher.refresh(1L, new long[] {1L}, this::blockingRescore, buffer);
+        Assert.assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+        var batches = new ArrayList<List<Long>>();
+        ScoreRefresher.Rescorer rescorer = items -> {
+            batches.add(List.copyOf(items));
+            return Map.of(1L, 0.1, 2L, 0.2, 3L, 0.3);
+        };
+        refresher.refresh(2L, new long[] {1L, 2L}, rescorer, buffer);
+        refresher.refresh(2L, new long[] {2L, 3L}, rescorer, buffer);
+        release.countDown();
+        refresher.shutdown(5, TimeUnit.SECONDS);
+        buffer.shutdown(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(List.of(List.of(1L, 2L, 3L)), batches);
+        var scores = new double[3];
+        Assert.assertEquals(3, store.getScores(2L, new long[] {1L, 2L, 3L}, scores));
+        Assert.assertArrayEquals(new double[] {0.1, 0.2, 0.3}, scores, 0.0);
+        Assert.assertEquals(4, refresher.refreshedCount());
+    }
+
+    @Test
+    public void testRefreshesPastMaxPendingAreDropped() throws InterruptedException {
+        var store = new OffHeapScoreStore(1024, Duration.ofMinutes(5));
+        var buffer = new ScoreWriteBuffer(store, 1, 1024, 64, OverflowPolicy.DROP, 0);
+        var refresher = new ScoreRefresher(1, 1);
+
+        refresher.refresh(1L, new long[] {1L}, this::blockingRescore, buffer);
+        Assert.assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+        ScoreRefresher.Rescorer failing = items -> {
+            throw new IllegalStateException("TF Serving is down");
+        };
+        refresher.refresh(2L, new long[] {1L, 2L}, failing, buffer);
+        refresher.refresh(3L, new long[] {1L, 2L, 3L}, failing, buffer);
+        release.countDown();
+        refresher.shutdown(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(3, refresher.droppedCount());
+        Assert.assertEquals(2, refresher.failedCount());
+        Assert.assertEquals(1, refresher.refreshedCount());
+    }
+
+    private Map<Long, Double> blockingRescore(List<Long> items) throws InterruptedException {
+        entered.countDown();
+        release.await();
+        return Map.of(items.get(0), 1.0);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Longs;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import recsys_proxy_cache.cache.OffHeapScoreStore;
+import recsys_proxy_cache.cache.ScoreSnapshots;
+
+public class ScoreSnapshotsTest {
+    private static final Random rand = new Random(1L);
+
+    @Test
+    public void testSnapshotRoundTrip() throws IOException {
+        var path = Files.createTempDirectory("score-snapshots").resolve("scores.snapshot");
+        var context = rand.nextLong();
+        var items = Longs.toArray(TestUtils.getRandomItems(1_000));
+        var values = Doubles.toArray(TestUtils.getRandomScores(1_000).values());
+
+        var original = new OffHeapScoreStore(4096, Duration.ofMinutes(5));
+        original.setScores(context, items, values);
+        Assert.assertEquals(items.length, ScoreSnapshots.write(original, path));
+
+        var restored = new OffHeapScoreStore(4096, Duration.ofMinutes(5));
+        Assert.assertEquals(items.length, ScoreSnapshots.load(restored, path));
+
+        var scores = new double[items.length];
+        Assert.assertEquals(items.length, restored.getScores(context, items, scores));
+        Assert.assertArrayEquals(values, scores, 0.0);
+    }
+
+    @Test
+    public void testRestoredEntriesKeepTheirRemainingTtl() throws IOException, InterruptedException {
+        var path = Files.createTempDirectory("score-snapshots").resolve("scores.snapshot");
+        var original = new OffHeapScoreStore(64, Duration.ofMillis(200));
+        original.setScores(1L, new long[] {1L, 2L}, new double[] {0.1, 0.2});
+        ScoreSnapshots.write(original, path);
+
+        var restored = new OffHeapScoreStore(64, Duration.ofMillis(200));
+        ScoreSnapshots.load(restored, path);
+        Thread.sleep(250L);
+        Assert.assertEquals(0, restored.getScores(1L, new long[] {1L, 2L}, new double[2]));
+    }
+
+    @Test
+    public void testRestoredEntriesKeepTheirAge() throws IOException {
+        var path = Files.createTempDirectory("score-snapshots").resolve("scores.snapshot");
+        var age = Duration.ofMinutes(10).toMillis();
+        var original = new OffHeapScoreStore(64, Duration.ofMinutes(5));
+        original.setScores(1L, new long[] {1L}, new double[] {0.1}, new long[] {age});
+        ScoreSnapshots.write(original, path);
+
+        var restored = new OffHeapScoreStore(64, Duration.ofMinutes(5));
+        ScoreSnapshots.load(restored, path);
+        var ages = new long[1];
+        Assert.assertEquals(1, restored.getScores(1L, new long[] {1L}, new double[1], ages));
+        // the store keeps write times to the second
+        Assert.assertEquals(age, ages[0], 2_000);
+    }
+
+    @Test
+    public void testUnrecognizedFileIsRejected() throws IOException {
+        var path = Files.createTempFile("score-snapshots", ".snapshot");
+        Files.write(path, new byte[64]);
+        var store = new OffHeapScoreStore(64, Duration.ofMinutes(5));
+        Assert.assertThrows(IOException.class, () -> ScoreSnapshots.load(store, path));
+    }
+}
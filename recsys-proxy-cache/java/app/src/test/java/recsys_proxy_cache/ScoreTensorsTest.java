@@ -0,0 +1,74 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.tensorflow.framework.DataType;
+import org.tensorflow.framework.TensorProto;
+import tensorflow.serving.Predict.PredictResponse;
+
+public class ScoreTensorsTest {
+    private static final double[] SCORES = {0.25, 0.5, 0.75};
+
+    @Test
+    public void testEveryEncodingDecodesToTheSameScores() {
+        var doubleContent = ByteBuffer.allocate(SCORES.length * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        var floatContent = ByteBuffer.allocate(SCORES.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (var score : SCORES) {
+            doubleContent.putDouble(score);
+            floatContent.putFloat((float) score);
+        }
+
+        var encodings = List.of(
+                TensorProto.newBuilder().addDoubleVal(0.25).addDoubleVal(0.5).addDoubleVal(0.75).build(),
+                TensorProto.newBuilder().setDtype(DataType.DT_DOUBLE).setTensorContent(ByteString.copyFrom(doubleContent.flip())).build(),
+                TensorProto.newBuilder().setDtype(DataType.DT_FLOAT).addFloatVal(0.25f).addFloatVal(0.5f).addFloatVal(0.75f).build(),
+                TensorProto.newBuilder().setDtype(DataType.DT_FLOAT).setTensorContent(ByteString.copyFrom(floatContent.flip())).build()
+        );
+        for (var tensor : encodings) {
+            var response = PredictResponse.newBuilder().putOutputs("scores", tensor).build();
+            Assert.assertArrayEquals(SCORES, ScoreTensors.decode(response, SCORES.length), 0.0);
+        }
+    }
+
+    @Test
+    public void testMismatchedLengthsFail() {
+        var response = PredictResponse
+                .newBuilder()
+                .putOutputs("scores", TensorProto.newBuilder().addDoubleVal(0.25).build())
+                .build();
+        var exception = Assert.assertThrows(StatusRuntimeException.class, () -> ScoreTensors.decode(response, 2));
+        Assert.assertEquals(Status.Code.INTERNAL, exception.getStatus().getCode());
+
+        var missing = Assert.assertThrows(
+                StatusRuntimeException.class,
+                () -> ScoreTensors.decode(PredictResponse.getDefaultInstance(), 0)
+        );
+        Assert.assertEquals(Status.Code.INTERNAL, missing.getStatus().getCode());
+    }
+}
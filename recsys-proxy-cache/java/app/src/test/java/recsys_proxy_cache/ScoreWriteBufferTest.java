@@ -0,0 +1,122 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import recsys_proxy_cache.cache.OffHeapScoreStore;
+import recsys_proxy_cache.cache.ScoreStore;
+import recsys_proxy_cache.cache.ScoreWriteBuffer;
+import recsys_proxy_cache.cache.ScoreWriteBuffer.OverflowPolicy;
+
+public class ScoreWriteBufferTest {
+    @Test
+    public void testLatestScoreForAKeyWins() {
+        var store = new OffHeapScoreStore(1024, Duration.ofMinutes(5));
+        var buffer = new ScoreWriteBuffer(store, 2, 1024, 64, OverflowPolicy.DROP, 0);
+
+        buffer.offer(42L, new long[] {1L, 2L, 1L}, new double[] {0.1, 0.2, 0.3});
+        buffer.shutdown(5, TimeUnit.SECONDS);
+
+        var scores = new double[2];
+        Assert.assertEquals(2, store.getScores(42L, new long[] {1L, 2L}, scores));
+        Assert.assertArrayEquals(new double[] {0.3, 0.2}, scores, 0.0);
+        Assert.assertEquals(3, buffer.writtenCount() + buffer.coalescedCount());
+        Assert.assertEquals(0, buffer.droppedCount());
+    }
+
+    @Test
+    public void testFullBufferDropsAndCountsRecords() throws InterruptedException {
+        var store = new BlockingStore();
+        var buffer = new ScoreWriteBuffer(store, 1, 4, 4, OverflowPolicy.DROP, 0);
+
+        /*
+         * the writer takes this and then blocks inside the store. A single record, so
+         * the writer can never have picked up only part of it
+         */
+        Assert.assertEquals(0, buffer.offer(1L, new long[] {1L}, new double[1]));
+        Assert.assertTrue(store.entered.await(5, TimeUnit.SECONDS));
+
+        Assert.assertEquals(0, buffer.offer(1L, new long[] {5L, 6L, 7L, 8L}, new double[4]));
+        Assert.assertEquals(2, buffer.offer(1L, new long[] {9L, 10L}, new double[2]));
+        Assert.assertEquals(2, buffer.droppedCount());
+
+        store.release.countDown();
+        buffer.shutdown(5, TimeUnit.SECONDS);
+        Assert.assertEquals(5, buffer.writtenCount());
+    }
+
+    @Test
+    public void testBlockPolicyWaitsBeforeDropping() throws InterruptedException {
+        var store = new BlockingStore();
+        var buffer = new ScoreWriteBuffer(store, 1, 4, 4, OverflowPolicy.BLOCK, 20);
+
+        buffer.offer(1L, new long[] {1L}, new double[1]);
+        Assert.assertTrue(store.entered.await(5, TimeUnit.SECONDS));
+        buffer.offer(1L, new long[] {5L, 6L, 7L, 8L}, new double[4]);
+
+        var start = System.nanoTime();
+        Assert.assertEquals(1, buffer.offer(1L, new long[] {9L}, new double[1]));
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+
+        store.release.countDown();
+        buffer.shutdown(5, TimeUnit.SECONDS);
+    }
+
+    private static class BlockingStore implements ScoreStore {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public int getScores(long context, long[] items, double[] scores, long[] ages) {
+            return 0;
+        }
+
+        @Override
+        public void setScores(long context, long[] items, double[] scores, long[] ages) {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public long size() {
+            return 0;
+        }
+
+        @Override
+        public long bytesUsed() {
+            return 0;
+        }
+
+        @Override
+        public void forEach(EntryVisitor visitor) {}
+
+        @Override
+        public void restore(long context, long item, double score, long remainingTtlMillis, long ageMillis) {}
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2022 Carl McGraw c@rlmcgraw.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included
+ *  in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package recsys_proxy_cache;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Deadline;
+import io.grpc.Status;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import recsys_proxy_cache.protos.Context;
+import recsys_proxy_cache.protos.Values;
+
+public class StandInModelTest {
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService answers = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "answers"));
+
+    @After
+    public void stopExecutors() {
+        timer.shutdownNow();
+        answers.shutdownNow();
+    }
+
+    @Test
+    public void testScoresMatchTheExportedModel() throws Exception {
+        // 2 + 2 + 4 + 3 characters
+        var context = Context
+                .newBuilder()
+                .putFields("country", Values.newBuilder().addValues("us").build())
+                .putFields("language", Values.newBuilder().addValues("en").build())
+                .putFields("site", Values.newBuilder().addValues("shop").build())
+                .putFields("session", Values.newBuilder().addValues("abc").build())
+                // not an input of the exported model
+                .putFields("device", Values.newBuilder().addValues("mobile").build())
+                .build();
+        var model = new StandInModel(1, 0, 0, timer, answers);
+
+        var scores = model
+                .score("model", context, List.of(0L, 5L), Deadline.after(5, TimeUnit.SECONDS))
+                .get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(Map.of(0L, Math.PI * 11, 5L, Math.PI * 16), scores);
+    }
+
+    @Test
+    public void testDelayedAnswersCompleteOnTheAnswerPool() throws Exception {
+        // long enough for the listener to be added before the answer is due
+        var model = new StandInModel(200, 0, 0, timer, answers);
+
+        var completedOn = new CompletableFuture<String>();
+        model
+                .score("model", Context.getDefaultInstance(), List.of(1L), Deadline.after(5, TimeUnit.SECONDS))
+                .addListener(() -> completedOn.complete(Thread.currentThread().getName()), MoreExecutors.directExecutor());
+
+        Assert.assertEquals("answers", completedOn.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testInjectedFailuresAreUnavailable() {
+        var model = new StandInModel(0, 0, 100, timer, answers);
+
+        var scores = model.score("model", Context.getDefaultInstance(), List.of(1L), Deadline.after(5, TimeUnit.SECONDS));
+
+        var exception = Assert.assertThrows(ExecutionException.class, () -> scores.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Status.Code.UNAVAILABLE, Status.fromThrowable(exception.getCause()).getCode());
+    }
+
+    @Test
+    public void testLatencyPastTheDeadlineFailsAtTheDeadline() {
+        var model = new StandInModel(60_000, 0, 0, timer, answers);
+
+        var scores = model.score("model", Context.getDefaultInstance(), List.of(1L), Deadline.after(50, TimeUnit.MILLISECONDS));
+
+        var exception = Assert.assertThrows(ExecutionException.class, () -> scores.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Status.Code.DEADLINE_EXCEEDED, Status.fromThrowable(exception.getCause()).getCode());
+    }
+}
@@ -124,7 +124,7 @@ public class TestUtils {
                 .toList();
     }
 
-    private static Values getRandomValues(int numberOfRandomFields) {
+    static Values getRandomValues(int numberOfRandomFields) {
         var values = Values.newBuilder();
         for (int i = numberOfRandomFields; i > 0; i--) {
             values.addValues(UUID.randomUUID().toString());
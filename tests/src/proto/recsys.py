@@ -31,6 +31,9 @@ class ScoreRequest(betterproto.Message):
 class ScoreResponse(betterproto.Message):
     # exactly same size as input items
     scores: List[float] = betterproto.double_field(1)
+    # positions in scores holding a last known or default score instead of a fresh one,
+    # only ever set when the proxy runs in degraded mode
+    degraded_indexes: List[int] = betterproto.int32_field(2)
 
 
 class RecsysProxyCacheStub(betterproto.ServiceStub):